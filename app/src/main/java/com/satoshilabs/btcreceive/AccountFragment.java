@@ -17,6 +17,7 @@ package com.satoshilabs.btcreceive;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,8 +77,8 @@ public class AccountFragment extends Fragment {
         mLogger.info("AccountFragment onResume");
         super.onResume();
 
-        mLBM.registerReceiver(mWalletStateChangedReceiver,
-                              new IntentFilter("wallet-state-changed"));
+        mLBM.registerReceiver(mWalletDataChangedReceiver,
+                              new IntentFilter(WalletEventBus.ACTION_DATA));
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
 
@@ -88,15 +89,21 @@ public class AccountFragment extends Fragment {
 	public void onPause() {
         mLogger.info("AccountFragment onPause");
         super.onPause();
-        mLBM.unregisterReceiver(mWalletStateChangedReceiver);
+        mLBM.unregisterReceiver(mWalletDataChangedReceiver);
         mLBM.unregisterReceiver(mRateChangedReceiver);
     }
 
-    private BroadcastReceiver mWalletStateChangedReceiver =
+    private BroadcastReceiver mWalletDataChangedReceiver =
         new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                updateChains();
+                // New addresses mean new rows, otherwise only the
+                // rows of addresses which saw activity change.
+                WalletDelta delta = WalletEventBus.getDelta(intent);
+                if (delta.isFull() || delta.wasExtended())
+                    updateChains();
+                else if (!delta.getAddresses().isEmpty())
+                    updateAddresses(delta.getAddresses());
             }
         };
 
@@ -122,6 +129,49 @@ public class AccountFragment extends Fragment {
         updateChain(R.id.change_table, mAccount.getChangeChain());
     }
 
+    // Redraws the rows of these addresses in place.
+    private void updateAddresses(Set<String> addrs) {
+        WalletService walletService =
+            ((BaseWalletActivity) getActivity()).getWalletService();
+        if (walletService == null)
+            return;
+
+        mAccount = walletService.getAccount();
+        if (mAccount == null)
+            return;
+
+        updateAddresses(R.id.receive_table, mAccount.getReceiveChain(),
+                        addrs);
+        updateAddresses(R.id.change_table, mAccount.getChangeChain(),
+                        addrs);
+    }
+
+    private void updateAddresses(int tableId,
+                                 HDChain chain,
+                                 Set<String> addrs) {
+        TableLayout table = (TableLayout) getActivity().findViewById(tableId);
+        if (table == null)
+            return;
+
+        List<HDAddress> addresses = chain.getAddresses();
+        for (int ndx = 0; ndx < addresses.size(); ++ndx) {
+            HDAddress addr = addresses.get(ndx);
+            if (!addrs.contains(addr.getAddressString()))
+                continue;
+
+            // The header is the first row.
+            View row = table.getChildAt(ndx + 1);
+            if (row == null || row.getId() != ndx) {
+                // The table is behind the chain, redraw it all.
+                updateChain(tableId, chain);
+                return;
+            }
+
+            RowData rd = rowData(addr);
+            setAddressRowValues(row, rd.mNTrans, rd.mBTCStr, rd.mFiatStr);
+        }
+    }
+
     private void addAddressHeader(TableLayout table) {
         TableRow row =
             (TableRow) LayoutInflater.from(getActivity())
@@ -175,6 +225,15 @@ public class AccountFragment extends Fragment {
             tv.setText(addr);
         }
 
+        setAddressRowValues(row, ntrans, btcstr, fiatstr);
+
+        table.addView(row);
+    }
+
+    private void setAddressRowValues(View row,
+                                     String ntrans,
+                                     String btcstr,
+                                     String fiatstr) {
         {
             TextView tv = (TextView) row.findViewById(R.id.row_ntrans);
             tv.setText(ntrans);
@@ -194,8 +253,8 @@ public class AccountFragment extends Fragment {
             row.setBackgroundColor(Color.argb(64, 0, 255, 0));
         else if (!ntrans.trim().equals("0"))
             row.setBackgroundColor(Color.argb(32, 0, 0, 0));
-
-        table.addView(row);
+        else
+            row.setBackgroundColor(Color.TRANSPARENT);
     }
 
     public void viewAddress(int tableId, int index) {
@@ -241,6 +300,20 @@ public class AccountFragment extends Fragment {
         }
     }
 
+    private RowData rowData(HDAddress addr) {
+        String path = addr.getPath();
+        String addrstr = addr.getAbbrev();
+        String ntrans = String.format("%d", addr.numTrans());
+        String bal = BaseWalletActivity.getBTCFmt()
+            .formatCol(addr.getBalance(), 0, true);
+        String fiat = String.format
+            ("%.02f", BaseWalletActivity.getBTCFmt()
+             .fiatAtRate(addr.getBalance(),
+                         ((BaseWalletActivity) getActivity())
+                         .fiatPerBTC()));
+        return new RowData(path, addrstr, ntrans, bal, fiat);
+    }
+
     private class UpdateChainTask extends AsyncTask<Object, Void, Void> {
 
         private int tableId;
@@ -259,19 +332,8 @@ public class AccountFragment extends Fragment {
                           tableId));
             HDChain chain = (HDChain) params[1];
             List<HDAddress> addrs = chain.getAddresses();
-            for (HDAddress addr : addrs) {
-                String path = addr.getPath();
-                String addrstr = addr.getAbbrev();
-                String ntrans = String.format("%d", addr.numTrans());
-                String bal = BaseWalletActivity.getBTCFmt()
-                    .formatCol(addr.getBalance(), 0, true);
-                String fiat = String.format
-                    ("%.02f", BaseWalletActivity.getBTCFmt()
-                     .fiatAtRate(addr.getBalance(),
-                                 ((BaseWalletActivity) getActivity())
-                                 .fiatPerBTC()));
-                rowdata.add(new RowData(path, addrstr, ntrans, bal, fiat));
-            }
+            for (HDAddress addr : addrs)
+                rowdata.add(rowData(addr));
             mLogger.info(String.format
                          ("UpdateChainTask %d doInBackground finished",
                           tableId));
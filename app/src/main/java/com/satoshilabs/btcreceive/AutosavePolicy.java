@@ -0,0 +1,98 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.wallet.WalletFiles;
+
+// Controls how often MyWalletAppKit rewrites the wallet file and
+// keeps count of what the saves cost.  While syncing the wallet
+// changes with nearly every block, so we let changes accumulate for
+// longer; once synchronized we go back to a short delay.
+//
+public class AutosavePolicy implements WalletFiles.Listener {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(AutosavePolicy.class);
+
+    public static final long DEFAULT_SYNCING_DELAY = 30 * 1000;
+    public static final long DEFAULT_SYNCED_DELAY = 1000;
+
+    private final long		mSyncingDelay;	// msecs
+    private final long		mSyncedDelay;	// msecs
+
+    private long			mSaveStart = 0;
+
+    private int				mNumSaves = 0;
+    private long			mBytesWritten = 0;
+    private long			mNanosSpent = 0;
+
+    public AutosavePolicy() {
+        this(DEFAULT_SYNCING_DELAY, DEFAULT_SYNCED_DELAY);
+    }
+
+    public AutosavePolicy(long syncingDelay, long syncedDelay) {
+        mSyncingDelay = syncingDelay;
+        mSyncedDelay = syncedDelay;
+    }
+
+    // Returns the autosave delay in msecs.
+    public long getDelay(boolean isSynchronized) {
+        return isSynchronized ? mSyncedDelay : mSyncingDelay;
+    }
+
+    @Override
+    public synchronized void onBeforeAutoSave(File tempFile) {
+        mSaveStart = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void onAfterAutoSave(File newlySavedFile) {
+        recordSave(newlySavedFile, System.nanoTime() - mSaveStart);
+    }
+
+    // Also called by MyWalletAppKit for the saves it does itself.
+    public synchronized void recordSave(File file, long nanos) {
+        ++mNumSaves;
+        mBytesWritten += file.length();
+        mNanosSpent += nanos;
+        mLogger.debug(String.format("wallet save %d: %d bytes in %d msecs",
+                                    mNumSaves, file.length(),
+                                    nanos / 1000000));
+    }
+
+    public synchronized int getNumSaves() {
+        return mNumSaves;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getMsecsSpent() {
+        return mNanosSpent / 1000000;
+    }
+
+    public synchronized void logStats() {
+        mLogger.info(String.format("wallet saves: %d, %d bytes, %d msecs",
+                                   mNumSaves, mBytesWritten,
+                                   mNanosSpent / 1000000));
+    }
+}
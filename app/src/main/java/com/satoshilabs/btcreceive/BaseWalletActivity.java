@@ -65,6 +65,7 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
                 onWalletServiceBound();
                 updateRate();
                 updateWalletStatus();
+                onWalletDataChanged(WalletDelta.full());
             }
 
             public void onServiceDisconnected(ComponentName className) {
@@ -103,7 +104,11 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
         mBTCFmt = mApp.getBTCFmt();
 
         mLBM.registerReceiver(mWalletStateChangedReceiver,
-                              new IntentFilter("wallet-state-changed"));
+                              new IntentFilter(WalletEventBus.ACTION_STATE));
+        mLBM.registerReceiver(mWalletProgressChangedReceiver,
+                              new IntentFilter(WalletEventBus.ACTION_PROGRESS));
+        mLBM.registerReceiver(mWalletDataChangedReceiver,
+                              new IntentFilter(WalletEventBus.ACTION_DATA));
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
 
@@ -116,6 +121,8 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
         unbindService(mConnection);
 
         mLBM.unregisterReceiver(mWalletStateChangedReceiver);
+        mLBM.unregisterReceiver(mWalletProgressChangedReceiver);
+        mLBM.unregisterReceiver(mWalletDataChangedReceiver);
         mLBM.unregisterReceiver(mRateChangedReceiver);
 
         mLogger.info("BaseWalletActivity paused");
@@ -159,6 +166,24 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
             }
         };
 
+    private BroadcastReceiver mWalletProgressChangedReceiver =
+        new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (mWalletService != null)
+                    onWalletProgressChanged();
+            }
+        };
+
+    private BroadcastReceiver mWalletDataChangedReceiver =
+        new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (mWalletService != null)
+                    onWalletDataChanged(WalletEventBus.getDelta(intent));
+            }
+        };
+
     private BroadcastReceiver mRateChangedReceiver =
         new BroadcastReceiver() {
             @Override
@@ -252,6 +277,15 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
     protected void onWalletStateChanged() {
     }
 
+    // Sync progress moved on, the state is still SYNCING.
+    protected void onWalletProgressChanged() {
+    }
+
+    // Balances, transactions or addresses changed; the delta says
+    // which.
+    protected void onWalletDataChanged(WalletDelta delta) {
+    }
+
     protected void onRateChanged() {
     }
 
@@ -0,0 +1,114 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Asks blockchain.info when an imported account was first used, so
+// the restore scan can start there instead of at HDAddress.EPOCH.
+// Only the receive chain is probed; change addresses can't be used
+// before some receive address was.  This hands blockchain.info every
+// receive address of the account, so it is only done when the user
+// opts in on the import screen.
+//
+public class BirthdayProbe {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(BirthdayProbe.class);
+
+    protected static final String url = "https://blockchain.info/";
+
+    // Returns the time (secs) of the account's first transaction,
+    // now if the account hasn't been used, or 0 if we couldn't find
+    // out.
+    public static long probe(HDAccount account) {
+        try {
+            StringBuilder active = new StringBuilder();
+            for (HDAddress hda : account.getReceiveChain().getAddresses()) {
+                if (active.length() > 0)
+                    active.append('|');
+                active.append(hda.getAddressString());
+            }
+
+            JSONObject multi =
+                fetch(url + "multiaddr?n=0&active=" + active.toString());
+            JSONArray addrs = multi.getJSONArray("addresses");
+
+            long first = System.currentTimeMillis() / 1000;
+            for (int ii = 0; ii < addrs.length(); ++ii) {
+                JSONObject addr = addrs.getJSONObject(ii);
+                int ntx = addr.getInt("n_tx");
+                if (ntx == 0)
+                    continue;
+
+                // Transactions are newest first, the last is the oldest.
+                JSONObject raw =
+                    fetch(String.format("%srawaddr/%s?limit=1&offset=%d",
+                                        url, addr.getString("address"),
+                                        ntx - 1));
+                JSONArray txs = raw.getJSONArray("txs");
+                if (txs.length() > 0)
+                    first = Math.min(first, txs.getJSONObject(0)
+                                     .getLong("time"));
+            }
+
+            mLogger.info(String.format("account first used at %d", first));
+            return first;
+
+        } catch (IOException ex) {
+            mLogger.warn("birthday probe failed: " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.warn("birthday probe failed: " + ex.toString());
+        }
+        return 0;
+    }
+
+    private static JSONObject fetch(String request)
+        throws IOException, JSONException {
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+        HttpGet httpGet = new HttpGet(request);
+
+        HttpResponse httpResponse = httpClient.execute(httpGet);
+        int status = httpResponse.getStatusLine().getStatusCode();
+        if (status != 200)
+            throw new IOException(String.format("HTTP %d from %s",
+                                                status, request));
+        HttpEntity httpEntity = httpResponse.getEntity();
+        InputStream is = httpEntity.getContent();
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line + "\n");
+        }
+        is.close();
+        return new JSONObject(sb.toString());
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+// Memory mapped checkpoints, looked up by time with a binary search.
+// The file is built from the bitcoinj checkpoints asset by
+// CheckpointIndexBuilder; see there for the format.  Unlike
+// CheckpointManager nothing is parsed up front, so the index can be
+// opened once and used for every scan.
+//
+public class CheckpointIndex {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(CheckpointIndex.class);
+
+    public static final String ASSET_NAME = "checkpoints.idx";
+
+    // Same allowance CheckpointManager makes for block time wobble.
+    private static final long TIME_MARGIN = 86400 * 7;
+
+    private final NetworkParameters	mParams;
+    private final MappedByteBuffer	mBuffer;
+    private final int				mCount;
+
+    public CheckpointIndex(NetworkParameters params, File file)
+        throws IOException {
+        mParams = params;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                  0, channel.size());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+
+        byte[] magic = new byte[CheckpointIndexBuilder.MAGIC.length];
+        if (mBuffer.capacity() < CheckpointIndexBuilder.HEADER_SIZE)
+            throw new IOException("checkpoint index too short");
+        mBuffer.get(magic);
+        for (int ii = 0; ii < magic.length; ++ii)
+            if (magic[ii] != CheckpointIndexBuilder.MAGIC[ii])
+                throw new IOException("bad checkpoint index magic");
+        mCount = mBuffer.getInt(magic.length);
+
+        long expected = CheckpointIndexBuilder.HEADER_SIZE +
+            (long) mCount * CheckpointIndexBuilder.RECORD_SIZE;
+        if (mBuffer.capacity() != expected)
+            throw new IOException(String.format("checkpoint index size %d, " +
+                                                "expected %d",
+                                                mBuffer.capacity(), expected));
+
+        mLogger.info(String.format("mapped %d checkpoints", mCount));
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    private long timeAt(int ndx) {
+        int off = CheckpointIndexBuilder.HEADER_SIZE +
+            ndx * CheckpointIndexBuilder.RECORD_SIZE;
+        return mBuffer.getInt(off) & 0xffffffffL;
+    }
+
+    private StoredBlock blockAt(int ndx) {
+        int off = CheckpointIndexBuilder.HEADER_SIZE +
+            ndx * CheckpointIndexBuilder.RECORD_SIZE + 4;
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(off);
+        buffer.limit(off + CheckpointIndexBuilder.BLOCK_SIZE);
+        return StoredBlock.deserializeCompact(mParams, buffer.slice());
+    }
+
+    // Returns the last checkpoint at or before time (secs), or the
+    // genesis block if there isn't one.
+    public StoredBlock getCheckpointBefore(long time) {
+        int lo = 0;
+        int hi = mCount - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeAt(mid) <= time) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+
+        if (found >= 0)
+            return blockAt(found);
+
+        Block genesis = mParams.getGenesisBlock().cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    // Like CheckpointManager.checkpoint, sets the store up to start
+    // from the checkpoint a week before time.
+    public void checkpoint(BlockStore store, long time)
+        throws BlockStoreException {
+        StoredBlock block = getCheckpointBefore(time - TIME_MARGIN);
+        mLogger.info(String.format("checkpoint at height %d for time %d",
+                                   block.getHeight(), time));
+        store.put(block);
+        store.setChainHead(block);
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+// Converts the bitcoinj checkpoints file into the fixed record
+// format CheckpointIndex maps.  Run it whenever the checkpoints
+// asset is updated:
+//
+//     java com.satoshilabs.btcreceive.CheckpointIndexBuilder \
+//         app/src/main/assets/checkpoints \
+//         app/src/main/assets/checkpoints.idx
+//
+// The index is:
+//
+//     "CKPTIDX1"		8 bytes
+//     count			4 bytes
+//     count records, sorted by time:
+//         time			4 bytes, seconds
+//         block		96 bytes, StoredBlock compact serialization
+//
+// All integers are big endian.  This only uses java.io so it can
+// run without the app's dependencies.
+//
+public class CheckpointIndexBuilder {
+
+    public static final byte[] MAGIC =
+    { 'C', 'K', 'P', 'T', 'I', 'D', 'X', '1' };
+
+    public static final int HEADER_SIZE = 8 + 4;
+    public static final int BLOCK_SIZE = 96;	// compact StoredBlock
+    public static final int RECORD_SIZE = 4 + BLOCK_SIZE;
+
+    private static final String CHECKPOINTS_MAGIC = "CHECKPOINTS 1";
+    private static final int SIGNATURE_SIZE = 65;
+
+    // Within a compact StoredBlock: 12 bytes of chain work, 4 bytes
+    // of height, then the header, which has the time (little
+    // endian) after the version, previous hash and merkle root.
+    private static final int TIME_OFFSET = 12 + 4 + 4 + 32 + 32;
+
+    public static int build(InputStream in, OutputStream out)
+        throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+
+        byte[] magic = new byte[CHECKPOINTS_MAGIC.length()];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, CHECKPOINTS_MAGIC.getBytes("US-ASCII")))
+            throw new IOException("not a checkpoints file");
+
+        int numSigs = dis.readInt();
+        for (int ii = 0; ii < numSigs; ++ii)
+            dis.readFully(new byte[SIGNATURE_SIZE]);
+
+        int numCheckpoints = dis.readInt();
+        TreeMap<Long, byte[]> blocks = new TreeMap<Long, byte[]>();
+        for (int ii = 0; ii < numCheckpoints; ++ii) {
+            byte[] block = new byte[BLOCK_SIZE];
+            dis.readFully(block);
+            long time =
+                ((block[TIME_OFFSET] & 0xffL)) |
+                ((block[TIME_OFFSET + 1] & 0xffL) << 8) |
+                ((block[TIME_OFFSET + 2] & 0xffL) << 16) |
+                ((block[TIME_OFFSET + 3] & 0xffL) << 24);
+            blocks.put(time, block);
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MAGIC);
+        dos.writeInt(blocks.size());
+        for (Long time : blocks.keySet()) {
+            dos.writeInt((int) time.longValue());
+            dos.write(blocks.get(time));
+        }
+        dos.flush();
+        return blocks.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CheckpointIndexBuilder " +
+                               "<checkpoints> <checkpoints.idx>");
+            System.exit(1);
+        }
+
+        FileInputStream in = new FileInputStream(args[0]);
+        FileOutputStream out = new FileOutputStream(args[1]);
+        try {
+            int count = build(in, out);
+            System.out.println(String.format("wrote %d checkpoints to %s",
+                                             count, args[1]));
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+// Brings the wallet up to the header store's chain head using
+// compact block filters instead of bloom filtered blocks.  Every
+// block after the wallet's last seen block has its filter matched
+// against all of the wallet's scripts; only matching blocks are
+// downloaded and their relevant transactions handed to the wallet.
+// Nothing about our addresses leaves the device.
+//
+public class CompactFilterScanner {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(CompactFilterScanner.class);
+
+    private final BlockStore		mStore;
+    private final Wallet			mWallet;
+    private final FilterSource		mSource;
+
+    // The scripts we match, rebuilt when the wallet gains keys.
+    private List<byte[]>			mScripts = new ArrayList<byte[]>();
+    private int						mNumKeys = -1;
+
+    private long					mNumBlocks = 0;
+    private long					mNumMatches = 0;
+    private long					mNumFalseMatches = 0;
+    private long					mMatchNanos = 0;
+
+    public CompactFilterScanner(BlockStore store,
+                                Wallet wallet,
+                                FilterSource source) {
+        mStore = store;
+        mWallet = wallet;
+        mSource = source;
+    }
+
+    // Both the pay to pubkey hash and pay to pubkey scripts of every
+    // key; the filters hold the scripts of outputs and of the
+    // outputs being spent, so this catches receives and spends.
+    private void updateScripts() {
+        int numKeys = mWallet.getKeychainSize();
+        if (numKeys == mNumKeys)
+            return;
+        List<byte[]> scripts = new ArrayList<byte[]>();
+        for (ECKey key : mWallet.getKeys()) {
+            scripts.add(ScriptBuilder.createOutputScript
+                        (key.toAddress(mWallet.getParams())).getProgram());
+            scripts.add(ScriptBuilder.createOutputScript(key).getProgram());
+        }
+        mScripts = scripts;
+        mNumKeys = numKeys;
+    }
+
+    // Scans every block between the wallet's last seen block and the
+    // chain head.  Returns the number of blocks scanned.
+    public synchronized int scan()
+        throws BlockStoreException, IOException, VerificationException {
+        StoredBlock head = mStore.getChainHead();
+        Sha256Hash lastHash = mWallet.getLastBlockSeenHash();
+
+        // A wallet which hasn't seen any blocks starts with the
+        // block before its first key; block times can be off by a
+        // couple of hours.
+        long startTime = mWallet.getEarliestKeyCreationTime() -
+            NetworkParameters.TARGET_SPACING * 12;
+
+        LinkedList<StoredBlock> blocks = new LinkedList<StoredBlock>();
+        StoredBlock block = head;
+        while (block != null) {
+            if (lastHash != null) {
+                if (block.getHeader().getHash().equals(lastHash))
+                    break;
+            } else if (block.getHeader().getTimeSeconds() < startTime) {
+                break;
+            }
+            blocks.addFirst(block);
+            block = block.getPrev(mStore);
+        }
+        if (lastHash != null && block == null)
+            mLogger.warn("wallet's last block " + lastHash +
+                         " isn't an ancestor of the head, scanning " +
+                         blocks.size() + " blocks we have");
+
+        for (StoredBlock stored : blocks)
+            scanBlock(stored);
+
+        if (!blocks.isEmpty())
+            logStats();
+        return blocks.size();
+    }
+
+    private void scanBlock(StoredBlock stored)
+        throws IOException, VerificationException {
+        Sha256Hash hash = stored.getHeader().getHash();
+        byte[] data = mSource.getFilter(hash);
+
+        // Keys are added as the wallet finds used addresses.
+        updateScripts();
+
+        long start = System.nanoTime();
+        GolombFilter filter = new GolombFilter(hash.getBytes(), data);
+        boolean matched = filter.matchAny(mScripts);
+        mMatchNanos += System.nanoTime() - start;
+        ++mNumBlocks;
+
+        if (matched) {
+            ++mNumMatches;
+            Block block = mSource.getBlock(hash);
+            int offset = 0;
+            for (Transaction tx : block.getTransactions()) {
+                if (mWallet.isTransactionRelevant(tx))
+                    mWallet.receiveFromBlock
+                        (tx, stored, AbstractBlockChain.NewBlockType.BEST_CHAIN,
+                         offset++);
+            }
+            if (offset == 0)
+                ++mNumFalseMatches;
+            else
+                mLogger.info(String.format("block %d has %d of our txs",
+                                           stored.getHeight(), offset));
+        }
+
+        mWallet.notifyNewBestBlock(stored);
+    }
+
+    public synchronized long getNumBlocks() {
+        return mNumBlocks;
+    }
+
+    public synchronized long getNumMatches() {
+        return mNumMatches;
+    }
+
+    public synchronized long getNumFalseMatches() {
+        return mNumFalseMatches;
+    }
+
+    public synchronized void logStats() {
+        mLogger.info(String.format("filters: %d blocks, %d matches " +
+                                   "(%d false), %d scripts, " +
+                                   "%.1f usec/filter",
+                                   mNumBlocks, mNumMatches, mNumFalseMatches,
+                                   mScripts.size(),
+                                   mNumBlocks == 0 ? 0.0 :
+                                   mMatchNanos / 1000.0 / mNumBlocks));
+    }
+}
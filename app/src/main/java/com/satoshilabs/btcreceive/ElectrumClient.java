@@ -0,0 +1,262 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+// One persistent connection to an Electrum protocol server (newline
+// delimited JSON-RPC over TCP or TLS).  Requests are pipelined: a
+// batch is written in one go and the replies are collected as they
+// arrive, so a thousand history requests cost one round trip.
+// Subscription notifications are handed to the Listener on the
+// reader thread.
+//
+public class ElectrumClient {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(ElectrumClient.class);
+
+    public static final String PROTOCOL_VERSION = "1.4";
+
+    private static final int CONNECT_TIMEOUT_MSECS = 15 * 1000;
+    private static final long REPLY_TIMEOUT_SECS = 60;
+
+    public interface Listener {
+        public void onNotification(String method, JSONArray params);
+
+        public void onDisconnected();
+    }
+
+    private final String		mHost;
+    private final int			mPort;
+    private final boolean		mSSL;
+
+    private Listener			mListener;
+    private Socket				mSocket = null;
+    private Writer				mWriter = null;
+    private int					mNextId = 0;
+    private long				mNumRequests = 0;
+
+    private final HashMap<Integer, SettableFuture<Object>> mPending =
+        new HashMap<Integer, SettableFuture<Object>>();
+
+    public ElectrumClient(String host, int port, boolean ssl) {
+        mHost = host;
+        mPort = port;
+        mSSL = ssl;
+    }
+
+    // Parses "ssl://host:port" or "tcp://host:port".
+    public static ElectrumClient fromUrl(String url) {
+        URI uri = URI.create(url);
+        boolean ssl = !"tcp".equals(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : ssl ? 50002 : 50001;
+        return new ElectrumClient(uri.getHost(), port, ssl);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized boolean isConnected() {
+        return mSocket != null;
+    }
+
+    public synchronized long getNumRequests() {
+        return mNumRequests;
+    }
+
+    public void connect() throws IOException {
+        synchronized (this) {
+            if (mSocket != null)
+                return;
+            mLogger.info(String.format("connecting to %s:%d", mHost, mPort));
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(mHost, mPort),
+                           CONNECT_TIMEOUT_MSECS);
+            if (mSSL)
+                socket = ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(socket, mHost, mPort, true);
+            mSocket = socket;
+            mWriter = new BufferedWriter
+                (new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            final BufferedReader reader = new BufferedReader
+                (new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Thread thread = new Thread("ElectrumClient") {
+                    @Override
+                    public void run() {
+                        readLoop(reader);
+                    }
+                };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        call("server.version", "mytrezor-lite", PROTOCOL_VERSION);
+    }
+
+    public void close() {
+        Socket socket;
+        synchronized (this) {
+            socket = mSocket;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // We're done with it anyway.
+            }
+        }
+    }
+
+    public Object call(String method, Object... params) throws IOException {
+        JSONArray array = new JSONArray();
+        for (Object param : params)
+            array.put(param);
+        List<JSONArray> paramsList = new ArrayList<JSONArray>();
+        paramsList.add(array);
+        return batch(method, paramsList).get(0);
+    }
+
+    // Sends one request per params entry and returns the results in
+    // the same order.
+    public List<Object> batch(String method, List<JSONArray> paramsList)
+        throws IOException {
+        List<SettableFuture<Object>> futures =
+            new ArrayList<SettableFuture<Object>>();
+        if (paramsList.isEmpty())
+            return new ArrayList<Object>();
+
+        synchronized (this) {
+            if (mSocket == null)
+                throw new IOException("not connected");
+            try {
+                for (JSONArray params : paramsList) {
+                    int id = mNextId++;
+                    JSONObject request = new JSONObject();
+                    request.put("jsonrpc", "2.0");
+                    request.put("id", id);
+                    request.put("method", method);
+                    request.put("params", params);
+                    SettableFuture<Object> future = SettableFuture.create();
+                    mPending.put(id, future);
+                    futures.add(future);
+                    mWriter.write(request.toString());
+                    mWriter.write('\n');
+                }
+            } catch (JSONException ex) {
+                throw new IOException(ex);
+            }
+            mWriter.flush();
+            mNumRequests += paramsList.size();
+        }
+
+        List<Object> results = new ArrayList<Object>();
+        try {
+            for (SettableFuture<Object> future : futures)
+                results.add(future.get(REPLY_TIMEOUT_SECS, TimeUnit.SECONDS));
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (TimeoutException ex) {
+            close();
+            throw new IOException(method + " timed out");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+        return results;
+    }
+
+    private void readLoop(BufferedReader reader) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject msg = new JSONObject(line);
+                if (!msg.isNull("id"))
+                    dispatchReply(msg);
+                else if (msg.has("method"))
+                    dispatchNotification(msg);
+            }
+        } catch (IOException ex) {
+            mLogger.info("connection closed: " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.error("bad message from server: " + ex.toString());
+        }
+
+        Listener listener;
+        synchronized (this) {
+            close();
+            mSocket = null;
+            mWriter = null;
+            for (SettableFuture<Object> future : mPending.values())
+                future.setException(new IOException("connection lost"));
+            mPending.clear();
+            listener = mListener;
+        }
+        if (listener != null)
+            listener.onDisconnected();
+    }
+
+    private void dispatchReply(JSONObject msg) throws JSONException {
+        SettableFuture<Object> future;
+        synchronized (this) {
+            future = mPending.remove(msg.getInt("id"));
+        }
+        if (future == null) {
+            mLogger.warn("unexpected reply " + msg.getInt("id"));
+            return;
+        }
+        if (!msg.isNull("error"))
+            future.setException(new IOException("server error: " +
+                                                msg.get("error").toString()));
+        else
+            future.set(msg.opt("result"));
+    }
+
+    private void dispatchNotification(JSONObject msg) throws JSONException {
+        Listener listener;
+        synchronized (this) {
+            listener = mListener;
+        }
+        if (listener != null)
+            listener.onNotification(msg.getString("method"),
+                                    msg.optJSONArray("params"));
+    }
+}
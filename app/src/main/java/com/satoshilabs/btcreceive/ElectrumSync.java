@@ -0,0 +1,440 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+import com.google.bitcoin.script.ScriptBuilder;
+
+// Keeps the wallet in sync from an Electrum protocol server instead
+// of downloading blocks.  Every wallet key's script hash is
+// subscribed; when a status changes its history is fetched, and the
+// transactions and block headers we don't have yet are requested in
+// pipelined batches and handed to the wallet, which is where
+// HDReceiver picks them up.  Keys the wallet gains as the chains are
+// extended are subscribed as they're added.
+//
+// The server is trusted to report the complete history; headers are
+// checked for proof of work but inclusion isn't verified.
+//
+public class ElectrumSync {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(ElectrumSync.class);
+
+    private static final long RECONNECT_SECS = 30;
+
+    private final NetworkParameters	mParams;
+    private final Wallet			mWallet;
+    private final ElectrumClient	mClient;
+    private final ExecutorService	mExecutor =
+        Executors.newSingleThreadExecutor();
+
+    // Subscribed script hashes and their last status (null if the
+    // script has no history).
+    private final HashMap<String, String>	mStatus =
+        new HashMap<String, String>();
+    private final Set<String>				mDirty = new HashSet<String>();
+
+    // Set from the client's reader thread, which mustn't block on
+    // a sync waiting for its replies.
+    private final Object					mNotifyLock = new Object();
+    private final Set<String>				mNotified = new HashSet<String>();
+    private StoredBlock						mNotifiedTip = null;
+    private volatile boolean				mReset = false;
+
+    private final HashMap<Integer, StoredBlock>	mHeaders =
+        new HashMap<Integer, StoredBlock>();
+    private StoredBlock						mTip = null;
+    private volatile boolean				mStopped = false;
+
+    private long					mNumSyncs = 0;
+    private long					mNumTxs = 0;
+    private long					mSyncMsecs = 0;
+
+    public ElectrumSync(NetworkParameters params,
+                        Wallet wallet,
+                        ElectrumClient client) {
+        mParams = params;
+        mWallet = wallet;
+        mClient = client;
+    }
+
+    // Starts following notifications and new wallet keys.
+    public void start() {
+        mClient.setListener(mClientListener);
+        mWallet.addEventListener(mWalletListener);
+        schedule();
+    }
+
+    public void stop() {
+        mStopped = true;
+        mWallet.removeEventListener(mWalletListener);
+        mClient.setListener(null);
+        mClient.close();
+        mExecutor.shutdown();
+        logStats();
+    }
+
+    private void schedule() {
+        if (mStopped)
+            return;
+        mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException ex) {
+                        mLogger.warn("sync failed: " + ex.toString());
+                    } catch (VerificationException ex) {
+                        mLogger.error("sync failed: " + ex.toString());
+                    }
+                }
+            });
+    }
+
+    private final ElectrumClient.Listener mClientListener =
+        new ElectrumClient.Listener() {
+            public void onNotification(String method, JSONArray params) {
+                try {
+                    if (method.equals("blockchain.scripthash.subscribe")) {
+                        synchronized (mNotifyLock) {
+                            mNotified.add(params.getString(0));
+                        }
+                        schedule();
+                    } else if (method.equals("blockchain.headers.subscribe")) {
+                        StoredBlock tip = parseTip(params.getJSONObject(0));
+                        synchronized (mNotifyLock) {
+                            mNotifiedTip = tip;
+                        }
+                        schedule();
+                    }
+                } catch (JSONException ex) {
+                    mLogger.warn("bad notification: " + ex.toString());
+                } catch (VerificationException ex) {
+                    mLogger.error("bad header: " + ex.toString());
+                }
+            }
+
+            public void onDisconnected() {
+                // Subscriptions died with the connection.
+                mReset = true;
+                if (mStopped)
+                    return;
+                mLogger.info(String.format("reconnecting in %d secs",
+                                           RECONNECT_SECS));
+                mExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                TimeUnit.SECONDS.sleep(RECONNECT_SECS);
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                            schedule();
+                        }
+                    });
+            }
+        };
+
+    private final WalletEventListener mWalletListener =
+        new AbstractWalletEventListener() {
+            @Override
+            public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
+                schedule();
+            }
+        };
+
+    // Electrum identifies scripts by their reversed SHA-256.
+    private static String scriptHash(byte[] script) {
+        byte[] hash = Sha256Hash.create(script).getBytes();
+        return Utils.bytesToHexString(Utils.reverseBytes(hash));
+    }
+
+    private StoredBlock parseHeader(String hex, int height)
+        throws VerificationException {
+        try {
+            Block header = new Block(mParams, Hex.decode(hex));
+            header.verifyHeader();
+            // The wallet only looks at the height and the header.
+            return new StoredBlock(header, BigInteger.ZERO, height);
+        } catch (ProtocolException ex) {
+            throw new VerificationException(ex.toString());
+        }
+    }
+
+    private StoredBlock parseTip(JSONObject tip)
+        throws JSONException, VerificationException {
+        return parseHeader(tip.getString("hex"), tip.getInt("height"));
+    }
+
+    private static List<JSONArray> paramsOf(Iterable<?> values) {
+        List<JSONArray> paramsList = new ArrayList<JSONArray>();
+        for (Object value : values) {
+            JSONArray params = new JSONArray();
+            params.put(value);
+            paramsList.add(params);
+        }
+        return paramsList;
+    }
+
+    // Brings the wallet up to date with the server.
+    public synchronized void sync()
+        throws IOException, VerificationException {
+        if (mStopped)
+            return;
+        long start = System.currentTimeMillis();
+        if (mReset) {
+            mReset = false;
+            mStatus.clear();
+            mTip = null;
+        }
+        synchronized (mNotifyLock) {
+            mDirty.addAll(mNotified);
+            mNotified.clear();
+            if (mNotifiedTip != null)
+                mTip = mNotifiedTip;
+            mNotifiedTip = null;
+        }
+        mClient.connect();
+
+        try {
+            if (mTip == null)
+                mTip = parseTip((JSONObject)
+                                mClient.call("blockchain.headers.subscribe"));
+
+            // Subscribe the scripts we haven't yet; any with history
+            // need their history checked.
+            List<String> fresh = new ArrayList<String>();
+            for (ECKey key : mWallet.getKeys()) {
+                String hash = scriptHash(ScriptBuilder.createOutputScript
+                                         (key.toAddress(mParams)).getProgram());
+                if (!mStatus.containsKey(hash))
+                    fresh.add(hash);
+            }
+            List<Object> statuses =
+                mClient.batch("blockchain.scripthash.subscribe",
+                              paramsOf(fresh));
+            for (int ii = 0; ii < fresh.size(); ++ii) {
+                Object status = statuses.get(ii);
+                if (status == JSONObject.NULL) {
+                    mStatus.put(fresh.get(ii), null);
+                } else {
+                    mStatus.put(fresh.get(ii), (String) status);
+                    mDirty.add(fresh.get(ii));
+                }
+            }
+
+            // Histories of the changed scripts.
+            List<String> dirty = new ArrayList<String>(mDirty);
+            mDirty.clear();
+            List<Object> histories =
+                mClient.batch("blockchain.scripthash.get_history",
+                              paramsOf(dirty));
+            HashMap<Sha256Hash, Integer> heights =
+                new HashMap<Sha256Hash, Integer>();
+            for (Object history : histories) {
+                JSONArray entries = (JSONArray) history;
+                for (int ii = 0; ii < entries.length(); ++ii) {
+                    JSONObject entry = entries.getJSONObject(ii);
+                    heights.put(new Sha256Hash(entry.getString("tx_hash")),
+                                entry.getInt("height"));
+                }
+            }
+
+            // Fetch the transactions the wallet doesn't have, and the
+            // headers of the blocks they, or newly confirmed pending
+            // ones, are in.
+            List<Sha256Hash> needTxs = new ArrayList<Sha256Hash>();
+            Set<Integer> needHeaders = new HashSet<Integer>();
+            HashMap<Sha256Hash, Transaction> apply =
+                new HashMap<Sha256Hash, Transaction>();
+            for (Map.Entry<Sha256Hash, Integer> entry : heights.entrySet()) {
+                Transaction wtx = mWallet.getTransaction(entry.getKey());
+                int height = entry.getValue();
+                if (wtx == null) {
+                    needTxs.add(entry.getKey());
+                } else if (height > 0 &&
+                           wtx.getConfidence().getConfidenceType() !=
+                           ConfidenceType.BUILDING) {
+                    apply.put(entry.getKey(), wtx);
+                } else {
+                    continue;
+                }
+                if (height > 0 && !mHeaders.containsKey(height))
+                    needHeaders.add(height);
+            }
+
+            List<Object> raws =
+                mClient.batch("blockchain.transaction.get", paramsOf(needTxs));
+            for (Object raw : raws) {
+                Transaction tx = new Transaction
+                    (mParams, Hex.decode((String) raw));
+                apply.put(tx.getHash(), tx);
+            }
+
+            List<Integer> headerHeights = new ArrayList<Integer>(needHeaders);
+            List<Object> headers =
+                mClient.batch("blockchain.block.header",
+                              paramsOf(headerHeights));
+            for (int ii = 0; ii < headerHeights.size(); ++ii)
+                mHeaders.put(headerHeights.get(ii),
+                             parseHeader((String) headers.get(ii),
+                                         headerHeights.get(ii)));
+
+            applyTransactions(apply, heights);
+
+            if (!mTip.getHeader().getHash().equals
+                (mWallet.getLastBlockSeenHash())) {
+                mWallet.notifyNewBestBlock(mTip);
+                updateDepths();
+            }
+
+            mNumTxs += apply.size();
+            ++mNumSyncs;
+            mSyncMsecs += System.currentTimeMillis() - start;
+            if (!apply.isEmpty() || !fresh.isEmpty())
+                mLogger.info(String.format("synced %d scripts, %d txs " +
+                                           "to height %d in %d msecs",
+                                           fresh.size() + dirty.size(),
+                                           apply.size(), mTip.getHeight(),
+                                           System.currentTimeMillis() - start));
+
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        } catch (ProtocolException ex) {
+            throw new IOException(ex);
+        } catch (ClassCastException ex) {
+            throw new IOException("unexpected reply: " + ex.toString());
+        }
+    }
+
+    // Confirmed transactions go to the wallet in block order, and
+    // within a block parents before children.  Pending ones last.
+    private void applyTransactions(HashMap<Sha256Hash, Transaction> txs,
+                                   final HashMap<Sha256Hash, Integer> heights)
+        throws VerificationException {
+        List<Transaction> sorted = new ArrayList<Transaction>(txs.values());
+        Collections.sort(sorted, new Comparator<Transaction>() {
+                public int compare(Transaction t0, Transaction t1) {
+                    long h0 = order(heights.get(t0.getHash()));
+                    long h1 = order(heights.get(t1.getHash()));
+                    return h0 < h1 ? -1 : h0 == h1 ? 0 : 1;
+                }
+            });
+
+        int ii = 0;
+        while (ii < sorted.size()) {
+            int height = heights.get(sorted.get(ii).getHash());
+            int end = ii;
+            while (end < sorted.size() &&
+                   order(heights.get(sorted.get(end).getHash())) ==
+                   order(height))
+                ++end;
+            List<Transaction> group =
+                new ArrayList<Transaction>(sorted.subList(ii, end));
+            int offset = 0;
+            while (!group.isEmpty()) {
+                // Take one which spends nothing else left in the group.
+                Transaction next = group.get(0);
+                for (Transaction tx : group) {
+                    boolean ready = true;
+                    for (Transaction other : group)
+                        if (other != tx && spends(tx, other))
+                            ready = false;
+                    if (ready) {
+                        next = tx;
+                        break;
+                    }
+                }
+                group.remove(next);
+                if (height > 0)
+                    mWallet.receiveFromBlock
+                        (next, mHeaders.get(height),
+                         AbstractBlockChain.NewBlockType.BEST_CHAIN,
+                         offset++);
+                else if (mWallet.getTransaction(next.getHash()) == null)
+                    mWallet.receivePending(next, null);
+            }
+            ii = end;
+        }
+    }
+
+    // Unconfirmed transactions (height 0, or -1 with unconfirmed
+    // parents) sort after every block.
+    private static long order(int height) {
+        return height > 0 ? height : Long.MAX_VALUE;
+    }
+
+    private static boolean spends(Transaction child, Transaction parent) {
+        for (TransactionInput input : child.getInputs())
+            if (input.getOutpoint().getHash().equals(parent.getHash()))
+                return true;
+        return false;
+    }
+
+    // The wallet counts depth by the blocks it has been shown; we
+    // skip straight to the tip so set it from the heights.
+    private void updateDepths() {
+        int tipHeight = mTip.getHeight();
+        for (Transaction tx : mWallet.getTransactions(false)) {
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.getConfidenceType() == ConfidenceType.BUILDING)
+                conf.setDepthInBlocks
+                    (tipHeight - conf.getAppearedAtChainHeight() + 1);
+        }
+    }
+
+    public synchronized void logStats() {
+        mLogger.info(String.format("indexer: %d syncs, %d txs, %d scripts, " +
+                                   "%d requests, %d msecs",
+                                   mNumSyncs, mNumTxs, mStatus.size(),
+                                   mClient.getNumRequests(), mSyncMsecs));
+    }
+}
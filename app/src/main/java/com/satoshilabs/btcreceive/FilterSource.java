@@ -0,0 +1,33 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.IOException;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+
+// Where the compact filter backend gets its BIP 158 basic filters,
+// and the blocks whose filters matched.
+//
+public interface FilterSource {
+
+    // The serialized basic filter of the block.
+    public byte[] getFilter(Sha256Hash blockHash) throws IOException;
+
+    public Block getBlock(Sha256Hash blockHash) throws IOException;
+
+}
@@ -0,0 +1,202 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.util.Arrays;
+import java.util.List;
+
+// A BIP 158 basic block filter: the block's output scripts (and the
+// scripts of the outputs it spends) hashed into a Golomb-Rice coded
+// set.  We never build filters, we only ask whether any of our
+// scripts are in one.  All of the scripts are hashed, sorted and
+// walked against the decoded set in one pass, so matching a wallet
+// with thousands of addresses costs about the same as one address.
+//
+public class GolombFilter {
+
+    // BIP 158 basic filter parameters.
+    public static final int P = 19;
+    public static final long M = 784931;
+
+    private final byte[]	mData;
+    private final long		mK0;
+    private final long		mK1;
+    private final int		mN;
+    private final int		mStart;	// offset of the coded set
+
+    // blockHash is the hash as bitcoinj displays it (big endian);
+    // the key is the first 16 bytes of it in little endian order.
+    public GolombFilter(byte[] blockHash, byte[] data) {
+        byte[] key = new byte[16];
+        for (int ii = 0; ii < 16; ++ii)
+            key[ii] = blockHash[blockHash.length - 1 - ii];
+        mK0 = readLE64(key, 0);
+        mK1 = readLE64(key, 8);
+        mData = data;
+
+        // The set size is a CompactSize varint.
+        int first = data.length > 0 ? data[0] & 0xff : 0;
+        if (first < 0xfd) {
+            mN = first;
+            mStart = 1;
+        }
+        else if (first == 0xfd) {
+            mN = (data[1] & 0xff) | (data[2] & 0xff) << 8;
+            mStart = 3;
+        }
+        else {
+            mN = (int) readLE32(data, 1);
+            mStart = 5;
+        }
+    }
+
+    public int size() {
+        return mN;
+    }
+
+    // True if any of the scripts are (probably) in the filter.
+    public boolean matchAny(List<byte[]> scripts) {
+        if (mN == 0 || scripts.isEmpty())
+            return false;
+
+        long range = (long) mN * M;
+        long[] query = new long[scripts.size()];
+        for (int ii = 0; ii < query.length; ++ii)
+            query[ii] = hashToRange(scripts.get(ii), range);
+        Arrays.sort(query);
+
+        BitReader reader = new BitReader(mData, mStart);
+        long value = 0;
+        int qq = 0;
+        for (int ii = 0; ii < mN; ++ii) {
+            value += reader.readGolombRice();
+            while (query[qq] < value) {
+                if (++qq == query.length)
+                    return false;
+            }
+            if (query[qq] == value)
+                return true;
+        }
+        return false;
+    }
+
+    private long hashToRange(byte[] item, long range) {
+        return multiplyHigh(sipHash24(mK0, mK1, item), range);
+    }
+
+    // The high 64 bits of the unsigned 128 bit product.
+    private static long multiplyHigh(long aa, long bb) {
+        long aLo = aa & 0xffffffffL;
+        long aHi = aa >>> 32;
+        long bLo = bb & 0xffffffffL;
+        long bHi = bb >>> 32;
+        long lolo = aLo * bLo;
+        long hilo = aHi * bLo;
+        long lohi = aLo * bHi;
+        long hihi = aHi * bHi;
+        long cross = (lolo >>> 32) + (hilo & 0xffffffffL) + lohi;
+        return hihi + (hilo >>> 32) + (cross >>> 32);
+    }
+
+    private static class BitReader {
+        private final byte[]	mBytes;
+        private int				mPos;	// in bits
+
+        public BitReader(byte[] bytes, int offset) {
+            mBytes = bytes;
+            mPos = offset * 8;
+        }
+
+        private int readBit() {
+            int bb = mBytes[mPos >>> 3] >>> (7 - (mPos & 7)) & 1;
+            ++mPos;
+            return bb;
+        }
+
+        public long readGolombRice() {
+            long quotient = 0;
+            while (readBit() == 1)
+                ++quotient;
+            long remainder = 0;
+            for (int ii = 0; ii < P; ++ii)
+                remainder = (remainder << 1) | readBit();
+            return (quotient << P) | remainder;
+        }
+    }
+
+    private static long readLE64(byte[] bytes, int off) {
+        long val = 0;
+        for (int ii = 7; ii >= 0; --ii)
+            val = (val << 8) | (bytes[off + ii] & 0xffL);
+        return val;
+    }
+
+    private static long readLE32(byte[] bytes, int off) {
+        return (bytes[off] & 0xffL) |
+            (bytes[off + 1] & 0xffL) << 8 |
+            (bytes[off + 2] & 0xffL) << 16 |
+            (bytes[off + 3] & 0xffL) << 24;
+    }
+
+    // SipHash-2-4.
+    public static long sipHash24(long k0, long k1, byte[] data) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+
+        int len = data.length;
+        int end = len - (len % 8);
+        for (int off = 0; off < end; off += 8) {
+            long mm = readLE64(data, off);
+            v3 ^= mm;
+            for (int ii = 0; ii < 2; ++ii) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0;
+                v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2;
+                v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= mm;
+        }
+
+        long last = ((long) len & 0xff) << 56;
+        for (int ii = len - 1; ii >= end; --ii)
+            last |= (data[ii] & 0xffL) << (8 * (ii - end));
+        v3 ^= last;
+        for (int ii = 0; ii < 2; ++ii) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= last;
+
+        v2 ^= 0xff;
+        for (int ii = 0; ii < 4; ++ii) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
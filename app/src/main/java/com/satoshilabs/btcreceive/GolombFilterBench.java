@@ -0,0 +1,163 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Times GolombFilter.matchAny against synthetic filters the size of
+// a full block.  Only uses the JDK so it runs off the device:
+//
+//     java com.satoshilabs.btcreceive.GolombFilterBench [scripts] [items]
+//
+// The filters are built here with the BIP 158 encoding; a script
+// from the filter is checked to match so a decoding bug shows up
+// as a failure rather than as a fast time.
+//
+public class GolombFilterBench {
+
+    private static final int NUM_FILTERS = 200;
+    private static final int ROUNDS = 5;
+
+    private static class BitWriter {
+        private ByteArrayOutputStream	mOut = new ByteArrayOutputStream();
+        private int						mByte = 0;
+        private int						mBits = 0;
+
+        public void writeBit(int bit) {
+            mByte = (mByte << 1) | bit;
+            if (++mBits == 8) {
+                mOut.write(mByte);
+                mByte = 0;
+                mBits = 0;
+            }
+        }
+
+        public byte[] toByteArray() {
+            while (mBits != 0)
+                writeBit(0);
+            return mOut.toByteArray();
+        }
+    }
+
+    // The values GolombFilter hashes the items to, computed the
+    // slow way.
+    private static long[] hashItems(byte[] blockHash, List<byte[]> items) {
+        long[] values = new long[items.size()];
+        long k0 = 0;
+        long k1 = 0;
+        for (int ii = 7; ii >= 0; --ii) {
+            k0 = (k0 << 8) | (blockHash[blockHash.length - 1 - ii] & 0xffL);
+            k1 = (k1 << 8) | (blockHash[blockHash.length - 9 - ii] & 0xffL);
+        }
+        long range = items.size() * GolombFilter.M;
+        for (int ii = 0; ii < values.length; ++ii) {
+            long hh = GolombFilter.sipHash24(k0, k1, items.get(ii));
+            values[ii] = new BigInteger(1, longBytes(hh))
+                .multiply(BigInteger.valueOf(range))
+                .shiftRight(64).longValue();
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static byte[] longBytes(long val) {
+        byte[] bytes = new byte[8];
+        for (int ii = 7; ii >= 0; --ii) {
+            bytes[ii] = (byte) val;
+            val >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static byte[] encode(byte[] blockHash, List<byte[]> items) {
+        long[] values = hashItems(blockHash, items);
+        BitWriter writer = new BitWriter();
+        long last = 0;
+        for (long value : values) {
+            long delta = value - last;
+            last = value;
+            for (long qq = delta >>> GolombFilter.P; qq > 0; --qq)
+                writer.writeBit(1);
+            writer.writeBit(0);
+            for (int ii = GolombFilter.P - 1; ii >= 0; --ii)
+                writer.writeBit((int) (delta >>> ii) & 1);
+        }
+        byte[] set = writer.toByteArray();
+
+        // CompactSize count, then the set.
+        int nn = items.size();
+        byte[] header = nn < 0xfd ? new byte[] { (byte) nn } :
+            new byte[] { (byte) 0xfd, (byte) nn, (byte) (nn >> 8) };
+        byte[] data = new byte[header.length + set.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(set, 0, data, header.length, set.length);
+        return data;
+    }
+
+    private static List<byte[]> randomScripts(Random rand, int count) {
+        List<byte[]> scripts = new ArrayList<byte[]>();
+        for (int ii = 0; ii < count; ++ii) {
+            byte[] script = new byte[25];
+            rand.nextBytes(script);
+            scripts.add(script);
+        }
+        return scripts;
+    }
+
+    public static void main(String[] args) {
+        int numScripts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int numItems = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        Random rand = new Random(1);
+        List<byte[]> scripts = randomScripts(rand, numScripts);
+
+        byte[][] hashes = new byte[NUM_FILTERS][32];
+        byte[][] filters = new byte[NUM_FILTERS][];
+        List<byte[]> sample = null;
+        for (int ii = 0; ii < NUM_FILTERS; ++ii) {
+            rand.nextBytes(hashes[ii]);
+            List<byte[]> items = randomScripts(rand, numItems);
+            filters[ii] = encode(hashes[ii], items);
+            if (ii == 0)
+                sample = items;
+        }
+
+        GolombFilter check = new GolombFilter(hashes[0], filters[0]);
+        if (!check.matchAny(Arrays.asList(sample.get(numItems / 2)))) {
+            System.err.println("FAILED: item not found in its filter");
+            System.exit(1);
+        }
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            int matches = 0;
+            long start = System.nanoTime();
+            for (int ii = 0; ii < NUM_FILTERS; ++ii)
+                if (new GolombFilter(hashes[ii], filters[ii]).matchAny(scripts))
+                    ++matches;
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format
+                               ("round %d: %d scripts x %d items: " +
+                                "%.1f usec/filter, %d false matches",
+                                round, numScripts, numItems,
+                                nanos / 1000.0 / NUM_FILTERS, matches));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Wallet;
+
+// Collects the keys produced by the HD chains and adds them to the
+// wallet in one call.  Every Wallet.addKeys call makes the PeerGroup
+// recalculate the bloom filter and resend it to every connected
+// peer, so adding the receive and change chain keys separately
+// doubles the work (and more with several accounts).
+//
+public class KeyBatcher {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(KeyBatcher.class);
+
+    // These mirror the PeerGroup defaults; they are only used to
+    // estimate how many bytes each filter resend costs.
+    private static final double BLOOM_FP_RATE = 0.0005;
+    private static final int MAX_FILTER_BYTES = 36000;
+    private static final int FILTER_OVERHEAD_BYTES = 9 + 24;	// + header
+
+    private ArrayList<ECKey>	mPending = new ArrayList<ECKey>();
+
+    private int					mNumRebuilds = 0;
+    private long				mNumKeys = 0;
+    private long				mBytesResent = 0;
+
+    // Safe to call from any thread; the HD chains append their new
+    // keys to a list of the caller's, which is then handed over here.
+    public synchronized void add(List<ECKey> keys) {
+        mPending.addAll(keys);
+    }
+
+    // Adds all pending keys to the wallet in a single batch, which
+    // triggers at most one filter recalculation.  The peerGroup may
+    // be null if it hasn't been started yet.  Returns the number of
+    // keys the wallet didn't already have.
+    public synchronized int flush(Wallet wallet, PeerGroup peerGroup) {
+        if (mPending.size() == 0)
+            return 0;
+
+        // The wallet hands the list to its listeners, so give it a copy.
+        ArrayList<ECKey> keys = new ArrayList<ECKey>(mPending);
+        mPending.clear();
+
+        int numPending = keys.size();
+        int added = wallet.addKeys(keys);
+
+        if (added == 0)
+            return 0;
+
+        int numPeers =
+            peerGroup == null ? 0 : peerGroup.getConnectedPeers().size();
+        long bytes = (long) estimateFilterSize(wallet) * numPeers;
+
+        ++mNumRebuilds;
+        mNumKeys += added;
+        mBytesResent += bytes;
+
+        mLogger.info(String.format("filter rebuild %d: added %d of %d keys, " +
+                                   "~%d bytes to %d peers " +
+                                   "(total %d keys, ~%d bytes)",
+                                   mNumRebuilds, added, numPending,
+                                   bytes, numPeers,
+                                   mNumKeys, mBytesResent));
+        return added;
+    }
+
+    public synchronized int getNumRebuilds() {
+        return mNumRebuilds;
+    }
+
+    public synchronized long getBytesResent() {
+        return mBytesResent;
+    }
+
+    // Same sizing rule as BloomFilter, see BIP 37.
+    private static int estimateFilterSize(Wallet wallet) {
+        int elements = wallet.getBloomFilterElementCount();
+        double bits = -1 / (Math.pow(Math.log(2), 2)) *
+            elements * Math.log(BLOOM_FP_RATE);
+        int size = (int) Math.min(bits, MAX_FILTER_BYTES * 8) / 8;
+        return size + FILTER_OVERHEAD_BYTES;
+    }
+}
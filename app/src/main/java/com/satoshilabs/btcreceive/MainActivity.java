@@ -218,20 +218,7 @@ public class MainActivity extends BaseWalletActivity {
             if (mSyncProgressDialog == null)
                 showSyncProgressDialog();
 
-            int pctdone = (int) mWalletService.getPercentDone();
-
-            String timeLeft = formatTimeLeft(mWalletService.getMsecsLeft());
-
-            updateSyncStats(String.format("%d%%", pctdone),
-                            String.format("%d", mWalletService.getBlocksToGo()),
-                            mDateFormatter.format(mWalletService.getScanDate()),
-                            timeLeft);
-
-            if (mSyncDialogView != null) {
-                ProgressBar pb =
-                    (ProgressBar) mSyncDialogView.findViewById(R.id.progress_bar);
-                pb.setProgress(pctdone);
-            }
+            updateSyncProgress();
             break;
         case READY:
             if (mStateProgressDialog != null) {
@@ -253,6 +240,38 @@ public class MainActivity extends BaseWalletActivity {
         }
     }
 
+	@Override
+    protected void onWalletProgressChanged() {
+        if (mWalletService.getState() == WalletService.State.SYNCING &&
+            mSyncProgressDialog != null)
+            updateSyncProgress();
+    }
+
+    private void updateSyncProgress() {
+        int pctdone = (int) mWalletService.getPercentDone();
+
+        String timeLeft = formatTimeLeft(mWalletService.getMsecsLeft());
+
+        String rate;
+        if (mWalletService.isSyncStalled())
+            rate = "stalled";
+        else
+            rate = String.format("%.1f blk/s (peak %.1f)",
+                                 mWalletService.getSmoothedBlocksPerSec(),
+                                 mWalletService.getPeakBlocksPerSec());
+
+        updateSyncStats(String.format("%d%%", pctdone),
+                        String.format("%d", mWalletService.getBlocksToGo()),
+                        mDateFormatter.format(mWalletService.getScanDate()),
+                        timeLeft, rate);
+
+        if (mSyncDialogView != null) {
+            ProgressBar pb =
+                (ProgressBar) mSyncDialogView.findViewById(R.id.progress_bar);
+            pb.setProgress(pctdone);
+        }
+    }
+
 	@Override
     protected void onRateChanged() {
     }
@@ -389,7 +408,8 @@ public class MainActivity extends BaseWalletActivity {
     }
 
     private void updateSyncStats(String pctstr, String blksstr,
-                                 String datestr, String cmplstr) {
+                                 String datestr, String cmplstr,
+                                 String ratestr) {
         if (mSyncDialogView == null)
             return;
 
@@ -404,6 +424,9 @@ public class MainActivity extends BaseWalletActivity {
 
         TextView cmpltv = (TextView) mSyncDialogView.findViewById(R.id.scan_cmpl);
         cmpltv.setText(cmplstr);
+
+        TextView ratetv = (TextView) mSyncDialogView.findViewById(R.id.sync_rate);
+        ratetv.setText(ratestr);
     }
 
     public void exitApp(View view) {
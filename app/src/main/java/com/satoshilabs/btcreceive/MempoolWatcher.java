@@ -0,0 +1,236 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerEventListener;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+
+// Spots payments to the addresses we're showing as soon as a peer
+// hands us the transaction, without waiting for the wallet to take
+// it and the next wallet-data-changed.  The receive screen watches
+// the address it displays; watches stay around for a while after it
+// is taken down so late payments are still caught.  Addresses paid
+// by the wallet's pending transactions are watched until those
+// confirm, since a payment in flight is often followed by a top up
+// or a replacement.  A match is broadcast as "payment-seen", and the
+// time from the transaction arriving to the UI reporting it shown is
+// recorded.
+//
+public class MempoolWatcher {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(MempoolWatcher.class);
+
+    // How long an address stays watched after it was shown.
+    private static final long WATCH_MSECS = 60 * 60 * 1000;
+
+    private final NetworkParameters			mParams;
+    private final LocalBroadcastManager		mLBM;
+
+    // hash160 hex -> when the watch expires
+    private final HashMap<String, Long>		mWatched =
+        new HashMap<String, Long>();
+    // Pending payments to us -> the hash160 hex they pay
+    private final HashMap<Sha256Hash, List<String>>	mPending =
+        new HashMap<Sha256Hash, List<String>>();
+    // Transactions we've announced -> when they arrived (nanos);
+    // forgotten with the watches.
+    private final HashMap<Sha256Hash, Long>	mSeen =
+        new HashMap<Sha256Hash, Long>();
+    private final HashSet<Sha256Hash>		mShown = new HashSet<Sha256Hash>();
+
+    private long	mNumShown = 0;
+    private long	mTotalLatencyNanos = 0;
+    private long	mMaxLatencyNanos = 0;
+    private long	mLastLatencyNanos = 0;
+
+    public MempoolWatcher(Context context, NetworkParameters params) {
+        mParams = params;
+        mLBM = LocalBroadcastManager.getInstance(context);
+    }
+
+    public synchronized void watch(Address addr) {
+        expire();
+        mWatched.put(Utils.bytesToHexString(addr.getHash160()),
+                     System.currentTimeMillis() + WATCH_MSECS);
+    }
+
+    // Watches the wallet's addresses tx pays until unwatchPending.
+    public synchronized void watchPending(Transaction tx, Wallet wallet) {
+        List<String> hashes = new ArrayList<String>();
+        for (TransactionOutput out : tx.getOutputs()) {
+            try {
+                Script script = out.getScriptPubKey();
+                if (out.isMine(wallet) && script.isSentToAddress())
+                    hashes.add(Utils.bytesToHexString(script.getPubKeyHash()));
+            } catch (ScriptException ex) {
+                // Not a script we could pay to.
+            }
+        }
+        if (!hashes.isEmpty())
+            mPending.put(tx.getHash(), hashes);
+    }
+
+    // The transaction confirmed or died.
+    public synchronized void unwatchPending(Sha256Hash txhash) {
+        mPending.remove(txhash);
+    }
+
+    // The wallet's transactions were cleared.
+    public synchronized void clear() {
+        mWatched.clear();
+        mPending.clear();
+        mSeen.clear();
+        mShown.clear();
+    }
+
+    private boolean isWatched(String hash160) {
+        if (mWatched.containsKey(hash160))
+            return true;
+        for (List<String> hashes : mPending.values())
+            if (hashes.contains(hash160))
+                return true;
+        return false;
+    }
+
+    // Listens to every peer; the matching is cheap enough to do on
+    // the peer's thread.
+    public PeerEventListener listener() {
+        return mListener;
+    }
+
+    private PeerEventListener mListener = new AbstractPeerEventListener() {
+            @Override
+            public void onTransaction(Peer peer, Transaction tx) {
+                check(tx);
+            }
+        };
+
+    private void check(Transaction tx) {
+        long arrived = System.nanoTime();
+        Address matched = null;
+        long amount = 0;
+        synchronized (this) {
+            // The pending payments themselves are already the wallet's.
+            if ((mWatched.isEmpty() && mPending.isEmpty()) ||
+                mSeen.containsKey(tx.getHash()) ||
+                mPending.containsKey(tx.getHash()))
+                return;
+            expire();
+            for (TransactionOutput out : tx.getOutputs()) {
+                try {
+                    Script script = out.getScriptPubKey();
+                    if (!script.isSentToAddress())
+                        continue;
+                    byte[] hash160 = script.getPubKeyHash();
+                    if (!isWatched(Utils.bytesToHexString(hash160)))
+                        continue;
+                    if (matched == null)
+                        matched = new Address(mParams, hash160);
+                    amount += out.getValue().longValue();
+                } catch (ScriptException ex) {
+                    // Not a script we could pay to.
+                }
+            }
+            if (matched == null)
+                return;
+            mSeen.put(tx.getHash(), arrived);
+        }
+
+        mLogger.info(String.format("payment of %d to %s seen in %s",
+                                   amount, matched.toString(),
+                                   tx.getHashAsString()));
+        Intent intent = new Intent("payment-seen");
+        intent.putExtra("address", matched.toString());
+        intent.putExtra("txhash", tx.getHashAsString());
+        intent.putExtra("amount", amount);
+        mLBM.sendBroadcast(intent);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> it = mWatched.values().iterator();
+        while (it.hasNext())
+            if (it.next() < now)
+                it.remove();
+
+        // A payment is shown long before its address stops being
+        // watched.
+        long cutoff = System.nanoTime() - WATCH_MSECS * 1000000L;
+        Iterator<Map.Entry<Sha256Hash, Long>> sit = mSeen.entrySet().iterator();
+        while (sit.hasNext()) {
+            Map.Entry<Sha256Hash, Long> entry = sit.next();
+            if (entry.getValue() - cutoff < 0) {
+                mShown.remove(entry.getKey());
+                sit.remove();
+            }
+        }
+    }
+
+    // The UI has shown the payment; records the latency once.
+    public synchronized void shown(Sha256Hash txhash) {
+        Long arrived = mSeen.get(txhash);
+        if (arrived == null || !mShown.add(txhash))
+            return;
+        long latency = System.nanoTime() - arrived;
+        ++mNumShown;
+        mTotalLatencyNanos += latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        mLastLatencyNanos = latency;
+        mLogger.info(String.format("payment shown %.1f msecs after arrival",
+                                   latency / 1e6));
+    }
+
+    public synchronized long getNumShown() {
+        return mNumShown;
+    }
+
+    public synchronized double getMeanLatencyMsecs() {
+        return mNumShown == 0 ? 0.0 : mTotalLatencyNanos / 1e6 / mNumShown;
+    }
+
+    public synchronized double getMaxLatencyMsecs() {
+        return mMaxLatencyNanos / 1e6;
+    }
+
+    public synchronized double getLastLatencyMsecs() {
+        return mLastLatencyNanos / 1e6;
+    }
+}
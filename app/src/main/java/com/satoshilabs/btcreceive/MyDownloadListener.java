@@ -17,7 +17,7 @@
 package com.satoshilabs.btcreceive;
 
 // HACKED version of DownloadListener which reports progress more
-// frequently.
+// frequently, and measures download throughput.
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,8 +28,10 @@ import com.google.bitcoin.core.Peer;
 
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>An implementation of {@link AbstractPeerEventListener} that listens to chain download events and tracks progress
@@ -38,12 +40,28 @@ import java.util.concurrent.Semaphore;
  */
 public class MyDownloadListener extends AbstractPeerEventListener {
 
-    private class ProgressRecord {
-        public long		mTimestamp;
-        public int		mBlocksLeft;
-        public ProgressRecord(long timestamp, int blocksLeft) {
-            this.mTimestamp = timestamp;
-            this.mBlocksLeft = blocksLeft;
+    /**
+     * Blocks and bytes a peer has served us during this download.
+     */
+    public static class PeerStats {
+        public final String address;
+        public int blocks = 0;
+        public long bytes = 0;
+        public long firstTime = 0;
+        public long lastTime = 0;
+
+        public PeerStats(String address) {
+            this.address = address;
+        }
+
+        public double blocksPerSecond() {
+            long msecs = lastTime - firstTime;
+            return msecs <= 0 ? 0 : blocks * 1000.0 / msecs;
+        }
+
+        public double bytesPerSecond() {
+            long msecs = lastTime - firstTime;
+            return msecs <= 0 ? 0 : bytes * 1000.0 / msecs;
         }
     }
 
@@ -53,15 +71,37 @@ public class MyDownloadListener extends AbstractPeerEventListener {
     private long lastUpdateTime = 0;
     private Semaphore done = new Semaphore(0);
     private boolean caughtUp = false;
-    private LinkedList<ProgressRecord> progress = new LinkedList<ProgressRecord>();
+    private HashMap<Peer, PeerStats> peerStats = new HashMap<Peer, PeerStats>();
+    private volatile long lastBlockTime = 0;
+
+    // Totals so far, sampled into a fixed ring every SAMPLE_MSECS. The rates over the ring are the instantaneous
+    // throughput; each sample also feeds the exponentially weighted rates the time estimate uses.
+    private long totalBlocks = 0;
+    private long totalBytes = 0;
+    private final long[] sampleTimes = new long[RING_SIZE];
+    private final long[] sampleBlocks = new long[RING_SIZE];
+    private final long[] sampleBytes = new long[RING_SIZE];
+    private int sampleHead = 0;		// index of the newest sample
+    private int numSamples = 0;
+    private double smoothedBlocksPerSec = 0;
+    private double smoothedBytesPerSec = 0;
+    private double peakBlocksPerSec = 0;
 
-    private static final long PROGRESS_GRANULARITY = 10 * 1000;
+    private static final int RING_SIZE = 16;
+    private static final long SAMPLE_MSECS = 1000;
+    // Time constant of the smoothing; older rates fade by 1/e each TAU_MSECS.
+    private static final double TAU_MSECS = 30 * 1000;
+
+    /** A download which hasn't had a block for this long is stalled. */
+    public static final long STALL_MSECS = 30 * 1000;
 
     @Override
     public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+        lastBlockTime = System.currentTimeMillis();
         startDownload(blocksLeft);
         originalBlocksLeft = blocksLeft;
         if (blocksLeft == 0) {
+            caughtUp = true;
             doneDownload();
             done.release();
         }
@@ -72,6 +112,11 @@ public class MyDownloadListener extends AbstractPeerEventListener {
         if (caughtUp)
             return;
 
+        long now = System.currentTimeMillis();
+        lastBlockTime = now;
+        PeerStats stats = recordBlock(peer, block, now);
+        sample(now, block.getMessageSize());
+
         if (blocksLeft == 0) {
             caughtUp = true;
             doneDownload();
@@ -81,52 +126,142 @@ public class MyDownloadListener extends AbstractPeerEventListener {
         if (blocksLeft < 0 || originalBlocksLeft <= 0)
             return;
 
-        long now = System.currentTimeMillis();
-
-        long msecsLeft = estimateComplete(now, blocksLeft);
+        long msecsLeft = estimateComplete(blocksLeft);
 
         double pct = 100.0 - (100.0 * (blocksLeft / (double) originalBlocksLeft));
         long delta = now - lastUpdateTime;
         if (delta >= 500) {
             progress(pct, blocksLeft, new Date(block.getTimeSeconds() * 1000), msecsLeft);
+            peerThroughput(stats);
             lastPercent = (int) pct;
             lastUpdateTime = now;
         }
     }
 
-    private long estimateComplete(long now, int blocksLeft) {
-        // Only record progress every PROGRESS_GRANULARITY msecs.
-        if (progress.size() == 0) {
-            progress.add(new ProgressRecord(now, blocksLeft));
-        } else {
-            ProgressRecord newrec = progress.getLast();
-            if (now - newrec.mTimestamp >= PROGRESS_GRANULARITY)
-                progress.add(new ProgressRecord(now, blocksLeft));
+    private synchronized PeerStats recordBlock(Peer peer, Block block, long now) {
+        PeerStats stats = peerStats.get(peer);
+        if (stats == null) {
+            stats = new PeerStats(peer.getAddress().toString());
+            stats.firstTime = now;
+            peerStats.put(peer, stats);
         }
+        ++stats.blocks;
+        stats.bytes += block.getMessageSize();
+        stats.lastTime = now;
+        return stats;
+    }
 
-        // Prune records that are too old.
-        while (progress.size() > 1) {
-            ProgressRecord oldrec = progress.getFirst();
-            long deltaBlocks = oldrec.mBlocksLeft - blocksLeft;
-            if (deltaBlocks < blocksLeft)
-                break;
-            progress.removeFirst();
-        }
+    /**
+     * Returns a copy of the per-peer statistics for this download, keyed by peer address.
+     */
+    public synchronized Map<String, PeerStats> getPeerStats() {
+        Map<String, PeerStats> copy = new HashMap<String, PeerStats>();
+        for (PeerStats stats : peerStats.values())
+            copy.put(stats.address, stats);
+        return copy;
+    }
+
+    /**
+     * Milliseconds since the last block arrived, or since the download started.
+     */
+    public long getMsecsSinceLastBlock() {
+        return lastBlockTime == 0 ? 0 : System.currentTimeMillis() - lastBlockTime;
+    }
+
+    /**
+     * Starts the stall timer over, e.g. after switching download peers.
+     */
+    public void restartStallTimer() {
+        lastBlockTime = System.currentTimeMillis();
+    }
+
+    public boolean isCaughtUp() {
+        return caughtUp;
+    }
+
+    /**
+     * True if we're still downloading but no block has arrived for {@link #STALL_MSECS}.
+     */
+    public boolean isStalled() {
+        return !caughtUp && getMsecsSinceLastBlock() >= STALL_MSECS;
+    }
 
-        // Look at the oldest record in the queue.
-        ProgressRecord prec = progress.getFirst();
+    private synchronized void sample(long now, int bytes) {
+        ++totalBlocks;
+        totalBytes += bytes;
 
-        long deltaTime = now - prec.mTimestamp;
-        int deltaBlocks = prec.mBlocksLeft - blocksLeft;
+        if (numSamples > 0) {
+            long dt = now - sampleTimes[sampleHead];
+            if (dt < SAMPLE_MSECS)
+                return;
+            double blocksPerSec = (totalBlocks - sampleBlocks[sampleHead]) * 1000.0 / dt;
+            double bytesPerSec = (totalBytes - sampleBytes[sampleHead]) * 1000.0 / dt;
+            if (numSamples == 1) {
+                smoothedBlocksPerSec = blocksPerSec;
+                smoothedBytesPerSec = bytesPerSec;
+            } else {
+                // Weight by the time covered, so irregular samples smooth the same.
+                double alpha = 1.0 - Math.exp(-dt / TAU_MSECS);
+                smoothedBlocksPerSec += alpha * (blocksPerSec - smoothedBlocksPerSec);
+                smoothedBytesPerSec += alpha * (bytesPerSec - smoothedBytesPerSec);
+            }
+            sampleHead = (sampleHead + 1) % RING_SIZE;
+        }
+        sampleTimes[sampleHead] = now;
+        sampleBlocks[sampleHead] = totalBlocks;
+        sampleBytes[sampleHead] = totalBytes;
+        numSamples = Math.min(numSamples + 1, RING_SIZE);
+        peakBlocksPerSec = Math.max(peakBlocksPerSec, getBlocksPerSec());
+    }
 
-        // Make sure we have some delta.
-        if (deltaTime == 0 || deltaBlocks == 0)
+    // Rate of the given totals over the samples in the ring.
+    private double windowRate(long[] totals) {
+        if (numSamples < 2)
             return 0;
+        int oldest = (sampleHead - numSamples + 1 + RING_SIZE) % RING_SIZE;
+        long dt = sampleTimes[sampleHead] - sampleTimes[oldest];
+        return dt <= 0 ? 0 : (totals[sampleHead] - totals[oldest]) * 1000.0 / dt;
+    }
+
+    /**
+     * Blocks per second over the last few seconds; zero while stalled.
+     */
+    public synchronized double getBlocksPerSec() {
+        return isStalled() ? 0 : windowRate(sampleBlocks);
+    }
+
+    /**
+     * Bytes per second over the last few seconds; zero while stalled.
+     */
+    public synchronized double getBytesPerSec() {
+        return isStalled() ? 0 : windowRate(sampleBytes);
+    }
+
+    /**
+     * Exponentially weighted blocks per second.
+     */
+    public synchronized double getSmoothedBlocksPerSec() {
+        return smoothedBlocksPerSec;
+    }
 
-        double blocksPerMillisecond = (double) deltaBlocks / (double) deltaTime;
-        double mSecLeft = (double) blocksLeft / blocksPerMillisecond;
+    /**
+     * Exponentially weighted bytes per second.
+     */
+    public synchronized double getSmoothedBytesPerSec() {
+        return smoothedBytesPerSec;
+    }
+
+    /**
+     * The highest blocks per second seen over the ring during this download.
+     */
+    public synchronized double getPeakBlocksPerSec() {
+        return peakBlocksPerSec;
+    }
 
-        return (long) mSecLeft;
+    private synchronized long estimateComplete(int blocksLeft) {
+        if (smoothedBlocksPerSec <= 0)
+            return 0;
+        return (long) (blocksLeft * 1000.0 / smoothedBlocksPerSec);
     }
 
     /**
@@ -143,6 +278,15 @@ public class MyDownloadListener extends AbstractPeerEventListener {
                                msecsLeft / 1000));
     }
 
+    /**
+     * Called along with progress with the statistics of the peer the last block came from.
+     */
+    protected void peerThroughput(PeerStats stats) {
+        log.debug(String.format("Peer %s: %d blocks, %.1f blocks/sec, %.0f bytes/sec",
+                                stats.address, stats.blocks,
+                                stats.blocksPerSecond(), stats.bytesPerSecond()));
+    }
+
     /**
      * Called when download is initiated.
      *
@@ -166,4 +310,11 @@ public class MyDownloadListener extends AbstractPeerEventListener {
     public void await() throws InterruptedException {
         done.acquire();
     }
+
+    /**
+     * Wait up to msecs for the chain to be downloaded; returns true if it was.
+     */
+    public boolean await(long msecs) throws InterruptedException {
+        return done.tryAcquire(msecs, TimeUnit.MILLISECONDS);
+    }
 }
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.satoshilabs.btcreceive;
+
+// HACKED version of SPVBlockStore with a configurable number of
+// headers, a cache warmed from the chain head when it's opened and
+// counters for opening and lookups.
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
+ * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>This version takes the number of headers to keep. If an existing file holds a different number, the most
+ * recent headers are copied into a file of the new size.</p>
+ */
+public class MySPVBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MySPVBlockStore.class);
+
+    /** The default number of headers that will be stored in the ring buffer. */
+    public static final int DEFAULT_NUM_HEADERS = 5000;
+    public static final String HEADER_MAGIC = "SPVB";
+
+    // Slightly more than the difficulty transition period.
+    private static final int BLOCK_CACHE_SIZE = 2050;
+
+    protected volatile MappedByteBuffer buffer;
+    protected int numHeaders;
+    protected NetworkParameters params;
+
+    protected ReentrantLock lock = Threading.lock("MySPVBlockStore");
+
+    // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
+    // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
+    //
+    // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
+    // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
+    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
+    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > BLOCK_CACHE_SIZE;
+        }
+    };
+    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
+    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
+    // must efficiently respond.
+    //
+    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
+    // provide the removeEldestEntry control.
+    protected static final Object notFoundMarker = new Object();
+    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
+            return size() > 100;  // This was chosen arbitrarily.
+        }
+    };
+    // Used to stop other applications/processes from opening the store.
+    protected FileLock fileLock = null;
+    protected RandomAccessFile randomAccessFile = null;
+
+    // Metrics.
+    private long openMsecs = 0;
+    private long warmMsecs = 0;
+    private long numGets = 0;
+    private long numCacheHits = 0;
+    private long numNotFound = 0;
+    private long numRecordsScanned = 0;
+    private long getNanos = 0;
+
+    public MySPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store holding numHeaders headers. Will create the given file if it's
+     * missing, resize it if it holds a different number of headers, and warm the block cache from the chain head.
+     * A file which isn't a whole store (truncated, or not a store at all) is deleted and a new one created, so the
+     * chain starts over. This operation will block on disk.
+     */
+    public MySPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
+        checkNotNull(file);
+        checkArgument(numHeaders > 0);
+        this.params = checkNotNull(params);
+        long start = System.currentTimeMillis();
+        List<StoredBlock> migrate = null;
+        if (file.exists() && !isIntact(file)) {
+            log.warn("header store " + file + " is damaged (" + file.length() + " bytes), starting over");
+            if (!file.delete())
+                throw new BlockStoreException("Could not delete damaged header store " + file);
+        }
+        if (file.exists() && file.length() != getFileSize(numHeaders))
+            migrate = readRecent(params, file, numHeaders);
+        try {
+            this.numHeaders = numHeaders;
+            boolean exists = file.exists();
+            // Set up the backing file.
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            long fileSize = getFileSize();
+            if (!exists) {
+                log.info("Creating new SPV block chain file " + file + " for " + numHeaders + " headers");
+                randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() != fileSize) {
+                throw new BlockStoreException("File size on disk does not match expected size: " +
+                        randomAccessFile.length() + " vs " + fileSize);
+            }
+
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+
+            // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
+            // efficient times, which may mean that until the map is deallocated the data on disk is randomly
+            // inconsistent. However the only process accessing it is us, via this mapping, so our own view will
+            // always be correct. Once we establish the mmap the underlying file and channel can go away. Note that
+            // the details of mmapping vary between platforms.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            // Check or initialize the header bytes to ensure we don't try to open some random file.
+            byte[] header;
+            if (exists) {
+                header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+            } else {
+                initNewStore(params, migrate);
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        }
+        openMsecs = System.currentTimeMillis() - start;
+        warm();
+        log.info(String.format("opened %d header store in %d msecs, warmed in %d msecs",
+                               numHeaders, openMsecs, warmMsecs));
+    }
+
+    private void initNewStore(NetworkParameters params, @Nullable List<StoredBlock> migrate) throws Exception {
+        byte[] header;
+        header = HEADER_MAGIC.getBytes("US-ASCII");
+        buffer.put(header);
+        // Insert the genesis block.
+        lock.lock();
+        try {
+            setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+        } finally {
+            lock.unlock();
+        }
+        if (migrate != null && !migrate.isEmpty()) {
+            // Oldest first, so the ring ends at the chain head.
+            for (StoredBlock block : migrate)
+                put(block);
+            setChainHead(migrate.get(migrate.size() - 1));
+            log.info("copied " + migrate.size() + " headers into resized store");
+            return;
+        }
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    /**
+     * Whether the file holds a whole number of headers after the prologue, at least one, and starts with the magic.
+     */
+    private static boolean isIntact(File file) throws BlockStoreException {
+        long length = file.length();
+        if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+            return false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] header = new byte[4];
+                raf.readFully(header);
+                return new String(header, "US-ASCII").equals(HEADER_MAGIC);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Reads up to max of the most recent headers from an intact store of another size, oldest first, and deletes the
+     * file so it can be recreated. If the old file can't be read the headers are simply lost and will be downloaded again.
+     */
+    private static List<StoredBlock> readRecent(NetworkParameters params, File file, int max) {
+        ArrayList<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        long oldHeaders = (file.length() - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        log.info("resizing header store from " + oldHeaders + " to " + max + " headers");
+        try {
+            MySPVBlockStore old = new MySPVBlockStore(params, file, (int) oldHeaders);
+            try {
+                StoredBlock block = old.getChainHead();
+                while (block != null && blocks.size() < max) {
+                    blocks.add(block);
+                    block = block.getPrev(old);
+                }
+            } finally {
+                old.close();
+            }
+        } catch (BlockStoreException e) {
+            log.warn("could not read old header store: " + e.toString());
+            blocks.clear();
+        }
+        if (!file.delete())
+            log.warn("could not delete old header store " + file);
+        Collections.reverse(blocks);
+        return blocks;
+    }
+
+    /**
+     * Fills the block cache by walking back from the chain head, so the lookups made while connecting the next
+     * blocks (and at difficulty transitions) don't have to scan the ring.
+     */
+    private void warm() throws BlockStoreException {
+        long start = System.currentTimeMillis();
+        StoredBlock block = getChainHead();
+        int count = 1;
+        while (block != null && count < BLOCK_CACHE_SIZE) {
+            block = block.getPrev(this);
+            ++count;
+        }
+        warmMsecs = System.currentTimeMillis() - start;
+    }
+
+    /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
+    public int getFileSize() {
+        return getFileSize(numHeaders);
+    }
+
+    private static int getFileSize(int numHeaders) {
+        return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
+    }
+
+    public int getNumHeaders() {
+        return numHeaders;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int cursor = getRingCursor(buffer);
+            if (cursor == getFileSize()) {
+                // Wrapped around.
+                cursor = FILE_PROLOGUE_BYTES;
+            }
+            buffer.position(cursor);
+            Sha256Hash hash = block.getHeader().getHash();
+            notFoundCache.remove(hash);
+            buffer.put(hash.getBytes());
+            block.serializeCompact(buffer);
+            setRingCursor(buffer, buffer.position());
+            blockCache.put(hash, block);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        long start = System.nanoTime();
+        try {
+            ++numGets;
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null) {
+                ++numCacheHits;
+                return cacheHit;
+            }
+            if (notFoundCache.get(hash) != null) {
+                ++numNotFound;
+                return null;
+            }
+            // Unused records are zeros, genesis's parent mustn't match them.
+            if (hash.equals(Sha256Hash.ZERO_HASH)) {
+                ++numNotFound;
+                return null;
+            }
+
+            // Starting from the current tip of the ring work backwards until we have either found the block or
+            // wrapped around.
+            final int fileSize = getFileSize();
+            int cursor = getRingCursor(buffer);
+            if (cursor == fileSize) {
+                // A full ring that hasn't wrapped yet; the scan below only stops on a record boundary.
+                cursor = FILE_PROLOGUE_BYTES;
+            }
+            final int startingPoint = cursor;
+            final byte[] targetHashBytes = hash.getBytes();
+            byte[] scratch = new byte[32];
+            do {
+                cursor -= RECORD_SIZE;
+                if (cursor < FILE_PROLOGUE_BYTES) {
+                    // We hit the start, so wrap around.
+                    cursor = fileSize - RECORD_SIZE;
+                }
+                ++numRecordsScanned;
+                // Cursor is now at the start of the next record to check, so read the hash and compare it.
+                buffer.position(cursor);
+                buffer.get(scratch);
+                if (Arrays.equals(scratch, targetHashBytes)) {
+                    // Found the target.
+                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                    blockCache.put(hash, storedBlock);
+                    return storedBlock;
+                }
+            } while (cursor != startingPoint);
+            // Not found.
+            ++numNotFound;
+            notFoundCache.put(hash, notFoundMarker);
+            return null;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } finally {
+            getNanos += System.nanoTime() - start;
+            lock.unlock();
+        }
+    }
+
+    protected StoredBlock lastChainHead = null;
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (lastChainHead == null) {
+                byte[] headHash = new byte[32];
+                buffer.position(8);
+                buffer.get(headHash);
+                Sha256Hash hash = new Sha256Hash(headHash);
+                StoredBlock block = get(hash);
+                if (block == null)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+                lastChainHead = block;
+            }
+            return lastChainHead;
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            lastChainHead = chainHead;
+            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            buffer.position(8);
+            buffer.put(headHash);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        try {
+            logStats();
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public long getOpenMsecs() {
+        return openMsecs + warmMsecs;
+    }
+
+    public long getNumGets() {
+        lock.lock();
+        try { return numGets; } finally { lock.unlock(); }
+    }
+
+    public long getNumCacheHits() {
+        lock.lock();
+        try { return numCacheHits; } finally { lock.unlock(); }
+    }
+
+    public long getNumRecordsScanned() {
+        lock.lock();
+        try { return numRecordsScanned; } finally { lock.unlock(); }
+    }
+
+    public void logStats() {
+        lock.lock();
+        try {
+            log.info(String.format("header store: %d gets, %d cache hits, %d not found, %d records scanned, %d msecs",
+                                   numGets, numCacheHits, numNotFound, numRecordsScanned, getNanos / 1000000));
+        } finally { lock.unlock(); }
+    }
+
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // File format:
+    //   4 header bytes = "SPVB"
+    //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
+    //   32 bytes for the hash of the chain head
+    //
+    // For each header (128 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    protected static final int FILE_PROLOGUE_BYTES = 1024;
+
+    /** Returns the offset from the file start where the latest block should be written (end of prev block). */
+    private int getRingCursor(ByteBuffer buffer) {
+        int c = buffer.getInt(4);
+        checkState(c >= FILE_PROLOGUE_BYTES, "Integer overflow");
+        return c;
+    }
+
+    private void setRingCursor(ByteBuffer buffer, int newCursor) {
+        checkArgument(newCursor >= 0);
+        buffer.putInt(4, newCursor);
+    }
+}
@@ -16,16 +16,15 @@
 
 package com.satoshilabs.btcreceive;
 
-import android.annotation.SuppressLint;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.net.discovery.DnsDiscovery;
 import com.google.bitcoin.store.BlockStoreException;
-import com.google.bitcoin.store.SPVBlockStore;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.wallet.Protos;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,18 +32,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * <p>Utility class that wraps the boilerplate needed to set up a new SPV bitcoinj app. Instantiate it with a directory
  * and file prefix, optionally configure a few things, then use start or startAndWait. The object will construct and
- * configure a {@link BlockChain}, {@link SPVBlockStore}, {@link Wallet} and {@link PeerGroup}. Depending on the value
+ * configure a {@link BlockChain}, {@link MySPVBlockStore}, {@link Wallet} and {@link PeerGroup}. Depending on the value
  * of the blockingStartup property, startup will be considered complete once the block chain has fully synchronized,
  * so it can take a while.</p>
  *
@@ -71,7 +73,7 @@ public class MyWalletAppKit extends AbstractIdleService {
     private final String filePrefix;
     private final NetworkParameters params;
     private volatile BlockChain vChain;
-    private volatile SPVBlockStore vStore;
+    private volatile MySPVBlockStore vStore;
     private volatile Wallet vWallet;
     private volatile PeerGroup vPeerGroup;
 
@@ -79,15 +81,32 @@ public class MyWalletAppKit extends AbstractIdleService {
     private volatile File vWalletFile;
 
     private boolean useAutoSave = true;
+    private AutosavePolicy autosavePolicy = new AutosavePolicy();
+    private boolean isSynchronized = false;
+    private TransactionArchive archive;
+    private int archiveDepth = 0;
     private PeerAddress[] peerAddresses;
+    private List<PeerAddress> seedPeers;
+    private PeerCache peerCache;
     private MyDownloadListener downloadListener;
     private boolean autoStop = true;
     private InputStream checkpoints;
+    private CheckpointIndex checkpointIndex;
+    private int headerStoreCapacity = MySPVBlockStore.DEFAULT_NUM_HEADERS;
+    private FilterSource filterSource;
+    private volatile CompactFilterScanner vFilterScanner;
+    private ElectrumClient indexer;
+    private volatile ElectrumSync vIndexerSync;
     private boolean blockingStartup = true;
     private String userAgent, version;
     private final KeyCrypter keyCrypter;
 
     private final long scanTime;
+    private long restartTime;
+
+    // If the download stalls while other peers are connected we drop the download peer, and the PeerGroup
+    // continues the download from another peer.
+    private static final long STALL_CHECK_MSECS = 10 * 1000;
 
     public MyWalletAppKit(NetworkParameters params, File directory, String filePrefix, KeyCrypter keyCrypter, long scanTime) {
         this.params = checkNotNull(params);
@@ -95,6 +114,7 @@ public class MyWalletAppKit extends AbstractIdleService {
         this.filePrefix = checkNotNull(filePrefix);
         this.keyCrypter = keyCrypter;
         this.scanTime = scanTime;
+        this.restartTime = scanTime;
     }
 
     /** Will only connect to the given addresses. Cannot be called after startup. */
@@ -104,6 +124,26 @@ public class MyWalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * Tries these peers before falling back to discovery, e.g. the peers a previous kit was connected to. Unlike
+     * {@link #setPeerNodes(PeerAddress...)} discovery stays enabled. Cannot be called after startup.
+     */
+    public MyWalletAppKit setSeedPeers(List<PeerAddress> addresses) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.seedPeers = addresses;
+        return this;
+    }
+
+    /**
+     * Scores the peers in this cache as they are used: connection attempts are timed through to the handshake, and
+     * its listener is added before the PeerGroup starts.  Cannot be called after startup.
+     */
+    public MyWalletAppKit setPeerCache(PeerCache cache) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.peerCache = checkNotNull(cache);
+        return this;
+    }
+
     /** Will only connect to localhost. Cannot be called after startup. */
     public MyWalletAppKit connectToLocalHost() {
         try {
@@ -122,6 +162,39 @@ public class MyWalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * Sets the time to scan from if the wallet's last block is missing from the chain file and the chain has to be
+     * started over, normally the account's first use.  The earlier of this and the scan time is used.  Cannot be
+     * called after startup.
+     */
+    public MyWalletAppKit setRestartTime(long time) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.restartTime = time;
+        return this;
+    }
+
+    /**
+     * Sets the autosave delays used while syncing and once synchronized, and collects the save statistics.
+     * Cannot be called after startup.
+     */
+    public MyWalletAppKit setAutosavePolicy(AutosavePolicy policy) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.autosavePolicy = checkNotNull(policy);
+        return this;
+    }
+
+    /**
+     * Sets the archive which receives pruned transactions.  If depth is greater than zero, transactions buried more
+     * than depth blocks whose outputs are all spent are moved out of the wallet when it is loaded.  The archive is
+     * cleared whenever the wallet transactions are replayed.  Cannot be called after startup.
+     */
+    public MyWalletAppKit setArchive(TransactionArchive archive, int depth) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.archive = checkNotNull(archive);
+        this.archiveDepth = depth;
+        return this;
+    }
+
     /**
      * If you want to learn about the sync process, you can provide a listener here. For instance, a
      * {@link DownloadListener} is a good choice.
@@ -146,6 +219,52 @@ public class MyWalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * If set, checkpoints are looked up in this memory mapped index instead of parsing the checkpoints stream. It
+     * can be shared by every kit the app creates.
+     */
+    public MyWalletAppKit setCheckpointIndex(CheckpointIndex index) {
+        this.checkpointIndex = checkNotNull(index);
+        return this;
+    }
+
+    /**
+     * Sets how many headers the header store keeps. More headers cost 128 bytes each on disk but let deeper reorgs
+     * and in-place rescans further back work without downloading the headers again. An existing store of another
+     * size is resized. Cannot be called after startup.
+     */
+    public MyWalletAppKit setHeaderStoreCapacity(int numHeaders) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        checkArgument(numHeaders > 0);
+        this.headerStoreCapacity = numHeaders;
+        return this;
+    }
+
+    /**
+     * Syncs with compact block filters from the given source instead of sending a bloom filter to peers. Peers then
+     * only serve headers; each new block's filter is matched locally and the block is fetched from the source if any
+     * wallet script matches. Unconfirmed transactions are not seen until they are mined. Cannot be called after
+     * startup.
+     */
+    public MyWalletAppKit setFilterSource(FilterSource source) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        checkState(indexer == null, "Cannot use both an indexer and filters");
+        this.filterSource = checkNotNull(source);
+        return this;
+    }
+
+    /**
+     * Syncs the wallet from an Electrum protocol server instead of the P2P network. The peer group is created but
+     * never started, so nothing is downloaded from peers; every wallet script is subscribed on the server and its
+     * history fetched from there. Cannot be called after startup.
+     */
+    public MyWalletAppKit setIndexer(ElectrumClient client) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        checkState(filterSource == null, "Cannot use both an indexer and filters");
+        this.indexer = checkNotNull(client);
+        return this;
+    }
+
     /**
      * If true (the default) then the startup of this service won't be considered complete until the network has been
      * brought up, peer connections established and the block chain synchronised. Therefore {@link #startAndWait()} can
@@ -171,8 +290,8 @@ public class MyWalletAppKit extends AbstractIdleService {
     /**
      * <p>Override this to load all wallet extensions if any are necessary.</p>
      *
-     * <p>When this is called, chain(), store(), and peerGroup() will return the created objects, however they are not
-     * initialized/started</p>
+     * <p>When this is called, store() will return the created object; the chain and peer group are created after the
+     * wallet is loaded.</p>
      */
     protected void addWalletExtensions() throws Exception { }
 
@@ -182,8 +301,7 @@ public class MyWalletAppKit extends AbstractIdleService {
      */
     protected void onSetupCompleted() { }
 
-    @SuppressLint("NewApi")
-	@Override
+    @Override
     protected void startUp() throws Exception {
         // Runs in a separate thread.
         if (!directory.exists()) {
@@ -198,22 +316,27 @@ public class MyWalletAppKit extends AbstractIdleService {
             vWalletFile = new File(directory, filePrefix + ".wallet");
             boolean shouldReplayWallet = vWalletFile.exists() && !chainFileExists;
 
-            vStore = new SPVBlockStore(params, chainFile);
-            if (!chainFileExists && checkpoints != null) {
-                mLogger.info(String.format("checkpoint at time %d", scanTime));
-                CheckpointManager.checkpoint(params, checkpoints, vStore, scanTime);
-            }
-            vChain = new BlockChain(params, vStore);
-            vPeerGroup = new PeerGroup(params, vChain);
-            if (this.userAgent != null)
-                vPeerGroup.setUserAgent(userAgent, version);
+            vStore = new MySPVBlockStore(params, chainFile, headerStoreCapacity);
+            if (!chainFileExists)
+                checkpointStore(scanTime);
             if (vWalletFile.exists()) {
                 walletStream = new FileInputStream(vWalletFile);
                 vWallet = new Wallet(params);
                 addWalletExtensions(); // All extensions must be present before we deserialize
                 new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(walletStream), vWallet);
-                if (shouldReplayWallet)
+                if (shouldReplayWallet) {
                     vWallet.clearTransactions(0);
+                    if (archive != null)
+                        archive.clear();
+                } else if (archive != null && archiveDepth > 0) {
+                    Protos.Wallet pruned = archive.prune(vWallet, archiveDepth);
+                    if (pruned != null) {
+                        vWallet = new Wallet(params);
+                        addWalletExtensions();
+                        new WalletProtobufSerializer().readWallet(pruned, vWallet);
+                        vWallet.saveToFile(vWalletFile);
+                    }
+                }
             } else {
                 if (keyCrypter == null)
                     vWallet = new Wallet(params);
@@ -222,26 +345,70 @@ public class MyWalletAppKit extends AbstractIdleService {
                 // vWallet.addKey(new ECKey());
                 addWalletExtensions();
             }
-            if (useAutoSave) vWallet.autosaveToFile(vWalletFile, 1, TimeUnit.SECONDS, null);
+            // An indexer shows the wallet the server's tip, which is never in the header store; the store isn't
+            // used then, so there's nothing to rewind.
+            if (chainFileExists && indexer == null)
+                rewindToWallet(chainFile);
+            vChain = new BlockChain(params, vStore);
+            vPeerGroup = new PeerGroup(params, vChain) {
+                @Override
+                protected Peer connectTo(PeerAddress address, boolean incrementMaxConnections) {
+                    if (peerCache != null)
+                        peerCache.connecting(address);
+                    return super.connectTo(address, incrementMaxConnections);
+                }
+            };
+            if (peerCache != null)
+                vPeerGroup.addEventListener(peerCache.listener());
+            if (this.userAgent != null)
+                vPeerGroup.setUserAgent(userAgent, version);
+            if (useAutoSave) startAutosave();
             // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
             // before we're actually connected the broadcast waits for an appropriate number of connections.
             if (peerAddresses != null) {
                 for (PeerAddress addr : peerAddresses) vPeerGroup.addAddress(addr);
                 peerAddresses = null;
             } else {
+                // Seeded peers are tried before discovery is used.
+                if (seedPeers != null) {
+                    mLogger.info(String.format("seeding %d peers", seedPeers.size()));
+                    for (PeerAddress addr : seedPeers) vPeerGroup.addAddress(addr);
+                    seedPeers = null;
+                }
                 vPeerGroup.addPeerDiscovery(new DnsDiscovery(params));
             }
-            vChain.addWallet(vWallet);
-            vPeerGroup.addWallet(vWallet);
+            if (indexer != null) {
+                vIndexerSync = new ElectrumSync(params, vWallet, indexer);
+            } else if (filterSource == null) {
+                vChain.addWallet(vWallet);
+                vPeerGroup.addWallet(vWallet);
+            } else {
+                // The wallet sees blocks through the scanner; peers are only asked for headers.
+                vFilterScanner = new CompactFilterScanner(vStore, vWallet, filterSource);
+                vPeerGroup.setFastCatchupTimeSecs(Long.MAX_VALUE);
+                if (!blockingStartup)
+                    vChain.addListener(filterListener);
+            }
             onSetupCompleted();
 
-            if (blockingStartup) {
+            if (vIndexerSync != null) {
+                installShutdownHook();
+                if (blockingStartup)
+                    vIndexerSync.sync();
+                vIndexerSync.start();
+            } else if (blockingStartup) {
                 vPeerGroup.startAndWait();
                 // Make sure we shut down cleanly.
                 installShutdownHook();
                 MyDownloadListener listener = (this.downloadListener != null) ? this.downloadListener : new MyDownloadListener();
                 vPeerGroup.startBlockChainDownload(listener);
-                listener.await();
+                while (!listener.await(STALL_CHECK_MSECS))
+                    checkStalled(listener);
+                if (vFilterScanner != null) {
+                    // Match the filters of all the headers we just downloaded, then keep up block by block.
+                    vFilterScanner.scan();
+                    vChain.addListener(filterListener);
+                }
             } else {
                 Futures.addCallback(vPeerGroup.start(), new FutureCallback<State>() {
                     @Override
@@ -263,6 +430,108 @@ public class MyWalletAppKit extends AbstractIdleService {
         }
     }
 
+    /**
+     * The wallet is only saved every so often, so if we were killed the header store can be ahead of the wallet and
+     * the blocks in between would never be given to it. Rewinds the store's chain head to the last block the saved
+     * wallet saw. If that block isn't in the store the store is started over from the checkpoint and the wallet
+     * transactions are replayed, as if the chain file were missing.
+     */
+    private void rewindToWallet(File chainFile) throws BlockStoreException, IOException {
+        StoredBlock head = vStore.getChainHead();
+        Sha256Hash walletHash = vWallet.getLastBlockSeenHash();
+        if (walletHash != null) {
+            if (walletHash.equals(head.getHeader().getHash()))
+                return;
+            StoredBlock block = vStore.get(walletHash);
+            if (block != null) {
+                if (block.getHeight() < head.getHeight()) {
+                    mLogger.info(String.format("rewinding chain head from %d to wallet's last block %d",
+                                               head.getHeight(), block.getHeight()));
+                    vStore.setChainHead(block);
+                }
+                return;
+            }
+        }
+
+        // Not the earliest key creation time, HDReceiver's placeholder
+        // key is always dated at the epoch.
+        long time = Math.min(scanTime, restartTime);
+        mLogger.info(String.format("wallet's last block not in chain (head %d), restarting from time %d",
+                                   head.getHeight(), time));
+        vStore.close();
+        if (!chainFile.delete())
+            throw new IOException("Could not delete " + chainFile);
+        vStore = new MySPVBlockStore(params, chainFile, headerStoreCapacity);
+        if (time > 0)
+            checkpointStore(time);
+        vWallet.clearTransactions(0);
+        vWallet.setLastBlockSeenHeight(-1);
+        vWallet.setLastBlockSeenHash(null);
+        if (archive != null)
+            archive.clear();
+    }
+
+    /**
+     * Starts a new header store from the checkpoint before the given time, if we have checkpoints.
+     */
+    private void checkpointStore(long time) throws BlockStoreException, IOException {
+        if (checkpointIndex != null) {
+            checkpointIndex.checkpoint(vStore, time);
+        } else if (checkpoints != null) {
+            mLogger.info(String.format("checkpoint at time %d", time));
+            CheckpointManager.checkpoint(params, checkpoints, vStore, time);
+        }
+    }
+
+    /**
+     * Returns the block in the header store that a scan from the given time (in seconds) should start after, or null
+     * if the store doesn't reach back that far. Block times can be off by a couple of hours, so we go back that much
+     * further.
+     */
+    public StoredBlock findBlockBefore(long time) throws BlockStoreException {
+        checkState(state() == State.STARTING || state() == State.RUNNING, "Cannot call until startup is complete");
+        if (time <= 0)
+            return null;
+        long limit = time - NetworkParameters.TARGET_SPACING * 12;
+        StoredBlock block = vStore.getChainHead();
+        while (block != null && block.getHeader().getTimeSeconds() >= limit)
+            block = block.getPrev(vStore);
+        return block;
+    }
+
+    private final BlockChainListener filterListener = new AbstractBlockChainListener() {
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+            try {
+                vFilterScanner.scan();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                // The next block will pick up where we left off.
+                mLogger.warn("filter scan failed: " + e.toString());
+            }
+        }
+    };
+
+    /**
+     * Returns the compact filter scanner, or null if the kit syncs with bloom filters.
+     */
+    public CompactFilterScanner filterScanner() {
+        return vFilterScanner;
+    }
+
+    private void checkStalled(MyDownloadListener listener) {
+        if (!listener.isStalled())
+            return;
+        Peer peer = vPeerGroup.getDownloadPeer();
+        if (peer == null || vPeerGroup.getConnectedPeers().size() < 2)
+            return;
+        mLogger.info(String.format("download peer %s stalled for %d msecs, switching",
+                                   peer.getAddress(), listener.getMsecsSinceLastBlock()));
+        peer.close();
+        listener.restartStallTimer();
+    }
+
     private void installShutdownHook() {
         if (autoStop) Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override public void run() {
@@ -279,27 +548,81 @@ public class MyWalletAppKit extends AbstractIdleService {
         });
     }
 
-    @SuppressLint("NewApi")
-	@Override
+    private void startAutosave() {
+        long delay = autosavePolicy.getDelay(isSynchronized);
+        mLogger.info(String.format("autosaving wallet every %d msecs", delay));
+        vWallet.autosaveToFile(vWalletFile, delay, TimeUnit.MILLISECONDS, autosavePolicy);
+    }
+
+    /**
+     * Switches the autosave delay between the syncing and synchronized values of the {@link AutosavePolicy}.
+     */
+    public void setSynchronized(boolean value) {
+        if (value == isSynchronized)
+            return;
+        isSynchronized = value;
+        if (useAutoSave && vWallet != null) {
+            // WalletFiles drops a pending delayed save on shutdown, so
+            // write out what has accumulated before switching.
+            vWallet.shutdownAutosaveAndWait();
+            try {
+                saveNow();
+            } catch (IOException ex) {
+                mLogger.error("wallet save failed: " + ex.toString());
+            }
+            startAutosave();
+        }
+    }
+
+    /**
+     * Writes the wallet to disk right away instead of waiting for the autosave delay.
+     */
+    public void saveNow() throws IOException {
+        long start = System.nanoTime();
+        vWallet.saveToFile(vWalletFile);
+        autosavePolicy.recordSave(vWalletFile, System.nanoTime() - start);
+    }
+
+    @Override
     protected void shutDown() throws Exception {
         mLogger.info("MyWalletAppKit shutDown starting");
         setAutoStop(false);	// Won't need this anymore.
         // Runs in a separate thread.
         try {
             vPeerGroup.stopAndWait();
-            vWallet.saveToFile(vWalletFile);
+            if (vIndexerSync != null)
+                vIndexerSync.stop();
+            if (useAutoSave)
+                vWallet.shutdownAutosaveAndWait();
+            saveNow();
+            autosavePolicy.logStats();
+            if (vFilterScanner != null)
+                vFilterScanner.logStats();
             vStore.close();
 
             vPeerGroup = null;
             vWallet = null;
             vStore = null;
             vChain = null;
+            vFilterScanner = null;
+            vIndexerSync = null;
         } catch (BlockStoreException e) {
             throw new IOException(e);
         }
         mLogger.info("MyWalletAppKit shutDown finished");
     }
 
+    /**
+     * Returns the addresses of the currently connected peers, so a following kit can reconnect to them.
+     */
+    public List<PeerAddress> connectedPeerAddresses() {
+        List<PeerAddress> addrs = new ArrayList<PeerAddress>();
+        if (vPeerGroup != null)
+            for (Peer peer : vPeerGroup.getConnectedPeers())
+                addrs.add(peer.getAddress());
+        return addrs;
+    }
+
     public NetworkParameters params() {
         return params;
     }
@@ -309,7 +632,7 @@ public class MyWalletAppKit extends AbstractIdleService {
         return vChain;
     }
 
-    public SPVBlockStore store() {
+    public MySPVBlockStore store() {
         checkState(state() == State.STARTING || state() == State.RUNNING, "Cannot call until startup is complete");
         return vStore;
     }
@@ -0,0 +1,367 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.PeerEventListener;
+
+// Remembers the peers we've used and how well they did, so startup
+// can try the best of them before resolving the DNS seeds.  Each
+// peer keeps a smoothed connect latency (from the connection attempt
+// to the finished handshake), the rate it served blocks at while it
+// was the download peer and how often it failed us.  Once we've
+// caught up a peer only relays a block every ten minutes or so, so
+// that time isn't counted against its rate.  The table is kept in
+// the files dir.
+//
+public class PeerCache {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(PeerCache.class);
+
+    // How many peers we remember, and for how long.
+    private static final int MAX_PEERS = 64;
+    private static final long MAX_AGE = 14L * 24 * 60 * 60 * 1000;
+
+    // A connection this short which served no blocks is a failure.
+    private static final long FAILURE_MSECS = 60 * 1000;
+
+    // Weight of a new sample in the smoothed values.
+    private static final double ALPHA = 0.3;
+
+    public static class Entry {
+        public final String	mHost;
+        public final int	mPort;
+        public double		mConnectMsecs = 0;	// 0 if never measured
+        public double		mBlocksPerSec = 0;
+        public int			mConnects = 0;
+        public int			mFailures = 0;
+        public long			mLastSeen = 0;		// msecs
+
+        // While connecting, and while connected.
+        private long		mAttemptAt = 0;
+        private long		mConnectedAt = 0;
+        private boolean		mServed = false;
+        // Blocks and time downloading since the rate was last folded
+        // in; the clock runs while mDownloadAt isn't 0.
+        private int			mBlocks = 0;
+        private long		mDownloadMsecs = 0;
+        private long		mDownloadAt = 0;
+
+        public Entry(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        // Higher is better.  Block throughput counts most, a slow
+        // handshake and frequent failures count against a peer.
+        // Peers we haven't measured yet get a modest neutral score.
+        public double score() {
+            double rate = mBlocksPerSec > 0 ? mBlocksPerSec : 1.0;
+            double latency = mConnectMsecs > 0 ? mConnectMsecs : 500.0;
+            double reliability =
+                (mConnects + 1.0) / (mConnects + mFailures + 1.0);
+            return rate * reliability * 1000.0 / (latency + 100.0);
+        }
+
+        public String toString() {
+            return String.format("%s:%d connect=%.0f bps=%.1f " +
+                                 "conn=%d fail=%d score=%.2f",
+                                 mHost, mPort, mConnectMsecs, mBlocksPerSec,
+                                 mConnects, mFailures, score());
+        }
+    }
+
+    private final File					mFile;
+    private HashMap<String, Entry>		mEntries = new HashMap<String, Entry>();
+
+    public PeerCache(File directory, String filePrefix) {
+        mFile = new File(directory, filePrefix + ".peers");
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private synchronized Entry entryFor(Peer peer) {
+        return entryFor(peer.getAddress());
+    }
+
+    private synchronized Entry entryFor(PeerAddress addr) {
+        String host = addr.getAddr().getHostAddress();
+        String key = key(host, addr.getPort());
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(host, addr.getPort());
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    // The best scoring peers, best first.
+    public synchronized List<Entry> bestEntries(int max) {
+        ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+                public int compare(Entry e0, Entry e1) {
+                    return Double.compare(e1.score(), e0.score());
+                }
+            });
+        return entries.subList(0, Math.min(max, entries.size()));
+    }
+
+    // Addresses of the best peers, to seed the PeerGroup with.
+    public List<PeerAddress> bestPeers(int max) {
+        List<PeerAddress> addrs = new ArrayList<PeerAddress>();
+        for (Entry entry : bestEntries(max)) {
+            try {
+                // These are numeric, no lookup happens.
+                InetAddress inet = InetAddress.getByName(entry.mHost);
+                addrs.add(new PeerAddress(inet, entry.mPort));
+            } catch (UnknownHostException ex) {
+                mLogger.warn("bad cached peer " + entry.mHost);
+            }
+        }
+        return addrs;
+    }
+
+    // Listens to a PeerGroup to score its peers.
+    public PeerEventListener listener() {
+        return mListener;
+    }
+
+    // The PeerGroup is about to connect to this address; the connect
+    // latency is timed from here to the handshake.
+    public synchronized void connecting(PeerAddress addr) {
+        entryFor(addr).mAttemptAt = System.currentTimeMillis();
+    }
+
+    private PeerEventListener mListener = new AbstractPeerEventListener() {
+            @Override
+            public void onPeerConnected(Peer peer, int peerCount) {
+                Entry entry = entryFor(peer);
+                synchronized (PeerCache.this) {
+                    ++entry.mConnects;
+                    entry.mConnectedAt = System.currentTimeMillis();
+                    if (entry.mAttemptAt != 0) {
+                        long msecs = entry.mConnectedAt - entry.mAttemptAt;
+                        entry.mConnectMsecs =
+                            smooth(entry.mConnectMsecs, Math.max(1, msecs));
+                        entry.mAttemptAt = 0;
+                    }
+                    entry.mLastSeen = entry.mConnectedAt;
+                    entry.mServed = false;
+                    entry.mBlocks = 0;
+                    entry.mDownloadMsecs = 0;
+                    entry.mDownloadAt = 0;
+                }
+            }
+
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block,
+                                           int blocksLeft) {
+                Entry entry = entryFor(peer);
+                synchronized (PeerCache.this) {
+                    entry.mServed = true;
+                    // The PeerGroup's listeners don't hear about the
+                    // download starting, so the clock starts with the
+                    // first block that has more behind it.  A block
+                    // with none is a new one after catching up.
+                    if (entry.mDownloadAt == 0) {
+                        if (blocksLeft > 0)
+                            entry.mDownloadAt = System.currentTimeMillis();
+                        return;
+                    }
+                    ++entry.mBlocks;
+                    if (blocksLeft == 0) {
+                        long now = System.currentTimeMillis();
+                        entry.mDownloadMsecs += now - entry.mDownloadAt;
+                        entry.mDownloadAt = 0;
+                    }
+                }
+            }
+
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                Entry entry = entryFor(peer);
+                synchronized (PeerCache.this) {
+                    entry.mAttemptAt = 0;
+                    if (entry.mConnectedAt == 0) {
+                        // A pending peer which never finished the
+                        // handshake; it wasn't seen.
+                        ++entry.mFailures;
+                        mLogger.info("peer failed: " + entry.toString());
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    fold(entry, now);
+                    entry.mDownloadAt = 0;
+                    // Being dropped soon without serving us anything
+                    // counts as a failure.
+                    if (!entry.mServed &&
+                        now - entry.mConnectedAt < FAILURE_MSECS)
+                        ++entry.mFailures;
+                    entry.mConnectedAt = 0;
+                    entry.mLastSeen = now;
+                    mLogger.info("peer finished: " + entry.toString());
+                }
+            }
+        };
+
+    private static double smooth(double old, double sample) {
+        return old == 0 ? sample : old + ALPHA * (sample - old);
+    }
+
+    // Folds the blocks downloaded since last time into the smoothed
+    // rate; a running download carries on from now.
+    private static void fold(Entry entry, long now) {
+        long msecs = entry.mDownloadMsecs;
+        if (entry.mDownloadAt != 0) {
+            msecs += now - entry.mDownloadAt;
+            entry.mDownloadAt = now;
+        }
+        if (entry.mBlocks > 0 && msecs > 0)
+            entry.mBlocksPerSec = smooth(entry.mBlocksPerSec,
+                                         entry.mBlocks * 1000.0 / msecs);
+        entry.mBlocks = 0;
+        entry.mDownloadMsecs = 0;
+    }
+
+    // Folds in the throughput of the peers which are still connected
+    // so it isn't lost when we persist.
+    private void settle() {
+        long now = System.currentTimeMillis();
+        for (Entry entry : mEntries.values())
+            if (entry.mConnectedAt != 0)
+                fold(entry, now);
+    }
+
+    public synchronized void load() {
+        if (!mFile.exists())
+            return;
+        try {
+            byte[] bytes = new byte[(int) mFile.length()];
+            FileInputStream istrm = new FileInputStream(mFile);
+            try {
+                int off = 0;
+                while (off < bytes.length) {
+                    int nn = istrm.read(bytes, off, bytes.length - off);
+                    if (nn < 0)
+                        break;
+                    off += nn;
+                }
+            } finally {
+                istrm.close();
+            }
+
+            JSONArray peers = new JSONArray
+                (new String(bytes, Charset.forName("UTF-8")));
+            for (int ii = 0; ii < peers.length(); ++ii) {
+                JSONObject node = peers.getJSONObject(ii);
+                Entry entry = new Entry(node.getString("host"),
+                                        node.getInt("port"));
+                // Older tables kept a ping time instead.
+                entry.mConnectMsecs = node.optDouble("connect", 0);
+                entry.mBlocksPerSec = node.getDouble("blocksPerSec");
+                entry.mConnects = node.getInt("connects");
+                entry.mFailures = node.getInt("failures");
+                entry.mLastSeen = node.getLong("lastSeen");
+                mEntries.put(key(entry.mHost, entry.mPort), entry);
+            }
+            mLogger.info(String.format("loaded %d cached peers",
+                                       mEntries.size()));
+
+        } catch (IOException ex) {
+            mLogger.warn("failed to read " + mFile + ": " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.warn("failed to parse " + mFile + ": " + ex.toString());
+            mEntries.clear();
+        }
+    }
+
+    public synchronized void persist() {
+        settle();
+
+        // Forget stale peers, then the worst ones if we have too many.
+        long cutoff = System.currentTimeMillis() - MAX_AGE;
+        ArrayList<Entry> keep = new ArrayList<Entry>();
+        for (Entry entry : bestEntries(mEntries.size()))
+            if (entry.mLastSeen >= cutoff && keep.size() < MAX_PEERS)
+                keep.add(entry);
+        mEntries.clear();
+        for (Entry entry : keep)
+            mEntries.put(key(entry.mHost, entry.mPort), entry);
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            JSONArray peers = new JSONArray();
+            for (Entry entry : keep) {
+                JSONObject node = new JSONObject();
+                node.put("host", entry.mHost);
+                node.put("port", entry.mPort);
+                node.put("connect", entry.mConnectMsecs);
+                node.put("blocksPerSec", entry.mBlocksPerSec);
+                node.put("connects", entry.mConnects);
+                node.put("failures", entry.mFailures);
+                node.put("lastSeen", entry.mLastSeen);
+                peers.put(node);
+            }
+            byte[] bytes =
+                peers.toString(4).getBytes(Charset.forName("UTF-8"));
+
+			FileOutputStream ostrm = new FileOutputStream(tmpFile);
+            ostrm.write(bytes);
+			ostrm.close();
+
+            // Swap the tmp file into place.
+            if (!tmpFile.renameTo(mFile))
+                mLogger.warn("failed to rename to " + mFile);
+            else
+                mLogger.info(String.format("persisted %d peers", keep.size()));
+
+        } catch (JSONException ex) {
+            mLogger.warn("failed generating JSON: " + ex.toString());
+        } catch (IOException ex) {
+            mLogger.warn("failed to write to " + tmpFile + ": " +
+                         ex.toString());
+        }
+    }
+}
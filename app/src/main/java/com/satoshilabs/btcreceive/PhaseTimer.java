@@ -0,0 +1,291 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Times the phases WalletService goes through on each sync run
+// (cold start, rescan, restore ...).  Transitions are stamped with
+// the monotonic clock, and each phase's duration goes into a
+// histogram kept per app version and kind of run, so runs can be
+// compared across releases and devices.  The histograms are kept in
+// the files dir:
+//
+//     { "device": ...,
+//       "versions": { <version>: { <run>: { <phase>: histogram } } } }
+//
+// A histogram has a count, sum, min and max in msecs, and counts in
+// power of two buckets: bucket i holds durations in [2^i, 2^(i+1)),
+// and bucket 0 anything shorter.
+//
+public class PhaseTimer {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(PhaseTimer.class);
+
+    public static final String TOTAL = "TOTAL";
+
+    private static final int NUM_BUCKETS = 25;		// up to about 4.6 hours
+
+    public static class Histogram {
+        public long		mCount = 0;
+        public long		mSum = 0;
+        public long		mMin = Long.MAX_VALUE;
+        public long		mMax = 0;
+        public long[]	mBuckets = new long[NUM_BUCKETS];
+
+        public void add(long msecs) {
+            ++mCount;
+            mSum += msecs;
+            mMin = Math.min(mMin, msecs);
+            mMax = Math.max(mMax, msecs);
+            int bucket = 0;
+            while (bucket < NUM_BUCKETS - 1 && msecs >= (2L << bucket))
+                ++bucket;
+            ++mBuckets[bucket];
+        }
+
+        public long mean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("count", mCount);
+            obj.put("sum", mSum);
+            obj.put("min", mCount == 0 ? 0 : mMin);
+            obj.put("max", mMax);
+            JSONArray buckets = new JSONArray();
+            for (long count : mBuckets)
+                buckets.put(count);
+            obj.put("buckets", buckets);
+            return obj;
+        }
+
+        public static Histogram fromJSON(JSONObject obj) throws JSONException {
+            Histogram hist = new Histogram();
+            hist.mCount = obj.getLong("count");
+            hist.mSum = obj.getLong("sum");
+            hist.mMin = obj.getLong("min");
+            hist.mMax = obj.getLong("max");
+            JSONArray buckets = obj.getJSONArray("buckets");
+            for (int ii = 0; ii < buckets.length() && ii < NUM_BUCKETS; ++ii)
+                hist.mBuckets[ii] = buckets.getLong(ii);
+            return hist;
+        }
+
+        public String toString() {
+            return String.format("n=%d mean=%d min=%d max=%d",
+                                 mCount, mean(), mCount == 0 ? 0 : mMin, mMax);
+        }
+    }
+
+    private final File		mFile;
+    private final String	mVersion;
+    private final String	mDevice;
+    private JSONObject		mVersions = new JSONObject();
+
+    // The run in progress.
+    private String			mRun = null;
+    private long			mRunStart;
+    private String			mPhase;
+    private long			mPhaseStart;
+    private LinkedHashMap<String, Long>	mDurations =
+        new LinkedHashMap<String, Long>();
+
+    public PhaseTimer(File directory, String filePrefix,
+                      String version, String device) {
+        mFile = new File(directory, filePrefix + ".phases");
+        mVersion = version;
+        mDevice = device;
+    }
+
+    // Starts timing a run, already in the given phase.
+    public synchronized void begin(String run, String phase) {
+        if (mRun != null)
+            mLogger.warn("run " + mRun + " abandoned");
+        mRun = run;
+        mRunStart = System.nanoTime();
+        mPhase = phase;
+        mPhaseStart = mRunStart;
+        mDurations.clear();
+    }
+
+    public synchronized void enter(String phase) {
+        if (mRun == null || phase.equals(mPhase))
+            return;
+        long now = System.nanoTime();
+        closePhase(now);
+        mPhase = phase;
+        mPhaseStart = now;
+    }
+
+    // A phase can be entered more than once in a run (eg. the kit
+    // is set up again); its durations are summed.
+    private void closePhase(long now) {
+        long msecs = (now - mPhaseStart) / 1000000;
+        Long sofar = mDurations.get(mPhase);
+        mDurations.put(mPhase, sofar == null ? msecs : sofar + msecs);
+    }
+
+    // Finishes the run, adds it to the histograms and persists them.
+    public synchronized void end() {
+        if (mRun == null)
+            return;
+        long now = System.nanoTime();
+        closePhase(now);
+        mDurations.put(TOTAL, (now - mRunStart) / 1000000);
+
+        StringBuilder sb = new StringBuilder();
+        try {
+            JSONObject runs = mVersions.optJSONObject(mVersion);
+            if (runs == null) {
+                runs = new JSONObject();
+                mVersions.put(mVersion, runs);
+            }
+            JSONObject phases = runs.optJSONObject(mRun);
+            if (phases == null) {
+                phases = new JSONObject();
+                runs.put(mRun, phases);
+            }
+            for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+                JSONObject obj = phases.optJSONObject(entry.getKey());
+                Histogram hist =
+                    obj == null ? new Histogram() : Histogram.fromJSON(obj);
+                hist.add(entry.getValue());
+                phases.put(entry.getKey(), hist.toJSON());
+                sb.append(String.format(" %s=%d", entry.getKey(),
+                                        entry.getValue()));
+            }
+        } catch (JSONException ex) {
+            mLogger.warn("failed updating histograms: " + ex.toString());
+        }
+        mLogger.info("run " + mRun + " msecs:" + sb.toString());
+
+        mRun = null;
+        persist();
+    }
+
+    // Drops the run in progress, eg. when we're shut down mid sync.
+    public synchronized void abandon() {
+        if (mRun != null)
+            mLogger.info("run " + mRun + " abandoned");
+        mRun = null;
+    }
+
+    // The histograms of a kind of run for this version, by phase.
+    public synchronized Map<String, Histogram> getHistograms(String run) {
+        Map<String, Histogram> hists = new LinkedHashMap<String, Histogram>();
+        JSONObject runs = mVersions.optJSONObject(mVersion);
+        JSONObject phases = runs == null ? null : runs.optJSONObject(run);
+        if (phases == null)
+            return hists;
+        try {
+            Iterator<?> it = phases.keys();
+            while (it.hasNext()) {
+                String phase = (String) it.next();
+                hists.put(phase,
+                          Histogram.fromJSON(phases.getJSONObject(phase)));
+            }
+        } catch (JSONException ex) {
+            mLogger.warn("bad histogram: " + ex.toString());
+        }
+        return hists;
+    }
+
+    public synchronized void logStats() {
+        JSONObject runs = mVersions.optJSONObject(mVersion);
+        if (runs == null)
+            return;
+        Iterator<?> it = runs.keys();
+        while (it.hasNext()) {
+            String run = (String) it.next();
+            for (Map.Entry<String, Histogram> entry :
+                     getHistograms(run).entrySet())
+                mLogger.info(String.format("%s %s %s: %s", mVersion, run,
+                                           entry.getKey(),
+                                           entry.getValue().toString()));
+        }
+    }
+
+    public synchronized void load() {
+        if (!mFile.exists())
+            return;
+        try {
+            byte[] bytes = new byte[(int) mFile.length()];
+            FileInputStream istrm = new FileInputStream(mFile);
+            try {
+                int off = 0;
+                while (off < bytes.length) {
+                    int nn = istrm.read(bytes, off, bytes.length - off);
+                    if (nn < 0)
+                        break;
+                    off += nn;
+                }
+            } finally {
+                istrm.close();
+            }
+
+            JSONObject top = new JSONObject
+                (new String(bytes, Charset.forName("UTF-8")));
+            mVersions = top.getJSONObject("versions");
+
+        } catch (IOException ex) {
+            mLogger.warn("failed to read " + mFile + ": " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.warn("failed to parse " + mFile + ": " + ex.toString());
+            mVersions = new JSONObject();
+        }
+    }
+
+    private void persist() {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            JSONObject top = new JSONObject();
+            top.put("device", mDevice);
+            top.put("versions", mVersions);
+            byte[] bytes =
+                top.toString(4).getBytes(Charset.forName("UTF-8"));
+
+            FileOutputStream ostrm = new FileOutputStream(tmpFile);
+            ostrm.write(bytes);
+            ostrm.close();
+
+            // Swap the tmp file into place.
+            if (!tmpFile.renameTo(mFile))
+                mLogger.warn("failed to rename to " + mFile);
+
+        } catch (JSONException ex) {
+            mLogger.warn("failed generating JSON: " + ex.toString());
+        } catch (IOException ex) {
+            mLogger.warn("failed to write to " + tmpFile + ": " +
+                         ex.toString());
+        }
+    }
+}
@@ -109,10 +109,12 @@ public class ReceiveFragment extends Fragment {
         mLogger.info("ReceiveFragment onResume");
         super.onResume();
 
-        mLBM.registerReceiver(mWalletStateChangedReceiver,
-                              new IntentFilter("wallet-state-changed"));
+        mLBM.registerReceiver(mWalletDataChangedReceiver,
+                              new IntentFilter(WalletEventBus.ACTION_DATA));
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
+        mLBM.registerReceiver(mPaymentSeenReceiver,
+                              new IntentFilter("payment-seen"));
 
         mBTCAmountEditText =
             (EditText) getActivity().findViewById(R.id.receive_btc_amount);
@@ -152,12 +154,13 @@ public class ReceiveFragment extends Fragment {
     @Override
 	public void onPause() {
         mLogger.info("ReceiveFragment onPause");
-        mLBM.unregisterReceiver(mWalletStateChangedReceiver);
+        mLBM.unregisterReceiver(mWalletDataChangedReceiver);
         mLBM.unregisterReceiver(mRateChangedReceiver);
+        mLBM.unregisterReceiver(mPaymentSeenReceiver);
         super.onPause();
     }
 
-    private BroadcastReceiver mWalletStateChangedReceiver =
+    private BroadcastReceiver mWalletDataChangedReceiver =
         new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -172,25 +175,56 @@ public class ReceiveFragment extends Fragment {
                 if (mTransitioned)
                     return;
 
+                // Did anything happen to it?
+                WalletDelta delta = WalletEventBus.getDelta(intent);
+                if (!delta.hasAddress(mHDAddress.getAddressString()))
+                    return;
+
                 // Have there been any transactions?
                 if (mHDAddress.numTrans() == 0)
                     return;
 
-                mTransitioned = true;
+                transitionToTransactions();
+            }
+        };
 
-                // Take down the address.
-                hideAddress();
-                mValueSet = false;
-                mBTCAmountEditText.setText("");
-                mFiatAmountEditText.setText("");
-                maybeShowKeyboard();
+    private BroadcastReceiver mPaymentSeenReceiver =
+        new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // A peer relayed a payment, usually well before the
+                // wallet state catches up.
+                if (mHDAddress == null || mTransitioned)
+                    return;
 
-                // Transition to the transactions list.
-                MainActivity main = (MainActivity) getActivity();
-                main.setPagerItem(1);
+                String addrstr = intent.getStringExtra("address");
+                if (!mHDAddress.getAddressString().equals(addrstr))
+                    return;
+
+                transitionToTransactions();
+
+                WalletService walletService = mBase.getWalletService();
+                if (walletService != null)
+                    walletService.paymentShown
+                        (intent.getStringExtra("txhash"));
             }
         };
 
+    private void transitionToTransactions() {
+        mTransitioned = true;
+
+        // Take down the address.
+        hideAddress();
+        mValueSet = false;
+        mBTCAmountEditText.setText("");
+        mFiatAmountEditText.setText("");
+        maybeShowKeyboard();
+
+        // Transition to the transactions list.
+        MainActivity main = (MainActivity) getActivity();
+        main.setPagerItem(1);
+    }
+
     private BroadcastReceiver mRateChangedReceiver =
         new BroadcastReceiver() {
             @Override
@@ -415,6 +449,9 @@ public class ReceiveFragment extends Fragment {
         mHDAddress = addrdesc.hdAddress;
         mTransitioned = false;
 
+        // Hear about payments as soon as a peer relays them.
+        mBase.getWalletService().watchPayment(addr);
+
         mFiatAmountEditText.setFocusable(false);
         mFiatAmountEditText.setFocusableInTouchMode(false);
         mBTCAmountEditText.setFocusable(false);
@@ -15,12 +15,17 @@
 
 package com.satoshilabs.btcreceive;
 
+import java.text.DateFormat;
+import java.util.Calendar;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.app.DatePickerDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.DatePicker;
 import android.widget.RadioButton;
 
 public class RescanActivity extends BaseWalletActivity {
@@ -55,6 +60,43 @@ public class RescanActivity extends BaseWalletActivity {
         mScanTime = HDAddress.EPOCH;
     }
 
+    public void onDateClicked(View view) {
+        mLogger.info("date rescan selected");
+
+        // Start from the account's first use if we know it, less the
+        // same margin a restore allows for.
+        long start = HDAddress.EPOCH;
+        if (mWalletService != null &&
+            mWalletService.getAccountBirthday() != 0)
+            start = Math.max(0, mWalletService.getAccountBirthday() -
+                             HDReceiver.BIRTHDAY_MARGIN);
+        mScanTime = start;
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(start * 1000);
+        new DatePickerDialog(this, new DatePickerDialog.OnDateSetListener() {
+                @Override
+                public void onDateSet(DatePicker picker,
+                                      int year, int month, int day) {
+                    Calendar chosen = Calendar.getInstance();
+                    chosen.clear();
+                    chosen.set(year, month, day);
+                    mScanTime = chosen.getTimeInMillis() / 1000;
+                    mLogger.info(String.format("rescan from %d", mScanTime));
+
+                    RadioButton dateButton =
+                        (RadioButton) findViewById(R.id.date_choice);
+                    dateButton.setText
+                        (getString(R.string.rescan_date_chosen,
+                                   DateFormat.getDateInstance()
+                                   .format(chosen.getTime())));
+                }
+            },
+            cal.get(Calendar.YEAR),
+            cal.get(Calendar.MONTH),
+            cal.get(Calendar.DAY_OF_MONTH)).show();
+    }
+
     public void doRescan(View view) {
         if (mWalletService != null)
         {
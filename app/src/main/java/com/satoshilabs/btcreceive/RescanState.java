@@ -0,0 +1,193 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Records a scan (rescan, restore or first scan) which is in
+// progress so it can be resumed if the process is killed before it
+// finishes.  The file exists only while the scan is running; it is
+// removed once the wallet is synchronized.
+//
+// The blocks themselves resume from the wallet file: MyWalletAppKit
+// rewinds the header store to the last block the saved wallet saw.
+// What we keep here is what the wallet file can't tell us, the scan
+// time the keys were added with and the kind of scan we were doing.
+//
+public class RescanState {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(RescanState.class);
+
+    // Persist progress at most this often.
+    private static final int PROGRESS_BLOCKS = 1000;
+    private static final long PROGRESS_MSECS = 30 * 1000;
+
+    private final File		mFile;
+
+    private final String	mSyncState;
+    private final long		mScanTime;		// secs, 0 for full rescan
+    private final int		mTargetHeight;	// -1 if unknown
+    private final long		mStarted;		// msecs
+
+    private int				mProgressHeight = -1;
+    private int				mSavedHeight = -1;
+    private long			mSavedTime = 0;
+
+    private static File stateFile(File directory, String filePrefix) {
+        return new File(directory, filePrefix + ".rescan");
+    }
+
+    public RescanState(File directory,
+                       String filePrefix,
+                       WalletService.SyncState syncState,
+                       long scanTime,
+                       int targetHeight) {
+        mFile = stateFile(directory, filePrefix);
+        mSyncState = syncState.name();
+        mScanTime = scanTime;
+        mTargetHeight = targetHeight;
+        mStarted = System.currentTimeMillis();
+    }
+
+    private RescanState(File file, JSONObject node) throws JSONException {
+        mFile = file;
+        mSyncState = node.getString("syncState");
+        mScanTime = node.getLong("scanTime");
+        mTargetHeight = node.getInt("targetHeight");
+        mStarted = node.getLong("started");
+        mProgressHeight = node.getInt("progressHeight");
+        mSavedHeight = mProgressHeight;
+    }
+
+    // Returns the scan in progress, or null if there isn't one.
+    public static RescanState load(File directory, String filePrefix) {
+        File file = stateFile(directory, filePrefix);
+        if (!file.exists())
+            return null;
+
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream istrm = new FileInputStream(file);
+            try {
+                int off = 0;
+                while (off < bytes.length) {
+                    int nn = istrm.read(bytes, off, bytes.length - off);
+                    if (nn < 0)
+                        break;
+                    off += nn;
+                }
+            } finally {
+                istrm.close();
+            }
+            String jsonstr = new String(bytes, Charset.forName("UTF-8"));
+            return new RescanState(file, new JSONObject(jsonstr));
+
+        } catch (IOException ex) {
+            mLogger.warn("failed to read " + file + ": " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.warn("failed to parse " + file + ": " + ex.toString());
+        }
+        // An unreadable state is no better than none.
+        file.delete();
+        return null;
+    }
+
+    public WalletService.SyncState getSyncState() {
+        try {
+            return WalletService.SyncState.valueOf(mSyncState);
+        } catch (IllegalArgumentException ex) {
+            return WalletService.SyncState.RESCAN;
+        }
+    }
+
+    public long getScanTime() {
+        return mScanTime;
+    }
+
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    public int getProgressHeight() {
+        return mProgressHeight;
+    }
+
+    public long getStarted() {
+        return mStarted;
+    }
+
+    // Notes the last block the wallet has seen.  The file is only
+    // rewritten every so often.
+    public synchronized void recordProgress(int height) {
+        mProgressHeight = height;
+        long now = System.currentTimeMillis();
+        if (height >= mSavedHeight + PROGRESS_BLOCKS ||
+            now - mSavedTime >= PROGRESS_MSECS)
+            persist();
+    }
+
+    public synchronized void persist() {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            JSONObject node = new JSONObject();
+            node.put("syncState", mSyncState);
+            node.put("scanTime", mScanTime);
+            node.put("targetHeight", mTargetHeight);
+            node.put("started", mStarted);
+            node.put("progressHeight", mProgressHeight);
+            byte[] bytes = node.toString(4).getBytes(Charset.forName("UTF-8"));
+
+			FileOutputStream ostrm = new FileOutputStream(tmpFile);
+            ostrm.write(bytes);
+			ostrm.close();
+
+            // Swap the tmp file into place.
+            if (!tmpFile.renameTo(mFile))
+                mLogger.warn("failed to rename to " + mFile);
+
+            mSavedHeight = mProgressHeight;
+            mSavedTime = System.currentTimeMillis();
+
+        } catch (JSONException ex) {
+            mLogger.warn("failed generating JSON: " + ex.toString());
+        } catch (IOException ex) {
+            mLogger.warn("failed to write to " + tmpFile + ": " +
+                         ex.toString());
+        }
+    }
+
+    // The scan is finished.
+    public synchronized void delete() {
+        if (mFile.exists() && !mFile.delete())
+            mLogger.warn("failed to delete " + mFile);
+    }
+
+    public String toString() {
+        return String.format("%s scanTime=%d progress=%d target=%d",
+                             mSyncState, mScanTime,
+                             mProgressHeight, mTargetHeight);
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+
+// Fetches filters and blocks from a full node's REST interface
+// (bitcoind -rest -blockfilterindex), eg. "http://mynode:8332/rest/".
+// bitcoinj doesn't speak the BIP 157 P2P messages, so this is the
+// transport for now; it should be a node the user trusts since it
+// sees which blocks we fetch.
+//
+public class RestFilterSource implements FilterSource {
+
+    private final NetworkParameters	mParams;
+    private final String			mUrl;
+
+    public RestFilterSource(NetworkParameters params, String url) {
+        mParams = params;
+        mUrl = url.endsWith("/") ? url : url + "/";
+    }
+
+    public byte[] getFilter(Sha256Hash blockHash) throws IOException {
+        return fetch(mUrl + "blockfilter/basic/" + blockHash + ".bin");
+    }
+
+    public Block getBlock(Sha256Hash blockHash) throws IOException {
+        byte[] bytes = fetch(mUrl + "block/" + blockHash + ".bin");
+        try {
+            Block block = new Block(mParams, bytes);
+            if (!block.getHash().equals(blockHash))
+                throw new IOException("wrong block from " + mUrl +
+                                      ": " + block.getHash());
+            return block;
+        } catch (ProtocolException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static byte[] fetch(String request) throws IOException {
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+        HttpGet httpGet = new HttpGet(request);
+
+        HttpResponse httpResponse = httpClient.execute(httpGet);
+        int status = httpResponse.getStatusLine().getStatusCode();
+        if (status != 200)
+            throw new IOException(String.format("HTTP %d from %s",
+                                                status, request));
+        HttpEntity httpEntity = httpResponse.getEntity();
+        InputStream is = httpEntity.getContent();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int nn;
+            while ((nn = is.read(buffer)) != -1)
+                bos.write(buffer, 0, nn);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
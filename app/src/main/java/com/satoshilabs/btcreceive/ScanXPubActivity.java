@@ -27,6 +27,7 @@ import android.support.v7.app.ActionBarActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.Toast;
 
 import com.google.bitcoin.core.NetworkParameters;
@@ -41,6 +42,7 @@ public class ScanXPubActivity extends ActionBarActivity {
         LoggerFactory.getLogger(ScanXPubActivity.class);
 
     private Resources			mRes;
+    private boolean				mProbeBirthday = false;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -96,6 +98,10 @@ public class ScanXPubActivity extends ActionBarActivity {
             return;
         }
 
+        // Only reveal the account's addresses if the user agreed to.
+        CheckBox probe = (CheckBox) findViewById(R.id.probe_birthday);
+        mProbeBirthday = probe.isChecked();
+
         // Setup the wallet in a background task.
         new ScanXPubTask().execute(accountKey);
     }
@@ -119,11 +125,19 @@ public class ScanXPubActivity extends ActionBarActivity {
             NetworkParameters params = MainNetParams.get();
             String filePrefix = "mytrezor-lite";
 
-            HDReceiver hdrecvr = new HDReceiver(getApplicationContext(),
-                                     params,
+            HDReceiver hdrecvr = new HDReceiver(params,
                                      getApplicationContext().getFilesDir(),
                                      filePrefix,
                                      accountKey);
+
+            // Find out when the account was first used so the
+            // restore doesn't have to scan from the epoch.
+            if (mProbeBirthday) {
+                long birthday = BirthdayProbe.probe(hdrecvr.getAccount());
+                if (birthday != 0)
+                    hdrecvr.setBirthday(birthday);
+            }
+
             hdrecvr.persist();
             return null;
         }
@@ -50,6 +50,11 @@ public class SettingsActivity extends PreferenceActivity {
     public static final String KEY_BTC_UNITS = "pref_btcUnits";
     public static final String KEY_FIAT_RATE_SOURCE = "pref_fiatRateSource";
     public static final String KEY_RESCAN_BLOCKCHAIN = "pref_rescanBlockchain";
+    public static final String KEY_ARCHIVE_TRANSACTIONS =
+        "pref_archiveTransactions";
+    public static final String KEY_FILTER_NODE = "pref_filterNode";
+    public static final String KEY_INDEXER_SERVER = "pref_indexerServer";
+    public static final String KEY_AUTOSAVE_DELAY = "pref_autosaveDelay";
 
     private WalletService	mWalletService = null;
     private SettingsActivity	mThis;
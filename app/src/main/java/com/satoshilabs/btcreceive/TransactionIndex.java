@@ -0,0 +1,312 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.bitcoin.wallet.WalletTransaction.Pool;
+
+// Transaction history kept in display order (most recent first),
+// along with each transaction's amount for the account.  It is
+// updated incrementally as the wallet changes so consumers can ask
+// for just the page of rows they are going to show instead of
+// copying and sorting the whole wallet every time.
+//
+public class TransactionIndex {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(TransactionIndex.class);
+
+    public static class Entry {
+        private final Sha256Hash				mHash;
+        private final Date						mTime;
+        private final long						mAmount;
+        private final Pool						mPool;	// null if archived
+        private WalletTransaction				mWtx;	// null if archived
+        private int								mConf;	// see confKey
+        private final int						mConnected;	// inputs
+        private final TransactionArchive.Entry	mArchived;
+
+        private Entry(WalletTransaction wtx, long amount) {
+            Transaction tx = wtx.getTransaction();
+            mHash = tx.getHash();
+            mTime = tx.getUpdateTime();
+            mAmount = amount;
+            mPool = wtx.getPool();
+            mWtx = wtx;
+            mConf = confKey(tx);
+            mConnected = connectedInputs(tx);
+            mArchived = null;
+        }
+
+        private Entry(TransactionArchive.Entry archived, long amount) {
+            mHash = archived.mHash;
+            mTime = archived.getUpdateTime();
+            mAmount = amount;
+            mPool = null;
+            mWtx = null;
+            mConf = 0;
+            mConnected = 0;
+            mArchived = archived;
+        }
+
+        public boolean isArchived() {
+            return mArchived != null;
+        }
+
+        public boolean isDead() {
+            return mPool == Pool.DEAD;
+        }
+    }
+
+    // One row of a page; the balance is the account balance just
+    // after this transaction.
+    public static class Row {
+        public final Sha256Hash			mHash;
+        public final Date				mTime;
+        public final long				mAmount;
+        public final long				mBalance;
+        public final WalletTransaction	mWtx;	// null if archived
+
+        private Row(Entry entry, long balance) {
+            mHash = entry.mHash;
+            mTime = entry.mTime;
+            mAmount = entry.mAmount;
+            mBalance = balance;
+            mWtx = entry.mWtx;
+        }
+
+        public boolean isArchived() {
+            return mWtx == null;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+            public int compare(Entry e0, Entry e1) {
+                int cmp = -e0.mTime.compareTo(e1.mTime);
+                if (cmp == 0) {
+                    // Same block (same time), use the hash to keep
+                    // the order stable.
+                    return -e0.mHash.compareTo(e1.mHash);
+                }
+                return cmp;
+            }
+        };
+
+    private ArrayList<Entry>			mEntries = new ArrayList<Entry>();
+    private HashMap<Sha256Hash, Entry>	mByHash =
+        new HashMap<Sha256Hash, Entry>();
+
+    // Sum of the (non-dead) amounts before each position, rebuilt
+    // lazily after a change.
+    private long[]						mPrefix = null;
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mByHash.clear();
+        mPrefix = null;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    // The confidence as the transaction list shows it: the type, or
+    // the depth for building transactions.  Depths past 100 all show
+    // as "100+", so they aren't worth reporting.
+    private static final int MAX_DEPTH = 101;
+
+    private static int confKey(Transaction tx) {
+        TransactionConfidence conf = tx.getConfidence();
+        switch (conf.getConfidenceType()) {
+        case BUILDING:
+            return Math.min(conf.getDepthInBlocks(), MAX_DEPTH);
+        case PENDING:	return -1;
+        case DEAD:		return -2;
+        default:		return -3;
+        }
+    }
+
+    // A parent arriving after its child connects the child's inputs
+    // and changes its amount.
+    private static int connectedInputs(Transaction tx) {
+        int count = 0;
+        for (TransactionInput ti : tx.getInputs())
+            if (ti.getConnectedOutput() != null)
+                ++count;
+        return count;
+    }
+
+    public void update(Iterable<WalletTransaction> iwt,
+                       List<TransactionArchive.Entry> archived,
+                       HDReceiver receiver) {
+        update(iwt, archived, receiver, null);
+    }
+
+    // Brings the index up to date with the wallet and archive.  Only
+    // transactions which are new, have moved pools (or times) or have
+    // had more inputs connected have their amounts recomputed.  If
+    // delta isn't null the added, removed and moved (or newly
+    // confirmed) transactions are recorded in it.
+    public synchronized void update(Iterable<WalletTransaction> iwt,
+                                    List<TransactionArchive.Entry> archived,
+                                    HDReceiver receiver,
+                                    WalletDelta delta) {
+        int added = 0;
+        int removed = 0;
+
+        HashSet<Sha256Hash> seen = new HashSet<Sha256Hash>();
+        for (WalletTransaction wtx : iwt) {
+            Transaction tx = wtx.getTransaction();
+            Sha256Hash hash = tx.getHash();
+            seen.add(hash);
+
+            Entry old = mByHash.get(hash);
+            if (old != null) {
+                if (old.mPool == wtx.getPool() &&
+                    old.mTime.equals(tx.getUpdateTime()) &&
+                    old.mConnected == connectedInputs(tx)) {
+                    old.mWtx = wtx;
+                    int conf = confKey(tx);
+                    if (conf != old.mConf) {
+                        old.mConf = conf;
+                        if (delta != null)
+                            delta.txChanged(hash);
+                    }
+                    continue;
+                }
+                remove(old);
+                if (delta != null)
+                    delta.txMoved(hash);
+            }
+            else if (delta != null) {
+                delta.txAdded(hash);
+            }
+            insert(new Entry(wtx, receiver.amountForAccount(wtx)));
+            ++added;
+        }
+
+        if (archived != null) {
+            for (TransactionArchive.Entry arch : archived) {
+                if (seen.contains(arch.mHash))
+                    continue;
+                seen.add(arch.mHash);
+
+                Entry old = mByHash.get(arch.mHash);
+                if (old != null) {
+                    if (old.isArchived())
+                        continue;
+                    remove(old);
+                    if (delta != null)
+                        delta.txMoved(arch.mHash);
+                }
+                else if (delta != null) {
+                    delta.txAdded(arch.mHash);
+                }
+                insert(new Entry(arch, receiver.amountForArchived(arch)));
+                ++added;
+            }
+        }
+
+        // Anything we didn't see is gone (cleared or replaced).
+        Iterator<Entry> it = mEntries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!seen.contains(entry.mHash)) {
+                it.remove();
+                mByHash.remove(entry.mHash);
+                if (delta != null)
+                    delta.txRemoved(entry.mHash);
+                ++removed;
+            }
+        }
+
+        if (added != 0 || removed != 0) {
+            mPrefix = null;
+            mLogger.info(String.format("index updated: %d added, " +
+                                       "%d removed, %d total",
+                                       added, removed, mEntries.size()));
+        }
+    }
+
+    // Returns up to limit rows starting at offset.  The balance is
+    // the current account balance; the rows' running balances are
+    // worked backward from it.
+    public synchronized List<Row> page(int offset, int limit, long balance) {
+        ArrayList<Row> rows = new ArrayList<Row>();
+        if (offset < 0 || offset >= mEntries.size())
+            return rows;
+
+        if (mPrefix == null)
+            rebuildPrefix();
+
+        long btcbal = balance - mPrefix[offset];
+        int end = Math.min(mEntries.size(), offset + limit);
+        for (int ii = offset; ii < end; ++ii) {
+            Entry entry = mEntries.get(ii);
+            rows.add(new Row(entry, btcbal));
+            // We're working backward in time ...
+            // Dead transactions should not affect the balance ...
+            if (!entry.isDead())
+                btcbal -= entry.mAmount;
+        }
+        return rows;
+    }
+
+    private void insert(Entry entry) {
+        int pos = Collections.binarySearch(mEntries, entry, ORDER);
+        if (pos < 0)
+            pos = -pos - 1;
+        mEntries.add(pos, entry);
+        mByHash.put(entry.mHash, entry);
+    }
+
+    private void remove(Entry entry) {
+        int pos = Collections.binarySearch(mEntries, entry, ORDER);
+        if (pos >= 0 && mEntries.get(pos) == entry)
+            mEntries.remove(pos);
+        else
+            mEntries.remove(entry);
+        mByHash.remove(entry.mHash);
+    }
+
+    private void rebuildPrefix() {
+        mPrefix = new long[mEntries.size() + 1];
+        long sum = 0;
+        for (int ii = 0; ii < mEntries.size(); ++ii) {
+            mPrefix[ii] = sum;
+            Entry entry = mEntries.get(ii);
+            if (!entry.isDead())
+                sum += entry.mAmount;
+        }
+        mPrefix[mEntries.size()] = sum;
+    }
+}
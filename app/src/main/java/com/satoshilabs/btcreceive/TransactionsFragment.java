@@ -17,18 +17,15 @@ package com.satoshilabs.btcreceive;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
-import com.google.bitcoin.wallet.WalletTransaction;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -43,6 +40,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.TableLayout;
 import android.widget.TableRow;
 import android.widget.TextView;
@@ -52,7 +50,11 @@ public class TransactionsFragment extends Fragment {
     private static Logger mLogger =
         LoggerFactory.getLogger(TransactionsFragment.class);
 
+    // Rows are fetched from the WalletService a page at a time.
+    private static final int PAGE_SIZE = 50;
+
     private boolean mUpdating = false;
+    private int mNumShown = PAGE_SIZE;
 
     protected LocalBroadcastManager mLBM;
 
@@ -76,6 +78,16 @@ public class TransactionsFragment extends Fragment {
         mLogger.info("TransactionsFragment onCreateView");
 		View view =
             inflater.inflate(R.layout.transactions_fragment, container, false);
+
+        Button more = (Button) view.findViewById(R.id.transaction_more);
+        more.setOnClickListener(new OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    mNumShown += PAGE_SIZE;
+                    updateTransactions();
+                }
+            });
+
 		return view;
 	}
 
@@ -84,8 +96,8 @@ public class TransactionsFragment extends Fragment {
         mLogger.info("TransactionsFragment onResume");
         super.onResume();
 
-        mLBM.registerReceiver(mWalletStateChangedReceiver,
-                              new IntentFilter("wallet-state-changed"));
+        mLBM.registerReceiver(mWalletDataChangedReceiver,
+                              new IntentFilter(WalletEventBus.ACTION_DATA));
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
 
@@ -97,17 +109,23 @@ public class TransactionsFragment extends Fragment {
         mLogger.info("TransactionsFragment onPause");
         super.onPause();
 
-        mLBM.unregisterReceiver(mWalletStateChangedReceiver);
+        mLBM.unregisterReceiver(mWalletDataChangedReceiver);
         mLBM.unregisterReceiver(mRateChangedReceiver);
 
         mLogger.info("TransactionsFragment paused");
     }
 
-    private BroadcastReceiver mWalletStateChangedReceiver =
+    private BroadcastReceiver mWalletDataChangedReceiver =
         new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                updateTransactions();
+                // Most changes are just confirmations ticking up,
+                // those only need their confidence column redrawn.
+                WalletDelta delta = WalletEventBus.getDelta(intent);
+                if (delta.historyChanged() || delta.getBalanceDelta() != 0)
+                    updateTransactions();
+                else if (!delta.getTxChanged().isEmpty())
+                    updateConfidence(delta.getTxChanged());
             }
         };
 
@@ -153,17 +171,21 @@ public class TransactionsFragment extends Fragment {
 
         row.setTag(hash);
 
-        row.setOnClickListener(new OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    // Dispatch to the transaction viewer.
-                    String hash = (String) view.getTag();
-                    Intent intent = new Intent(getActivity(),
-                                               ViewTransactionActivity.class);
-                    intent.putExtra("hash", hash);
-                    startActivity(intent);
-                }
-            }); 
+        // Archived transactions have no hash and can't be viewed.
+        if (hash != null) {
+            row.setOnClickListener(new OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        // Dispatch to the transaction viewer.
+                        String hash = (String) view.getTag();
+                        Intent intent =
+                            new Intent(getActivity(),
+                                       ViewTransactionActivity.class);
+                        intent.putExtra("hash", hash);
+                        startActivity(intent);
+                    }
+                });
+        }
 
         {
             TextView tv = (TextView) row.findViewById(R.id.row_date);
@@ -237,6 +259,7 @@ public class TransactionsFragment extends Fragment {
     private class UpdateTransactionsTask extends AsyncTask<Void, Void, Void> {
         private WalletService walletService;
         private ArrayList<RowData> rowdata;
+        private int numTotal;
         
         @Override
         protected void onPreExecute() {
@@ -258,43 +281,29 @@ public class TransactionsFragment extends Fragment {
             SimpleDateFormat timeFormater =
                 new SimpleDateFormat("kk:mm:ss");
 
-            Iterable<WalletTransaction> txit = walletService.getTransactions();
+            // Only fetch the rows we're going to show.
+            List<TransactionIndex.Row> rows =
+                walletService.getTransactionPage(0, mNumShown);
             // If we've been called before things are setup just bail.
-            if (txit == null)
+            if (rows == null)
                 return null;
 
-            ArrayList<WalletTransaction> txs =
-                new ArrayList<WalletTransaction>();
-            for (WalletTransaction wtx : txit)
-                txs.add(wtx);
-            // Sort in reverse time order (most recent first).
-            Collections.sort(txs, new Comparator<WalletTransaction>() {
-                    public int compare(WalletTransaction wt0,
-                                       WalletTransaction wt1) {
-                        Date dt0 = wt0.getTransaction().getUpdateTime();
-                        Date dt1 = wt1.getTransaction().getUpdateTime();
-                        int cmp = -dt0.compareTo(dt1);
-                        if (cmp == 0) {
-                            // These two transactions happened in the
-                            // same block (same time) so we should
-                            // compare something else to keep the
-                            // sorting order stable.
-                            Sha256Hash h0 = wt0.getTransaction().getHash();
-                            Sha256Hash h1 = wt1.getTransaction().getHash();
-                            return -h0.compareTo(h1);
-                        }
-                        return cmp;
-                    }
-                });
+            numTotal = walletService.getTransactionCount();
 
-            long btcbal = walletService.balanceForAccount();
-        
-            for (WalletTransaction wtx : txs) {
-                Transaction tx = wtx.getTransaction();
-                TransactionConfidence conf = tx.getConfidence();
-                ConfidenceType ct = conf.getConfidenceType();
+            for (TransactionIndex.Row item : rows) {
+                ConfidenceType ct;
+                TransactionConfidence conf = null;
+                long btc = item.mAmount;
+                long btcbal = item.mBalance;
+                if (item.mWtx != null) {
+                    conf = item.mWtx.getTransaction().getConfidence();
+                    ct = conf.getConfidenceType();
+                }
+                else {
+                    // Archived transactions are deeply buried.
+                    ct = ConfidenceType.BUILDING;
+                }
 
-                long btc = walletService.amountForAccount(wtx);
                 if (btc != 0) {
                     double fiat = BaseWalletActivity.getBTCFmt().fiatAtRate
                         (btc, ((BaseWalletActivity) getActivity())
@@ -303,10 +312,12 @@ public class TransactionsFragment extends Fragment {
                         (btcbal, ((BaseWalletActivity) getActivity())
                          .fiatPerBTC());
 
-                    String hash = tx.getHashAsString();
+                    // Archived transactions aren't in the wallet.
+                    String hash = item.mWtx != null ?
+                        item.mHash.toString() : null;
 
-                    String datestr = dateFormater.format(tx.getUpdateTime());
-                    String timestr = timeFormater.format(tx.getUpdateTime());
+                    String datestr = dateFormater.format(item.mTime);
+                    String timestr = timeFormater.format(item.mTime);
 
                     String btcstr = BaseWalletActivity.getBTCFmt()
                         .formatCol(btc, 0, true);
@@ -320,28 +331,12 @@ public class TransactionsFragment extends Fragment {
                         fiatstr = '+' + fiatstr;
                     String fiatbalstr = String.format("=%.02f", fiatbal);
 
-                    String confstr;
-                    switch (ct) {
-                    case UNKNOWN: confstr = "U"; break;
-                    case BUILDING:
-                        int depth = conf.getDepthInBlocks();
-                        confstr = depth > 100 ? "100+" :
-                            String.format("%d", depth);
-                        break;
-                    case PENDING: confstr = "P"; break;
-                    case DEAD: confstr = "D"; break;
-                    default: confstr = "?"; break;
-                    }
+                    String confstr = confString(ct, conf);
 
                     rowdata.add(new RowData(hash, datestr, timestr, confstr,
                                             btcstr, btcbalstr,
                                             fiatstr, fiatbalstr));
                 }
-
-                // We're working backward in time ...
-                // Dead transactions should not affect the balance ...
-                if (ct != ConfidenceType.DEAD)
-                    btcbal -= btc;
             }
 
             mLogger.info("UpdateTransactionsTask doInBackground finished");
@@ -370,6 +365,12 @@ public class TransactionsFragment extends Fragment {
                                       rd.btcstr, rd.btcbalstr,
                                       rd.fiatstr, rd.fiatbalstr);
                 }
+
+                // Offer more rows if there are any.
+                Button more = (Button) getActivity()
+                    .findViewById(R.id.transaction_more);
+                more.setVisibility(numTotal > mNumShown ?
+                                   View.VISIBLE : View.GONE);
             }
             finally {
                 mUpdating = false;
@@ -378,6 +379,50 @@ public class TransactionsFragment extends Fragment {
         }
     }
 
+    // Archived transactions have no confidence (conf is null).
+    private static String confString(ConfidenceType ct,
+                                     TransactionConfidence conf) {
+        switch (ct) {
+        case UNKNOWN: return "U";
+        case BUILDING:
+            int depth = conf == null ?
+                Integer.MAX_VALUE : conf.getDepthInBlocks();
+            return depth > 100 ? "100+" : String.format("%d", depth);
+        case PENDING: return "P";
+        case DEAD: return "D";
+        default: return "?";
+        }
+    }
+
+    // Redraws the confidence of the shown rows for these transactions
+    // and leaves the rest of the table alone.
+    private void updateConfidence(Set<String> hashes) {
+        WalletService walletService =
+            ((BaseWalletActivity) getActivity()).getWalletService();
+        if (walletService == null)
+            return;
+
+        TableLayout table = (TableLayout) getActivity()
+            .findViewById(R.id.transaction_table);
+        if (table == null)
+            return;
+
+        for (String hash : hashes) {
+            // Not on the page we're showing.
+            View row = table.findViewWithTag(hash);
+            if (row == null)
+                continue;
+
+            Transaction tx = walletService.getTransaction(hash);
+            if (tx == null)
+                continue;
+
+            TransactionConfidence conf = tx.getConfidence();
+            TextView tv = (TextView) row.findViewById(R.id.row_confidence);
+            tv.setText(confString(conf.getConfidenceType(), conf));
+        }
+    }
+
 	private synchronized void updateTransactions() {
         if (!mUpdating) {
             mUpdating = true;
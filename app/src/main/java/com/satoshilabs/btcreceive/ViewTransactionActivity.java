@@ -82,7 +82,7 @@ public class ViewTransactionActivity extends BaseWalletActivity {
 	}
 
 	@Override
-    protected void onWalletStateChanged() {
+    protected void onWalletDataChanged(WalletDelta delta) {
         mParams = mWalletService.getParams();
 
         // Find the transaction in the wallet.
@@ -114,6 +114,15 @@ public class ViewTransactionActivity extends BaseWalletActivity {
             tv.setText(confstr);
         }
 
+        // The confirmation count moves with every block, but the
+        // inputs and outputs only need another look if this
+        // transaction (or one of our addresses) changed.
+        if (!delta.isFull() &&
+            !delta.getTxAdded().contains(mHash) &&
+            !delta.getTxChanged().contains(mHash) &&
+            !delta.wasExtended())
+            return;
+
         // Enumerate the inputs and outputs in another task because
         // sometimes this is expensive ...
         //
@@ -92,15 +92,18 @@ public class WalletApplication
     private void setBTCUnits(String src) {
         if (src.equals("MBTC")) {
             mLogger.info("Setting BTC units to MBTC");
-            mBTCFmt = new BTCFmt(BTCFmt.SCALE_MBTC, this);
+            mBTCFmt = new BTCFmt(BTCFmt.SCALE_MBTC,
+                                 getString(R.string.app_units_mbtc));
         }
         else if (src.equals("BTC")) {
             mLogger.info("Setting BTC units to BTC");
-            mBTCFmt = new BTCFmt(BTCFmt.SCALE_BTC, this);
+            mBTCFmt = new BTCFmt(BTCFmt.SCALE_BTC,
+                                 getString(R.string.app_units_btc));
         }
         else if (src.equals("")) {
             mLogger.info("Defaulting BTC units to MBTC");
-            mBTCFmt = new BTCFmt(BTCFmt.SCALE_MBTC, this);
+            mBTCFmt = new BTCFmt(BTCFmt.SCALE_MBTC,
+                                 getString(R.string.app_units_mbtc));
         }
         else {
             mLogger.warn("Unknown btc units " + src);
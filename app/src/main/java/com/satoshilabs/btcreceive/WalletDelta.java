@@ -0,0 +1,212 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+// What changed in the wallet between two wallet-data-changed
+// broadcasts: transactions added, removed or with new confidence,
+// addresses whose counters moved, how far each chain was extended
+// and the change in balance.  Views use it to touch only the rows
+// it names.  A full delta means "assume everything changed" (the
+// index was rebuilt, or the poster didn't know), and is what a
+// receiver should presume when a broadcast carries no delta at all.
+//
+// Transactions and addresses are kept as strings, the same keys the
+// views tag their rows with.  Deltas only travel within the process
+// (LocalBroadcastManager doesn't marshal extras), Serializable just
+// lets one ride along as an Intent extra.
+//
+public class WalletDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean					mFull = false;
+    private boolean					mReordered = false;
+    private LinkedHashSet<String>	mTxAdded = new LinkedHashSet<String>();
+    private LinkedHashSet<String>	mTxRemoved = new LinkedHashSet<String>();
+    private LinkedHashSet<String>	mTxChanged = new LinkedHashSet<String>();
+    private LinkedHashSet<String>	mAddresses = new LinkedHashSet<String>();
+    private int						mReceiveExtended = 0;
+    private int						mChangeExtended = 0;
+    private long					mBalanceDelta = 0;
+    private long					mAvailableDelta = 0;
+
+    public static WalletDelta full() {
+        WalletDelta delta = new WalletDelta();
+        delta.setFull();
+        return delta;
+    }
+
+    public void setFull() {
+        mFull = true;
+    }
+
+    public void txAdded(Sha256Hash hash) {
+        added(hash.toString());
+    }
+
+    public void txRemoved(Sha256Hash hash) {
+        removed(hash.toString());
+    }
+
+    public void txChanged(Sha256Hash hash) {
+        changed(hash.toString());
+    }
+
+    // A transaction changed pools, time or amount, so the history
+    // order and running balances may have moved as well.
+    public void txMoved(Sha256Hash hash) {
+        changed(hash.toString());
+        mReordered = true;
+    }
+
+    public void addressChanged(HDAddress addr) {
+        mAddresses.add(addr.getAddressString());
+    }
+
+    public void extended(boolean isReceive, int count) {
+        if (isReceive)
+            mReceiveExtended += count;
+        else
+            mChangeExtended += count;
+    }
+
+    public void balanceChanged(long balance, long available) {
+        mBalanceDelta += balance;
+        mAvailableDelta += available;
+    }
+
+    // Folds a later delta into this one.
+    public void merge(WalletDelta later) {
+        if (later.mFull)
+            mFull = true;
+        if (later.mReordered)
+            mReordered = true;
+        for (String str : later.mTxRemoved)
+            removed(str);
+        for (String str : later.mTxAdded)
+            added(str);
+        for (String str : later.mTxChanged)
+            changed(str);
+        mAddresses.addAll(later.mAddresses);
+        mReceiveExtended += later.mReceiveExtended;
+        mChangeExtended += later.mChangeExtended;
+        mBalanceDelta += later.mBalanceDelta;
+        mAvailableDelta += later.mAvailableDelta;
+    }
+
+    public boolean isFull() {
+        return mFull;
+    }
+
+    public boolean isEmpty() {
+        return !mFull &&
+            !mReordered &&
+            mTxAdded.isEmpty() &&
+            mTxRemoved.isEmpty() &&
+            mTxChanged.isEmpty() &&
+            mAddresses.isEmpty() &&
+            mReceiveExtended == 0 &&
+            mChangeExtended == 0 &&
+            mBalanceDelta == 0 &&
+            mAvailableDelta == 0;
+    }
+
+    // True if rows were added to, removed from or moved within the
+    // history, as opposed to existing rows changing in place.
+    public boolean historyChanged() {
+        return mFull || mReordered ||
+            !mTxAdded.isEmpty() || !mTxRemoved.isEmpty();
+    }
+
+    public boolean wasExtended() {
+        return mReceiveExtended != 0 || mChangeExtended != 0;
+    }
+
+    public boolean hasAddress(String addrstr) {
+        return mFull || mAddresses.contains(addrstr);
+    }
+
+    public Set<String> getTxAdded() {
+        return mTxAdded;
+    }
+
+    public Set<String> getTxRemoved() {
+        return mTxRemoved;
+    }
+
+    public Set<String> getTxChanged() {
+        return mTxChanged;
+    }
+
+    public Set<String> getAddresses() {
+        return mAddresses;
+    }
+
+    public int getReceiveExtended() {
+        return mReceiveExtended;
+    }
+
+    public int getChangeExtended() {
+        return mChangeExtended;
+    }
+
+    public long getBalanceDelta() {
+        return mBalanceDelta;
+    }
+
+    public long getAvailableDelta() {
+        return mAvailableDelta;
+    }
+
+    private void added(String str) {
+        // Removed and added again (a reorg) is a change.
+        if (mTxRemoved.remove(str))
+            mTxChanged.add(str);
+        else
+            mTxAdded.add(str);
+    }
+
+    private void removed(String str) {
+        mTxChanged.remove(str);
+        // Added and removed again never happened.
+        if (!mTxAdded.remove(str))
+            mTxRemoved.add(str);
+    }
+
+    private void changed(String str) {
+        if (!mTxAdded.contains(str))
+            mTxChanged.add(str);
+    }
+
+    @Override
+    public String toString() {
+        if (mFull)
+            return "full";
+        return String.format("%d added, %d removed, %d changed, " +
+                             "%d addresses, extended %d/%d, " +
+                             "balance %+d, available %+d",
+                             mTxAdded.size(), mTxRemoved.size(),
+                             mTxChanged.size(), mAddresses.size(),
+                             mReceiveExtended, mChangeExtended,
+                             mBalanceDelta, mAvailableDelta);
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+
+// Coalesces WalletService's change notifications.  A sync produces
+// a burst of them (progress ticks, a wallet change per block with
+// our transactions) and every one used to rebuild every view.  Posts
+// now only mark a kind of change pending; the pending kinds are
+// broadcast together from the main thread, at most once per window.
+// The first post after a quiet spell goes out right away, later ones
+// wait for the window to close.
+//
+// Each kind has its own action so receivers only wake for what they
+// show:
+//
+//     wallet-state-changed     the service moved to a new State
+//     wallet-progress-changed  sync progress (percent, blocks to go)
+//     wallet-data-changed      balances, transactions or addresses
+//
+// Data changes posted with postData carry a WalletDelta; the deltas
+// of a window are merged and delivered as the EXTRA_DELTA extra.  A
+// plain post(DATA) makes the window's delta full.
+//
+public class WalletEventBus {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(WalletEventBus.class);
+
+    public static final String ACTION_STATE = "wallet-state-changed";
+    public static final String ACTION_PROGRESS = "wallet-progress-changed";
+    public static final String ACTION_DATA = "wallet-data-changed";
+
+    public static final String EXTRA_DELTA = "delta";
+
+    // Kinds of change, may be or'ed together.
+    public static final int STATE		= 1;
+    public static final int PROGRESS	= 2;
+    public static final int DATA		= 4;
+
+    // A few frames: long enough to swallow a burst, short enough
+    // that the update still looks immediate.
+    public static final long WINDOW_MSECS = 100;
+
+    private final LocalBroadcastManager	mLBM;
+    private final Handler				mHandler;
+
+    private int			mPending = 0;
+    private WalletDelta	mDelta = null;
+    private boolean		mScheduled = false;
+    private long		mLastDelivery = 0;	// uptime msecs
+
+    private int			mNumPosted = 0;
+    private int			mNumDelivered = 0;
+
+    public WalletEventBus(Context context) {
+        mLBM = LocalBroadcastManager.getInstance(context);
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Safe to call from any thread.
+    public synchronized void post(int kinds) {
+        if ((kinds & DATA) != 0)
+            mergeDelta(WalletDelta.full());
+        schedule(kinds);
+    }
+
+    // Safe to call from any thread.  The delta belongs to the bus
+    // afterwards.
+    public synchronized void postData(WalletDelta delta) {
+        mergeDelta(delta);
+        schedule(DATA);
+    }
+
+    private void mergeDelta(WalletDelta delta) {
+        if (mDelta == null)
+            mDelta = delta;
+        else
+            mDelta.merge(delta);
+    }
+
+    private void schedule(int kinds) {
+        ++mNumPosted;
+        mPending |= kinds;
+        if (mScheduled)
+            return;
+        mScheduled = true;
+        long delay = Math.max(0, mLastDelivery + WINDOW_MSECS -
+                              SystemClock.uptimeMillis());
+        mHandler.postDelayed(mDeliver, delay);
+    }
+
+    private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                int kinds;
+                WalletDelta delta;
+                synchronized (WalletEventBus.this) {
+                    kinds = mPending;
+                    delta = mDelta;
+                    mPending = 0;
+                    mDelta = null;
+                    mScheduled = false;
+                    mLastDelivery = SystemClock.uptimeMillis();
+                    ++mNumDelivered;
+                }
+                if ((kinds & STATE) != 0)
+                    mLBM.sendBroadcast(new Intent(ACTION_STATE));
+                if ((kinds & PROGRESS) != 0)
+                    mLBM.sendBroadcast(new Intent(ACTION_PROGRESS));
+                if ((kinds & DATA) != 0) {
+                    Intent intent = new Intent(ACTION_DATA);
+                    if (delta != null)
+                        intent.putExtra(EXTRA_DELTA, delta);
+                    mLBM.sendBroadcast(intent);
+                }
+            }
+        };
+
+    // The delta delivered with a wallet-data-changed broadcast; full
+    // if there wasn't one.
+    public static WalletDelta getDelta(Intent intent) {
+        WalletDelta delta =
+            (WalletDelta) intent.getSerializableExtra(EXTRA_DELTA);
+        return delta != null ? delta : WalletDelta.full();
+    }
+
+    public synchronized void logStats() {
+        mLogger.info(String.format("%d posts delivered in %d broadcasts",
+                                   mNumPosted, mNumDelivered));
+    }
+}
@@ -16,12 +16,14 @@
 package com.satoshilabs.btcreceive;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -40,9 +42,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -50,13 +54,14 @@ import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.support.v4.content.LocalBroadcastManager;
 
 import com.google.bitcoin.core.AbstractWalletEventListener;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
 import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionBroadcaster;
 import com.google.bitcoin.core.TransactionConfidence;
@@ -69,6 +74,8 @@ import com.google.bitcoin.core.Wallet.BalanceType;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -81,6 +88,13 @@ public class WalletService extends Service
     private static Logger mLogger =
         LoggerFactory.getLogger(WalletService.class);
 
+    // How many cached peers we try before the DNS seeds.
+    private static final int MAX_SEED_PEERS = 8;
+
+    // About ten weeks of headers (1.3MB), so rescans from a recent
+    // date can keep the header chain.
+    private static final int HEADER_STORE_CAPACITY = 10080;
+
     public enum State {
         SETUP,			// CTOR
         WALLET_SETUP,	// Setting up wallet app kit.
@@ -104,7 +118,7 @@ public class WalletService extends Service
     private int NOTIFICATION = R.string.wallet_service_started;
 
     private NotificationManager		mNM;
-    private LocalBroadcastManager	mLBM;
+    private WalletEventBus		mEventBus;
 
     private final IBinder mBinder = new WalletServiceBinder();
 
@@ -123,6 +137,17 @@ public class WalletService extends Service
     private KeyCrypter			mKeyCrypter;
     private KeyParameter		mAesKey;
     private HDReceiver			mHDReceiver = null;
+    private TransactionArchive	mArchive = null;
+    private TransactionIndex	mTxIndex = new TransactionIndex();
+    private RescanState			mRescanState = null;
+    private List<PeerAddress>	mWarmPeers = null;
+    private CheckpointIndex		mCheckpointIndex = null;
+    private PeerCache			mPeerCache;
+    private MempoolWatcher		mMempoolWatcher;
+    private MyDownloadListener	mDownloadListener = null;
+    private PhaseTimer			mPhaseTimer;
+    private KeyBatcher			mKeyBatcher = new KeyBatcher();
+    private AutosavePolicy		mAutosavePolicy = new AutosavePolicy();
 
     private RateUpdater			mRateUpdater;
 
@@ -136,21 +161,40 @@ public class WalletService extends Service
     private static final String mFilePrefix = "mytrezor-lite";
 
     private MyDownloadListener mkDownloadListener() {
-        return new MyDownloadListener() {
+        mDownloadListener = new MyDownloadListener() {
             protected void progress(double pct, int blocksToGo, Date date, long msecsLeft) {
                 Date cmplDate = new Date(System.currentTimeMillis() + msecsLeft);
-                mLogger.info(String.format("CHAIN DOWNLOAD %d%% DONE WITH %d BLOCKS TO GO, COMPLETE AT %s",
+                mLogger.info(String.format("CHAIN DOWNLOAD %d%% DONE WITH %d BLOCKS TO GO, COMPLETE AT %s, " +
+                                           "%.1f BLOCKS/SEC (PEAK %.1f)",
                                            (int) pct, blocksToGo,
-                                           DateFormat.getDateTimeInstance().format(cmplDate)));
+                                           DateFormat.getDateTimeInstance().format(cmplDate),
+                                           getSmoothedBlocksPerSec(),
+                                           getPeakBlocksPerSec()));
                 mBlocksToGo = blocksToGo;
                 mScanDate = date;
                 mMsecsLeft = msecsLeft;
+                // Note how far a scan has gotten in case we're killed.
+                if (mRescanState != null && mKit != null)
+                    mRescanState.recordProgress
+                        (mKit.wallet().getLastBlockSeenHeight());
                 if (mPercentDone != pct) {
                     mPercentDone = pct;
-                    setState(State.SYNCING);
+                    if (mState != State.SYNCING)
+                        setState(State.SYNCING);
+                    else
+                        mEventBus.post(WalletEventBus.PROGRESS);
                 }
             }
+
+            protected void doneDownload() {
+                mLogger.info(String.format("download done: %.1f blocks/sec " +
+                                           "(peak %.1f), %.0f bytes/sec",
+                                           getSmoothedBlocksPerSec(),
+                                           getPeakBlocksPerSec(),
+                                           getSmoothedBytesPerSec()));
+            }
         };
+        return mDownloadListener;
     }
 
     private AbstractWalletEventListener mWalletListener =
@@ -173,6 +217,14 @@ public class WalletService extends Service
                 if (amount < 0)
                     return;
 
+                // Don't wait for the autosave, a received payment
+                // shouldn't be lost if we're killed.
+                try {
+                    mKit.saveNow();
+                } catch (IOException ex) {
+                    mLogger.error("wallet save failed: " + ex.toString());
+                }
+
                 // We allocate a new notification id for each receive.
                 // We use it on both the receive and confirm so it
                 // will replace the receive note with the confirm ...
@@ -191,6 +243,11 @@ public class WalletService extends Service
 
                 final TransactionConfidence txconf = tx.getConfidence();
 
+                // Spot further payments to its addresses while it's
+                // in flight.
+                if (tx.isPending())
+                    mMempoolWatcher.watchPending(tx, wallet);
+
                 final TransactionConfidence.Listener listener = 
                     new TransactionConfidence.Listener() {
                         @Override
@@ -199,6 +256,8 @@ public class WalletService extends Service
                             // Wait until it's not pending anymore.
                             if (tx.isPending())
                                 return;
+
+                            mMempoolWatcher.unwatchPending(tx.getHash());
                  
                             ConfidenceType ct =
                                 tx.getConfidence().getConfidenceType();
@@ -335,24 +394,53 @@ public class WalletService extends Service
 
             @Override
             public void onWalletChanged(Wallet wallet) {
+                WalletDelta delta = new WalletDelta();
+                HDAccount account = mHDReceiver.getAccount();
+                long[] counters = account.saveCounters();
+                long balance = mHDReceiver.balanceForAccount();
+                long available = mHDReceiver.availableForAccount();
+                int nreceive = account.getReceiveChain().numAddrs();
+                int nchange = account.getChangeChain().numAddrs();
+
                 // Compute balances and transaction counts.
                 Iterable<WalletTransaction> iwt =
                     mKit.wallet().getWalletTransactions();
                 mHDReceiver.applyAllTransactions(iwt);
+                for (HDAddress addr : account.changedAddresses(counters))
+                    delta.addressChanged(addr);
 
                 // Check to make sure we have sufficient margins.
-                int maxExtended = mHDReceiver.ensureMargins(mKit.wallet());
+                ArrayList<ECKey> keys = new ArrayList<ECKey>();
+                int maxExtended = mHDReceiver.ensureMargins(keys);
+                mKeyBatcher.add(keys);
+                delta.extended(true, account.getReceiveChain().numAddrs() -
+                               nreceive);
+                delta.extended(false, account.getChangeChain().numAddrs() -
+                               nchange);
+                if (mKeyBatcher.flush(mKit.wallet(), mKit.peerGroup()) > 0) {
+                    // New addresses can change amounts, recompute them.
+                    mTxIndex.clear();
+                    delta.setFull();
+                }
+                mTxIndex.update(iwt, mArchive.getEntries(), mHDReceiver,
+                                delta);
+                delta.balanceChanged
+                    (mHDReceiver.balanceForAccount() - balance,
+                     mHDReceiver.availableForAccount() - available);
 
                 // Persist the new state.
                 mHDReceiver.persist();
 
-                Intent intent = new Intent("wallet-state-changed");
-                mLBM.sendBroadcast(intent);
+                // Post even when empty, depths past what the delta
+                // tracks still show in the transaction view.
+                if (!delta.isEmpty())
+                    mLogger.info("wallet changed: " + delta.toString());
+                mEventBus.postData(delta);
 
                 if (maxExtended > HDChain.maxSafeExtend()) {
                     mLogger.info(String.format("%d addresses added, rescanning",
                                                maxExtended));
-                    rescanBlockchain(HDAddress.EPOCH);
+                    rescanBlockchain(mHDReceiver.getScanStart());
                 }
             }
         };
@@ -360,6 +448,9 @@ public class WalletService extends Service
     public void shutdown() {
         mLogger.info("shutdown");
         mState = State.SHUTDOWN;
+        mPeerCache.persist();
+        mPhaseTimer.abandon();
+        mEventBus.logStats();
         try {
             if (mKit != null)
                 mKit.shutDown();
@@ -375,6 +466,10 @@ public class WalletService extends Service
         protected void onPreExecute() {
             mWakeLock.acquire();
             mLogger.info("wakelock acquired");
+
+            // Time this run's phases, by what kind of sync it is.
+            mPhaseTimer.begin(String.valueOf(mSyncState),
+                              String.valueOf(mState));
         }
 
 		@Override
@@ -382,13 +477,14 @@ public class WalletService extends Service
         {
             // scanTime  0 : full rescan
             // scanTime  t : scan from time t
-            final Long scanTime = params[0];
+            // scanTime -1 : scan from the account's first use
+            final Long requestTime = params[0];
             WalletApplication wallapp = (WalletApplication) mContext;
 
             setState(State.WALLET_SETUP);
 
             mLogger.info("setting up wallet, scanTime=" +
-                         scanTime.toString());
+                         requestTime.toString());
 
             mLogger.info("getting network parameters");
 
@@ -398,8 +494,7 @@ public class WalletService extends Service
             mHDReceiver = null;
             try {
 				mHDReceiver =
-                    HDReceiver.restore(mContext,
-                                       mParams,
+                    HDReceiver.restore(mParams,
                                        mContext.getFilesDir(),
                                        mFilePrefix, mKeyCrypter, mAesKey);
 			} catch (InvalidCipherTextException ex) {
@@ -416,13 +511,42 @@ public class WalletService extends Service
                 System.exit(0);
             }
 
+            final long scanTime = requestTime >= 0 ?
+                requestTime : mHDReceiver.getScanStart();
+            if (requestTime < 0)
+                mLogger.info(String.format("scanning from account start %d",
+                                           scanTime));
+
+            // Load any transactions archived from the wallet.
+            mArchive = new TransactionArchive(mContext.getFilesDir(),
+                                              mFilePrefix);
+            try {
+                mArchive.load();
+            } catch (IOException ex) {
+                mLogger.error("archive load failed: " + ex.toString());
+                mArchive.clear();
+            }
+            mHDReceiver.setArchive(mArchive);
+
+            SharedPreferences sharedPref =
+                PreferenceManager.getDefaultSharedPreferences(mContext);
+            boolean archiveTxs = sharedPref.getBoolean
+                (SettingsActivity.KEY_ARCHIVE_TRANSACTIONS, false);
+            String filterNode = sharedPref.getString
+                (SettingsActivity.KEY_FILTER_NODE, "").trim();
+            String indexerServer = sharedPref.getString
+                (SettingsActivity.KEY_INDEXER_SERVER, "").trim();
+            mAutosavePolicy = new AutosavePolicy
+                (readAutosaveDelay(sharedPref),
+                 AutosavePolicy.DEFAULT_SYNCED_DELAY);
+
             mLogger.info("creating new wallet app kit");
 
             // Checkpointing fails on full rescan because the earliest
             // create time is earlier than the genesis block time.
             //
             InputStream chkpntis = null;
-            if (scanTime != 0) {
+            if (scanTime != 0 && openCheckpointIndex() == null) {
                 try {
                     chkpntis = getAssets().open("checkpoints");
                 } catch (IOException e) {
@@ -450,25 +574,68 @@ public class WalletService extends Service
                         mHDReceiver.gatherAllKeys(scanTime, keys);
                         mLogger.info(String.format("adding %d keys",
                                                    keys.size()));
-                        wallet().addKeys(keys);
+                        mKeyBatcher.add(keys);
 
                         // Do we have enough margin on all our chains?
                         // Add keys to chains which don't have enough
                         // unused addresses at the end.
                         //
-                        mHDReceiver.ensureMargins(wallet());
+                        keys.clear();
+                        mHDReceiver.ensureMargins(keys);
+                        mKeyBatcher.add(keys);
+
+                        // Add everything in one batch so the filter
+                        // is only calculated once.
+                        mKeyBatcher.flush(wallet(), peerGroup());
 
                         // We don't need to check for HDChain.maxSafeExtend()
                         // here because we are about to scan anyway.
                         // We'll check again after the scan ...
 
+                        // Spot payments to the displayed address
+                        // straight from the peers.
+                        peerGroup().addEventListener
+                            (mMempoolWatcher.listener(), Threading.SAME_THREAD);
+
                         // Now we're peering.
                         setState(WalletService.State.PEERING);
                     }
                 };
             mKit.setDownloadListener(mkDownloadListener());
+            mKit.setHeaderStoreCapacity(HEADER_STORE_CAPACITY);
+            mKit.setAutosavePolicy(mAutosavePolicy);
+            mKit.setRestartTime(mHDReceiver.getScanStart());
+            mKit.setArchive(mArchive,
+                            archiveTxs ? TransactionArchive.DEFAULT_DEPTH : 0);
             if (chkpntis != null)
                 mKit.setCheckpoints(chkpntis);
+            else if (scanTime != 0)
+                mKit.setCheckpointIndex(mCheckpointIndex);
+            // Peers we were just connected to go first, then the
+            // best ones we remember; DNS discovery is the fallback.
+            List<PeerAddress> seeds = new ArrayList<PeerAddress>();
+            if (mWarmPeers != null) {
+                seeds.addAll(mWarmPeers);
+                mWarmPeers = null;
+            }
+            for (PeerAddress addr : mPeerCache.bestPeers(MAX_SEED_PEERS))
+                if (!seeds.contains(addr))
+                    seeds.add(addr);
+            mKit.setSeedPeers(seeds);
+            // Score the peers as we use them.
+            mKit.setPeerCache(mPeerCache);
+            // With a filter node configured we match compact block
+            // filters ourselves instead of handing peers a bloom
+            // filter of our addresses.
+            // An indexer server replaces block download entirely.
+            if (indexerServer.length() > 0) {
+                mLogger.info("using indexer " + indexerServer);
+                mKit.setIndexer(ElectrumClient.fromUrl(indexerServer));
+            } else if (filterNode.length() > 0) {
+                mLogger.info("using compact filters from " + filterNode);
+                mKit.setFilterSource(new RestFilterSource(mParams,
+                                                          filterNode));
+            }
 
             setState(State.WALLET_SETUP);
 
@@ -497,8 +664,19 @@ public class WalletService extends Service
                 mKit.wallet().getWalletTransactions();
             mHDReceiver.applyAllTransactions(iwt);
 
+            // A scan from the epoch (or earlier) saw all of the
+            // account's history, so it can tell us the birthday.
+            mHDReceiver.updateBirthday(iwt, scanTime <= HDAddress.EPOCH);
+
             // Check the margins again, since transactions may have arrived.
-            int maxExtended = mHDReceiver.ensureMargins(mKit.wallet());
+            ArrayList<ECKey> keys = new ArrayList<ECKey>();
+            int maxExtended = mHDReceiver.ensureMargins(keys);
+            mKeyBatcher.add(keys);
+            mKeyBatcher.flush(mKit.wallet(), mKit.peerGroup());
+
+            // Build the transaction history index.
+            mTxIndex.clear();
+            mTxIndex.update(iwt, mArchive.getEntries(), mHDReceiver);
 
             // Persist the new state.
             mHDReceiver.persist();
@@ -506,6 +684,7 @@ public class WalletService extends Service
             // Listen for future wallet changes.
             mKit.wallet().addEventListener(mWalletListener);
 
+            mEventBus.post(WalletEventBus.DATA);
             setState(State.READY);	// This may be temporary ...
 
 			return maxExtended;
@@ -517,19 +696,64 @@ public class WalletService extends Service
             mWakeLock.release();
             mLogger.info("wakelock released");
 
+            mPhaseTimer.end();
+
             // Do we need another rescan?
             if (maxExtended > HDChain.maxSafeExtend()) {
                 mLogger.info(String.format("rescan extended by %d, rescanning",
                                            maxExtended));
-                rescanBlockchain(HDAddress.EPOCH);
+                rescanBlockchain(mHDReceiver.getScanStart());
             }
             else {
                 mLogger.info("synchronized");
+                if (mRescanState != null) {
+                    mLogger.info("scan finished: " + mRescanState);
+                    mRescanState.delete();
+                    mRescanState = null;
+                }
                 setSyncState(SyncState.SYNCHRONIZED);
+                mKit.setSynchronized(true);
+                mPeerCache.persist();
             }
         }
     }
 
+    // The checkpoint index is copied out of the assets so it can be
+    // memory mapped; it's mapped once and kept for every scan.
+    // Returns null if it can't be opened.
+    private CheckpointIndex openCheckpointIndex() {
+        if (mCheckpointIndex != null)
+            return mCheckpointIndex;
+
+        File file = new File(mContext.getFilesDir(),
+                             CheckpointIndex.ASSET_NAME);
+        try {
+            // Refresh the copy when the app is updated.
+            long updated = getPackageManager()
+                .getPackageInfo(getPackageName(), 0).lastUpdateTime;
+            if (!file.exists() || file.lastModified() < updated) {
+                mLogger.info("copying checkpoint index");
+                InputStream istrm =
+                    getAssets().open(CheckpointIndex.ASSET_NAME);
+                FileOutputStream ostrm = new FileOutputStream(file);
+                try {
+                    Io.copy(istrm, ostrm);
+                } finally {
+                    istrm.close();
+                    ostrm.close();
+                }
+            }
+            mCheckpointIndex = new CheckpointIndex(mParams, file);
+
+        } catch (NameNotFoundException ex) {
+            mLogger.warn("checkpoint index: " + ex.toString());
+        } catch (IOException ex) {
+            mLogger.warn("checkpoint index: " + ex.toString());
+            file.delete();
+        }
+        return mCheckpointIndex;
+    }
+
     public WalletService() {
         mState = State.SETUP;
     }
@@ -543,7 +767,7 @@ public class WalletService extends Service
     public void onCreate()
     {
         mNM = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        mLBM = LocalBroadcastManager.getInstance(this);
+        mEventBus = new WalletEventBus(this);
 
         mLogger.info("WalletService created");
 
@@ -563,6 +787,24 @@ public class WalletService extends Service
 
         // Register for future preference changes.
         sharedPref.registerOnSharedPreferenceChangeListener(this);
+
+        mPeerCache = new PeerCache(mContext.getFilesDir(), mFilePrefix);
+        mPeerCache.load();
+
+        mMempoolWatcher = new MempoolWatcher(mContext, MainNetParams.get());
+
+        String version = "unknown";
+        try {
+            version = getPackageManager()
+                .getPackageInfo(getPackageName(), 0).versionName;
+        } catch (NameNotFoundException ex) {
+            mLogger.warn("no package info: " + ex.toString());
+        }
+        mPhaseTimer = new PhaseTimer(mContext.getFilesDir(), mFilePrefix,
+                                     version,
+                                     Build.MANUFACTURER + " " + Build.MODEL +
+                                     " " + Build.VERSION.RELEASE);
+        mPhaseTimer.load();
     }
 
     @Override
@@ -570,9 +812,11 @@ public class WalletService extends Service
     {
         WalletApplication wallapp = (WalletApplication) getApplicationContext();
 
-        // Establish our SyncState
-        Bundle bundle = intent.getExtras();
-        String syncStateStr = bundle.getString("SyncState");
+        // Establish our SyncState.  We're restarted with a null
+        // intent if the system killed us.
+        Bundle bundle = intent == null ? null : intent.getExtras();
+        String syncStateStr =
+            bundle == null ? null : bundle.getString("SyncState");
         if (syncStateStr == null)
             syncStateStr = "STARTUP";
         mSyncState =
@@ -588,9 +832,31 @@ public class WalletService extends Service
 
         // Set any new key's creation time to now.
         long now = Utils.now().getTime() / 1000;
+        long scanTime = now;
+
+        // If a scan was interrupted pick it up where it left off.
+        // The wallet file knows which block it got to, we need the
+        // original scan time so the keys are added the same way.
+        RescanState rescan =
+            RescanState.load(mContext.getFilesDir(), mFilePrefix);
+        if (mSyncState == SyncState.STARTUP && rescan != null) {
+            mLogger.info("resuming interrupted scan: " + rescan);
+            mSyncState = rescan.getSyncState();
+            scanTime = rescan.getScanTime();
+            mRescanState = rescan;
+        }
+        else if (mSyncState != SyncState.STARTUP) {
+            // A restore scans from the account's first use.
+            if (mSyncState == SyncState.RESTORE)
+                scanTime = -1;
+            mRescanState = new RescanState(mContext.getFilesDir(),
+                                           mFilePrefix, mSyncState,
+                                           scanTime, -1);
+            mRescanState.persist();
+        }
 
         mTask = new SetupWalletTask();
-        mTask.execute(now);
+        mTask.execute(scanTime);
 
         mLogger.info("WalletService started");
 
@@ -753,6 +1019,13 @@ public class WalletService extends Service
             break;
         }
 
+        // Remember the rescan until it finishes; it's written once the
+        // cleared wallet is saved, so a resumed rescan never finds the
+        // old transactions.
+        mRescanState = new RescanState(mContext.getFilesDir(), mFilePrefix,
+                                       mSyncState, rescanTime,
+                                       mKit.chain().getBestChainHeight());
+
         // Remove our wallet event listener.
         mKit.wallet().removeEventListener(mWalletListener);
 
@@ -766,10 +1039,40 @@ public class WalletService extends Service
         mHDReceiver.persist();
         mHDReceiver = null;
 
+        // If the header store still has the block the rescan starts
+        // from we keep the headers and point the wallet there; the
+        // kit rewinds the chain head to the wallet's last block, so
+        // only the filtered blocks are downloaded again.
+        StoredBlock fromBlock = null;
+        try {
+            fromBlock = mKit.findBlockBefore(rescanTime);
+        } catch (BlockStoreException ex) {
+            mLogger.warn("header store lookup failed: " + ex.toString());
+        }
+
         mLogger.info("resetting wallet state");
         mKit.wallet().clearTransactions(0); 
-        mKit.wallet().setLastBlockSeenHeight(-1); // magic value 
-        mKit.wallet().setLastBlockSeenHash(null); 
+        mArchive.clear();
+        mTxIndex.clear();
+        // Its pending payments and the payments it announced went with
+        // the transactions.
+        mMempoolWatcher.clear();
+        if (fromBlock != null) {
+            mLogger.info(String.format("rescanning in place after block %d",
+                                       fromBlock.getHeight()));
+            mKit.wallet().setLastBlockSeenHeight(fromBlock.getHeight());
+            mKit.wallet().setLastBlockSeenHash
+                (fromBlock.getHeader().getHash());
+        }
+        else {
+            mKit.wallet().setLastBlockSeenHeight(-1); // magic value 
+            mKit.wallet().setLastBlockSeenHash(null); 
+        }
+
+        // Reconnect to the same peers instead of discovering new
+        // ones; they've already proven they respond.
+        mWarmPeers = mKit.connectedPeerAddresses();
+        mPeerCache.persist();
 
         mLogger.info("shutting kit down");
         try {
@@ -780,11 +1083,16 @@ public class WalletService extends Service
             return;
 		}
 
-        mLogger.info("removing spvchain file");
-        File chainFile =
-            new File(mContext.getFilesDir(), mFilePrefix + ".spvchain");
-        if (!chainFile.delete())
-            mLogger.error("delete of spvchain file failed");
+        if (fromBlock == null) {
+            mLogger.info("removing spvchain file");
+            File chainFile =
+                new File(mContext.getFilesDir(), mFilePrefix + ".spvchain");
+            if (!chainFile.delete())
+                mLogger.error("delete of spvchain file failed");
+        }
+
+        // The kit saved the cleared wallet on shutdown.
+        mRescanState.persist();
 
         mLogger.info("restarting wallet");
         WalletApplication wallapp = (WalletApplication) getApplicationContext();
@@ -825,6 +1133,68 @@ public class WalletService extends Service
         return mMsecsLeft;
     }
 
+    // Download throughput of the current (or last) sync; zero
+    // before any blocks arrive.
+    public double getBlocksPerSec() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener == null ? 0 : listener.getBlocksPerSec();
+    }
+
+    public double getSmoothedBlocksPerSec() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener == null ? 0 : listener.getSmoothedBlocksPerSec();
+    }
+
+    public double getBytesPerSec() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener == null ? 0 : listener.getBytesPerSec();
+    }
+
+    public double getSmoothedBytesPerSec() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener == null ? 0 : listener.getSmoothedBytesPerSec();
+    }
+
+    public double getPeakBlocksPerSec() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener == null ? 0 : listener.getPeakBlocksPerSec();
+    }
+
+    public boolean isSyncStalled() {
+        MyDownloadListener listener = mDownloadListener;
+        return listener != null && listener.isStalled();
+    }
+
+    // The account's first use, 0 if unknown.
+    public long getAccountBirthday() {
+        if (mHDReceiver == null)
+            return 0;
+        return mHDReceiver.getBirthday();
+    }
+
+    // The syncing autosave delay from the settings, in msecs.
+    private static long readAutosaveDelay(SharedPreferences sharedPref) {
+        String secs = sharedPref.getString
+            (SettingsActivity.KEY_AUTOSAVE_DELAY, "");
+        try {
+            return Long.parseLong(secs.trim()) * 1000;
+        } catch (NumberFormatException ex) {
+            return AutosavePolicy.DEFAULT_SYNCING_DELAY;
+        }
+    }
+
+    public AutosavePolicy getAutosavePolicy() {
+        return mAutosavePolicy;
+    }
+
+    public int getFilterRebuilds() {
+        return mKeyBatcher.getNumRebuilds();
+    }
+
+    public long getFilterBytesResent() {
+        return mKeyBatcher.getBytesResent();
+    }
+
     public String getStateString() {
         switch (mState) {
         case SETUP:
@@ -894,6 +1264,44 @@ public class WalletService extends Service
         return mKit.wallet().getWalletTransactions();
     }
 
+    public List<TransactionArchive.Entry> getArchivedTransactions() {
+        if (mHDReceiver == null || mArchive == null)
+            return null;
+
+        if (mState != State.READY)
+            return null;
+
+        return mArchive.getEntries();
+    }
+
+    public long amountForArchived(TransactionArchive.Entry entry) {
+        return mHDReceiver.amountForArchived(entry);
+    }
+
+    // Number of live and archived transactions in the history.
+    public int getTransactionCount() {
+        if (mHDReceiver == null)
+            return 0;
+
+        if (mState != State.READY)
+            return 0;
+
+        return mTxIndex.size();
+    }
+
+    // Returns a page of the history, most recent first, with running
+    // balances.
+    public List<TransactionIndex.Row> getTransactionPage(int offset,
+                                                         int limit) {
+        if (mHDReceiver == null)
+            return null;
+
+        if (mState != State.READY)
+            return null;
+
+        return mTxIndex.page(offset, limit, mHDReceiver.balanceForAccount());
+    }
+
     public Transaction getTransaction(String hashstr) {
         Sha256Hash hash = new Sha256Hash(hashstr);
         return mKit.wallet().getTransaction(hash);
@@ -907,6 +1315,25 @@ public class WalletService extends Service
         return mHDReceiver.findAddress(addr);
     }
 
+    // Reports "payment-seen" as soon as a peer relays a payment to
+    // the address.
+    public void watchPayment(Address addr) {
+        mMempoolWatcher.watch(addr);
+    }
+
+    // The UI has shown the payment from a "payment-seen".
+    public void paymentShown(String txhash) {
+        mMempoolWatcher.shown(new Sha256Hash(txhash));
+    }
+
+    public MempoolWatcher getMempoolWatcher() {
+        return mMempoolWatcher;
+    }
+
+    public PhaseTimer getPhaseTimer() {
+        return mPhaseTimer;
+    }
+
     public static class AmountAndFee {
         public long		mAmount;
         public long		mFee;
@@ -934,12 +1361,8 @@ public class WalletService extends Service
             return;
         mLogger.info("setState " + getStateString());
         mState = newstate;
-        sendStateChanged();
-    }
-
-    private void sendStateChanged() {
-        Intent intent = new Intent("wallet-state-changed");
-        mLBM.sendBroadcast(intent);
+        mPhaseTimer.enter(newstate.toString());
+        mEventBus.post(WalletEventBus.STATE);
     }
 
     public void sweepKey(ECKey key, long fee,
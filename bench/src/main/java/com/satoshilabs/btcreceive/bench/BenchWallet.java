@@ -0,0 +1,57 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.bench;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.params.MainNetParams;
+import com.satoshilabs.btcreceive.harness.WalletGenerator;
+
+// A generated wallet for the benchmarks to work on.  The receive
+// chain has numAddrs used addresses (plus the margin) and every one
+// of them has seen a couple of transactions.
+//
+public class BenchWallet {
+
+    public final NetworkParameters	mParams;
+    public final DeterministicKey	mAccountKey;
+    public final WalletGenerator	mGenerator;
+    public final JSONObject			mNode;		// as HDReceiver.dumps()
+
+    public BenchWallet(int numAddrs) {
+        mParams = MainNetParams.get();
+        mAccountKey = WalletGenerator.seedAccountKey();
+
+        WalletGenerator.Config config = new WalletGenerator.Config();
+        config.mNumReceive = numAddrs;
+        config.mNumChange = Math.max(1, numAddrs / 4);
+        config.mNumTxs = numAddrs * 2;
+        mGenerator = new WalletGenerator(mParams, mAccountKey, config);
+        mGenerator.generate();
+        mNode = mGenerator.dumps();
+    }
+
+    public JSONObject accountNode() throws JSONException {
+        return mNode.getJSONObject("account");
+    }
+
+    public JSONObject receiveNode() throws JSONException {
+        return accountNode().getJSONObject("receive");
+    }
+}
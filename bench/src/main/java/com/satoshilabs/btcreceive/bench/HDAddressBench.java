@@ -0,0 +1,79 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.satoshilabs.btcreceive.HDAddress;
+
+// Creating a single address: deriving it from the chain key (new
+// addresses, margin extension) and reading it back from its JSON
+// node (every restore).
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDAddressBench {
+
+    private BenchWallet			mWallet;
+    private DeterministicKey	mChainKey;
+    private JSONObject			mAddrNode;
+    private HDAddress			mAddress;
+    private int					mAddrNum = 0;
+
+    @Setup
+    public void setup() throws JSONException {
+        mWallet = new BenchWallet(100);
+        mChainKey = HDKeyDerivation.deriveChildKey(mWallet.mAccountKey, 0);
+        mAddrNode = mWallet.receiveNode().getJSONArray("addrs")
+            .getJSONObject(0);
+        mAddress = new HDAddress(mWallet.mParams, mChainKey, mAddrNode);
+    }
+
+    @Benchmark
+    public HDAddress derive() {
+        // A different child each time, nothing is cached per index.
+        return new HDAddress(mWallet.mParams, mChainKey, mAddrNum++ & 0xffff);
+    }
+
+    @Benchmark
+    public HDAddress restore() throws JSONException {
+        return new HDAddress(mWallet.mParams, mChainKey, mAddrNode);
+    }
+
+    @Benchmark
+    public JSONObject dumps() {
+        return mAddress.dumps();
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.satoshilabs.btcreceive.HDAddress;
+import com.satoshilabs.btcreceive.HDAddressDescription;
+import com.satoshilabs.btcreceive.HDChain;
+
+// HDChain operations against chains of several sizes.  The lookups
+// use the last address on the chain and one that isn't on it, the
+// worst cases for a linear search.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDChainBench {
+
+    @Param({"100", "1000", "10000"})
+    public int				mNumAddrs;
+
+    private BenchWallet		mWallet;
+    private JSONObject		mChainNode;
+    private HDChain			mChain;
+    private Address			mLastAddr;
+    private byte[]			mLastPubKeyHash;
+    private Address			mMissingAddr;
+    private List<ECKey>		mKeys = new ArrayList<ECKey>();
+
+    @Setup
+    public void setup() throws JSONException {
+        mWallet = new BenchWallet(mNumAddrs);
+        mChainNode = mWallet.receiveNode();
+        mChain = new HDChain(mWallet.mParams, mWallet.mAccountKey, mChainNode);
+
+        List<HDAddress> addrs = mChain.getAddresses();
+        mLastAddr = addrs.get(addrs.size() - 1).getAddress();
+        mLastPubKeyHash = mLastAddr.getHash160();
+        mMissingAddr = new Address(mWallet.mParams, new byte[20]);
+    }
+
+    @Benchmark
+    public HDChain restore() throws JSONException {
+        return new HDChain(mWallet.mParams, mWallet.mAccountKey, mChainNode);
+    }
+
+    @Benchmark
+    public JSONObject dumps() {
+        return mChain.dumps();
+    }
+
+    @Benchmark
+    public HDAddressDescription findAddress() {
+        return mChain.findAddress(mLastAddr);
+    }
+
+    @Benchmark
+    public HDAddressDescription findAddressMissing() {
+        return mChain.findAddress(mMissingAddr);
+    }
+
+    @Benchmark
+    public boolean hasPubKey() {
+        return mChain.hasPubKey(null, mLastPubKeyHash);
+    }
+
+    @Benchmark
+    public long applyOutput() {
+        mChain.applyOutput(null, mLastPubKeyHash, 1, true);
+        return mChain.balance();
+    }
+
+    // The common case: called after every wallet change, the margin
+    // is already there.
+    @Benchmark
+    public int ensureMargins() {
+        mKeys.clear();
+        return mChain.ensureMargins(null, null, mKeys);
+    }
+
+    // Every address used, so a whole margin has to be derived.
+    @State(Scope.Thread)
+    public static class Exhausted {
+        public HDChain		mChain;
+
+        @Setup(Level.Iteration)
+        public void setup(HDChainBench bench) throws JSONException {
+            JSONObject node = new JSONObject(bench.mChainNode.toString());
+            JSONArray addrs = node.getJSONArray("addrs");
+            JSONObject last = addrs.getJSONObject(addrs.length() - 1);
+            last.put("numTrans", 1);
+            mChain = new HDChain(bench.mWallet.mParams,
+                                 bench.mWallet.mAccountKey, node);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public int ensureMarginsExtend(Exhausted exhausted) {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        return exhausted.mChain.ensureMargins(null, null, keys);
+    }
+}
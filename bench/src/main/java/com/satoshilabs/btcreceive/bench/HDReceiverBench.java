@@ -0,0 +1,132 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.crypto.InvalidCipherTextException;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.satoshilabs.btcreceive.HDAddress;
+import com.satoshilabs.btcreceive.HDAddressDescription;
+import com.satoshilabs.btcreceive.HDReceiver;
+
+// The whole-wallet operations WalletService runs after every wallet
+// change, at several wallet sizes.  The wallets have twice as many
+// transactions as receive addresses.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDReceiverBench {
+
+    private static final String PREFIX = "bench";
+
+    @Param({"100", "1000", "10000"})
+    public int							mNumAddrs;
+
+    private BenchWallet					mWallet;
+    private List<WalletTransaction>		mTransactions;
+    private File						mDir;
+    private HDReceiver					mReceiver;
+    private Address						mLastAddr;
+    private List<ECKey>					mKeys = new ArrayList<ECKey>();
+
+    @Setup
+    public void setup() throws IOException {
+        mWallet = new BenchWallet(mNumAddrs);
+        mTransactions = mWallet.mGenerator.getTransactions();
+
+        mDir = File.createTempFile("hdreceiver", "");
+        mDir.delete();
+        mDir.mkdirs();
+
+        mReceiver = new HDReceiver(mWallet.mParams, mDir, PREFIX,
+                                   mWallet.mNode);
+        mReceiver.persist();
+        mReceiver.applyAllTransactions(mTransactions);
+
+        List<HDAddress> addrs =
+            mReceiver.getAccount().getChangeChain().getAddresses();
+        mLastAddr = addrs.get(addrs.size() - 1).getAddress();
+    }
+
+    @TearDown
+    public void teardown() {
+        for (File file : mDir.listFiles())
+            file.delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long applyAllTransactions() {
+        mReceiver.applyAllTransactions(mTransactions);
+        return mReceiver.balanceForAccount();
+    }
+
+    // What the transactions list does to show every row.
+    @Benchmark
+    public long amountForAccount() {
+        long total = 0;
+        for (WalletTransaction wtx : mTransactions)
+            total += mReceiver.amountForAccount(wtx);
+        return total;
+    }
+
+    @Benchmark
+    public int ensureMargins() {
+        mKeys.clear();
+        return mReceiver.ensureMargins(mKeys);
+    }
+
+    // The worst case, the last change address.
+    @Benchmark
+    public HDAddressDescription findAddress() {
+        return mReceiver.findAddress(mLastAddr);
+    }
+
+    @Benchmark
+    public void persist() {
+        mReceiver.persist();
+    }
+
+    @Benchmark
+    public HDReceiver restore()
+        throws InvalidCipherTextException, IOException {
+        return HDReceiver.restore(mWallet.mParams, mDir, PREFIX, null, null);
+    }
+}
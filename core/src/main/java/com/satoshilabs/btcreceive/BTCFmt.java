@@ -15,10 +15,9 @@
 
 package com.satoshilabs.btcreceive;
 
-import android.content.Context;
-import android.content.res.Resources;
-
-
+// Formats and parses bitcoin amounts at a given scale.  The unit
+// string comes from the caller so this doesn't need resources.
+//
 public class BTCFmt {
 
     public final static int SCALE_BTC = 8;
@@ -27,19 +26,11 @@ public class BTCFmt {
     private int mScale;
     private String mUnitStr;
 
-    public BTCFmt(int scale, Context ctxt) {
+    public BTCFmt(int scale, String unitStr) {
+        if (scale != SCALE_BTC && scale != SCALE_MBTC)
+            throw new RuntimeException(String.format("unknown scale %d", scale));
         mScale = scale;
-        Resources res = ctxt.getResources();
-        switch (mScale) {
-        case SCALE_BTC:
-            mUnitStr = res.getString(R.string.app_units_btc);
-            break;
-        case SCALE_MBTC:
-            mUnitStr = res.getString(R.string.app_units_mbtc);
-            break;
-        default:
-            throw new RuntimeException(String.format("unknown scale %d", mScale));
-        }
+        mUnitStr = unitStr;
     }
 
     public String unitStr() {
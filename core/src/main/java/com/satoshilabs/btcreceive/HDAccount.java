@@ -16,6 +16,7 @@
 package com.satoshilabs.btcreceive;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -30,7 +31,6 @@ import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ScriptException;
 import com.google.bitcoin.core.TransactionOutput;
-import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.ChildNumber;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
@@ -230,14 +230,67 @@ public class HDAccount {
         }
     }
 
+    // Snapshot of every address's transaction count, balance and
+    // available amount, receive chain first (after its length).
+    // Hand it back to changedAddresses after applying transactions
+    // to find out which addresses moved.
+    public long[] saveCounters() {
+        List<HDAddress> receive = mReceiveChain.getAddresses();
+        List<HDAddress> change = mChangeChain.getAddresses();
+        long[] counters =
+            new long[1 + 3 * (receive.size() + change.size())];
+        counters[0] = receive.size();
+        int ndx = 1;
+        for (HDAddress addr : receive)
+            ndx = saveCounters(addr, counters, ndx);
+        for (HDAddress addr : change)
+            ndx = saveCounters(addr, counters, ndx);
+        return counters;
+    }
+
+    // Addresses whose counters differ from the snapshot.  Addresses
+    // added since the snapshot count as changed.
+    public List<HDAddress> changedAddresses(long[] counters) {
+        ArrayList<HDAddress> changed = new ArrayList<HDAddress>();
+        int nreceive = (int) counters[0];
+        changedAddresses(mReceiveChain, counters, 1, 1 + 3 * nreceive,
+                         changed);
+        changedAddresses(mChangeChain, counters, 1 + 3 * nreceive,
+                         counters.length, changed);
+        return changed;
+    }
+
+    private static int saveCounters(HDAddress addr, long[] counters, int ndx) {
+        counters[ndx++] = addr.numTrans();
+        counters[ndx++] = addr.getBalance();
+        counters[ndx++] = addr.getAvailable();
+        return ndx;
+    }
+
+    private static void changedAddresses(HDChain chain,
+                                         long[] counters,
+                                         int ndx,
+                                         int end,
+                                         List<HDAddress> changed) {
+        for (HDAddress addr : chain.getAddresses()) {
+            if (ndx >= end ||
+                counters[ndx] != addr.numTrans() ||
+                counters[ndx + 1] != addr.getBalance() ||
+                counters[ndx + 2] != addr.getAvailable())
+                changed.add(addr);
+            ndx += 3;
+        }
+    }
+
     // Returns the largest number of addresses added to a chain.
-    public int ensureMargins(Wallet wallet,
-                              KeyCrypter keyCrypter,
-                              KeyParameter aesKey) {
+    // Keys for new addresses on both chains are appended to keys.
+    public int ensureMargins(KeyCrypter keyCrypter,
+                             KeyParameter aesKey,
+                             List<ECKey> keys) {
         int receiveAdded =
-            mReceiveChain.ensureMargins(wallet, keyCrypter, aesKey);
+            mReceiveChain.ensureMargins(keyCrypter, aesKey, keys);
         int changeAdded =
-            mChangeChain.ensureMargins(wallet, keyCrypter, aesKey);
+            mChangeChain.ensureMargins(keyCrypter, aesKey, keys);
 
         return (receiveAdded > changeAdded) ? receiveAdded : changeAdded;
     }
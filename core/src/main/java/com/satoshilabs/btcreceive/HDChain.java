@@ -30,7 +30,6 @@ import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Utils;
-import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.google.bitcoin.crypto.KeyCrypter;
@@ -204,10 +203,12 @@ public class HDChain {
         return count;
     }
 
-    // Returns the number of addresses added.
-    public int ensureMargins(Wallet wallet,
-                             KeyCrypter keyCrypter,
-                             KeyParameter aesKey) {
+    // Returns the number of addresses added.  The keys for any new
+    // addresses are appended to keys; the caller is responsible for
+    // adding them to the wallet (see KeyBatcher).
+    public int ensureMargins(KeyCrypter keyCrypter,
+                             KeyParameter aesKey,
+                             List<ECKey> keys) {
         // How many unused addresses do we have at the end of the chain?
         int numUnused = marginSize();
 
@@ -227,14 +228,11 @@ public class HDChain {
 
             // Add the addresses ...
             int newSize = mAddrs.size() + numAdd;
-            ArrayList<ECKey> keys = new ArrayList<ECKey>();
             for (int ii = mAddrs.size(); ii < newSize; ++ii) {
                 HDAddress hda = new HDAddress(mParams, mChainKey, ii);
                 mAddrs.add(hda);
                 hda.gatherKey(keyCrypter, aesKey, now, keys);
             }
-            mLogger.info(String.format("adding %d keys", keys.size()));
-            wallet.addKeys(keys);
 
             return numAdd;
         }
@@ -22,6 +22,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.json.JSONException;
@@ -32,20 +33,18 @@ import org.spongycastle.crypto.DataLengthException;
 import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.params.KeyParameter;
 
-import android.content.Context;
-
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Base58;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.TransactionOutput;
-import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.script.Script;
@@ -65,13 +64,20 @@ public class HDReceiver {
 
     private ECKey				mWorkaroundKey = null;
 
+    private TransactionArchive	mArchive = null;
+
+    private long				mBirthday = 0;	// secs, 0 if unknown
+
+    // Scans start this long before the account's first use; the
+    // checkpoint adds another week.
+    public static final long BIRTHDAY_MARGIN = 2 * 86400;
+
     public static String persistPath(String filePrefix) {
         return filePrefix + ".hdreceive";
     }
 
     // Create an HDReceiver from persisted file data.
-    public static HDReceiver restore(Context ctxt,
-                                     NetworkParameters params,
+    public static HDReceiver restore(NetworkParameters params,
                                      File directory,
                                      String filePrefix,
                                      KeyCrypter keyCrypter,
@@ -81,7 +87,7 @@ public class HDReceiver {
         try {
             JSONObject node = deserialize(directory, filePrefix);
 
-            return new HDReceiver(ctxt, params, directory, filePrefix, node);
+            return new HDReceiver(params, directory, filePrefix, node);
         }
         catch (JSONException ex) {
             String msg = "trouble deserializing wallet: " + ex.toString();
@@ -153,8 +159,7 @@ public class HDReceiver {
     }
 
     // This signature is used when the receiver is deserialized.
-    public HDReceiver(Context ctxt,
-                      NetworkParameters params,
+    public HDReceiver(NetworkParameters params,
                       File dir,
                       String prefix,
                       JSONObject node) {
@@ -181,6 +186,8 @@ public class HDReceiver {
             JSONObject acctNode = node.getJSONObject("account");
             mAccount = new HDAccount(params, mAccountKey, acctNode);
 
+            mBirthday = node.optLong("birthday", 0);
+
             mLogger.info("deserialized HDReceiver");
         }
         catch (Exception ex) {
@@ -193,8 +200,7 @@ public class HDReceiver {
     }
 
     // This signature is used when the xpub is imported.
-    public HDReceiver(Context ctxt,
-                      NetworkParameters params,
+    public HDReceiver(NetworkParameters params,
                       File dir,
                       String prefix,
                       DeterministicKey accountRootKey) {
@@ -223,6 +229,8 @@ public class HDReceiver {
             obj.put("account", mAccount.dumps());
             obj.put("workaroundPrivKey",
                     Base58.encode(mWorkaroundKey.getPrivKeyBytes()));
+            if (mBirthday != 0)
+                obj.put("birthday", mBirthday);
         return obj;
         }
         catch (JSONException ex) {
@@ -233,12 +241,64 @@ public class HDReceiver {
     public HDAccount getAccount() {
     	return mAccount;
     }
+
+    // The time of the account's first transaction, 0 if unknown.
+    public long getBirthday() {
+        return mBirthday;
+    }
+
+    public void setBirthday(long birthday) {
+        mLogger.info(String.format("account birthday %d", birthday));
+        mBirthday = birthday;
+    }
+
+    // Where a scan for all of the account's transactions starts.
+    public long getScanStart() {
+        if (mBirthday == 0)
+            return HDAddress.EPOCH;
+        return Math.max(0, mBirthday - BIRTHDAY_MARGIN);
+    }
+
+    // A transaction earlier than the birthday moves it back.  If we
+    // don't have a birthday we can only take one from a scan which
+    // covered the whole history (complete).
+    public void updateBirthday(Iterable<WalletTransaction> iwt,
+                               boolean complete) {
+        if (mBirthday == 0 && !complete)
+            return;
+
+        long first = Long.MAX_VALUE;
+        for (WalletTransaction wtx : iwt)
+            first = Math.min(first, wtx.getTransaction()
+                             .getUpdateTime().getTime() / 1000);
+        if (mArchive != null)
+            for (TransactionArchive.Entry entry : mArchive.getEntries())
+                first = Math.min(first, entry.getUpdateTime().getTime() / 1000);
+
+        if (first != Long.MAX_VALUE && (mBirthday == 0 || first < mBirthday))
+            setBirthday(first);
+    }
     
     public void gatherAllKeys(long creationTime, List<ECKey> keys) {
         keys.add(mWorkaroundKey);
         mAccount.gatherAllKeys(null, null, creationTime, keys);
     }
 
+    // Archived transactions are included in the balances and
+    // inputs spending archived outputs are valued from the archive.
+    public void setArchive(TransactionArchive archive) {
+        mArchive = archive;
+    }
+
+    // Returns the value of an input whose connected output has been
+    // archived, or -1 if it isn't known.
+    private long archivedInputValue(TransactionInput ti) {
+        if (mArchive == null)
+            return -1;
+        TransactionArchive.Output out = mArchive.findOutput(ti.getOutpoint());
+        return out == null ? -1 : out.mValue;
+    }
+
     public void clearBalances() {
         // Clears the balance and tx counters.
         mAccount.clearBalance();
@@ -248,9 +308,13 @@ public class HDReceiver {
         // Clear the balance and tx counters.
         clearBalances();
 
+        HashSet<Sha256Hash> live = new HashSet<Sha256Hash>();
+
         for (WalletTransaction wtx : iwt) {
             // WalletTransaction.Pool pool = wtx.getPool();
             Transaction tx = wtx.getTransaction();
+            if (mArchive != null)
+                live.add(tx.getHash());
             boolean avail = !tx.isPending();
             TransactionConfidence conf = tx.getConfidence();
             ConfidenceType ct = conf.getConfidenceType();
@@ -282,14 +346,15 @@ public class HDReceiver {
                 for (TransactionInput ti : lti) {
                     // Get the connected TransactionOutput to see value.
                     TransactionOutput cto = ti.getConnectedOutput();
-                    if (cto == null) {
+                    long value = cto == null ?
+                        archivedInputValue(ti) : cto.getValue().longValue();
+                    if (value < 0) {
                         // It appears we land here when processing transactions
                         // where we handled the output above.
                         //
                         // mLogger.warn("couldn't find connected output for input");
                         continue;
                     }
-                    long value = cto.getValue().longValue();
                     try {
                         byte[] pubkey = ti.getScriptSig().getPubKey();
                         mAccount.applyInput(pubkey, value);
@@ -301,6 +366,21 @@ public class HDReceiver {
             }
         }
 
+        // Archived transactions are deep and fully spent, so their
+        // amounts are all available.  Skip any that are live again
+        // (we were interrupted before the pruned wallet was saved).
+        if (mArchive != null) {
+            for (TransactionArchive.Entry entry : mArchive.getEntries()) {
+                if (live.contains(entry.mHash))
+                    continue;
+                for (TransactionArchive.Output out : entry.mOutputs)
+                    mAccount.applyOutput(out.mPubKey, out.mPubKeyHash,
+                                         out.mValue, true);
+                for (TransactionArchive.Input in : entry.mInputs)
+                    mAccount.applyInput(in.mPubKey, in.mValue);
+            }
+        }
+
         // This is too noisy
         // // Log balance summary.
         // for (HDAccount acct : mAccounts)
@@ -357,14 +437,15 @@ public class HDReceiver {
         for (TransactionInput ti : lti) {
             // Get the connected TransactionOutput to see value.
             TransactionOutput cto = ti.getConnectedOutput();
-            if (cto == null) {
+            long value = cto == null ?
+                archivedInputValue(ti) : cto.getValue().longValue();
+            if (value < 0) {
                 // It appears we land here when processing transactions
                 // where we handled the output above.
                 //
                 // mLogger.warn("couldn't find connected output for input");
                 continue;
             }
-            long value = cto.getValue().longValue();
             try {
                 byte[] pubkey = ti.getScriptSig().getPubKey();
                 for (HDAccount hda : accts)
@@ -379,6 +460,18 @@ public class HDReceiver {
         return credits - debits;
     }
 
+    public long amountForArchived(TransactionArchive.Entry entry) {
+        long credits = 0;
+        long debits = 0;
+        for (TransactionArchive.Output out : entry.mOutputs)
+            if (mAccount.hasPubKey(out.mPubKey, out.mPubKeyHash))
+                credits += out.mValue;
+        for (TransactionArchive.Input in : entry.mInputs)
+            if (mAccount.hasPubKey(in.mPubKey, null))
+                debits += in.mValue;
+        return credits - debits;
+    }
+
     public Address nextReceiveAddress() {
         HDAccount acct = mAccount;
         return acct.nextReceiveAddress();
@@ -422,9 +515,11 @@ public class HDReceiver {
     }
 
     // Ensure that there are enough spare addresses on all chains.
-    // Returns the most number of addresses added to a chain.
-    public int ensureMargins(Wallet wallet) {
-    	return mAccount.ensureMargins(wallet, null, null);
+    // Returns the most number of addresses added to a chain.  Keys
+    // for the new addresses are appended to keys so they can be
+    // added to the wallet in a single batch.
+    public int ensureMargins(List<ECKey> keys) {
+    	return mAccount.ensureMargins(null, null, keys);
     }
 
     public Balance getBalance() {
@@ -0,0 +1,435 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.bitcoin.wallet.WalletTransaction.Pool;
+
+import org.bitcoinj.wallet.Protos;
+
+// Append-only store for transactions which have been pruned from
+// the bitcoinj Wallet.  A transaction is archived once it is buried
+// deeper than the archive depth and all of our outputs in it have
+// been spent.  Only what HDReceiver needs is kept: the outputs and
+// connected inputs reduced to (pubkey or pubkey hash, value) pairs,
+// plus the hash, time and height for the history display.
+//
+public class TransactionArchive {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(TransactionArchive.class);
+
+    // About a week of blocks.
+    public static final int DEFAULT_DEPTH = 1008;
+
+    private static final int MAGIC = 0x4d544c41;	// "MTLA"
+    private static final int VERSION = 1;
+
+    private final File					mFile;
+
+    private ArrayList<Entry>			mEntries = new ArrayList<Entry>();
+    private HashSet<Sha256Hash>			mHashes = new HashSet<Sha256Hash>();
+    private HashMap<String, Output>		mOutputs = new HashMap<String, Output>();
+
+    public static String persistPath(String filePrefix) {
+        return filePrefix + ".txarchive";
+    }
+
+    public static class Output {
+        public final int		mIndex;
+        public final long		mValue;
+        public final byte[]		mPubKey;		// null unless pay-to-pubkey
+        public final byte[]		mPubKeyHash;	// null if pay-to-pubkey
+
+        public Output(int index, long value, byte[] pubkey, byte[] pubkeyhash) {
+            mIndex = index;
+            mValue = value;
+            mPubKey = pubkey;
+            mPubKeyHash = pubkeyhash;
+        }
+    }
+
+    public static class Input {
+        public final long		mValue;
+        public final byte[]		mPubKey;
+
+        public Input(long value, byte[] pubkey) {
+            mValue = value;
+            mPubKey = pubkey;
+        }
+    }
+
+    public static class Entry {
+        public final Sha256Hash		mHash;
+        public final long			mUpdateTime;	// msecs
+        public final int			mHeight;
+        public final List<Output>	mOutputs;
+        public final List<Input>	mInputs;
+
+        public Entry(Sha256Hash hash, long updateTime, int height,
+                     List<Output> outputs, List<Input> inputs) {
+            mHash = hash;
+            mUpdateTime = updateTime;
+            mHeight = height;
+            mOutputs = outputs;
+            mInputs = inputs;
+        }
+
+        public Date getUpdateTime() {
+            return new Date(mUpdateTime);
+        }
+
+        public String getHashAsString() {
+            return mHash.toString();
+        }
+    }
+
+    public TransactionArchive(File dir, String prefix) {
+        mFile = new File(dir, persistPath(prefix));
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized boolean contains(Sha256Hash hash) {
+        return mHashes.contains(hash);
+    }
+
+    // Returns an archived output, used to value the inputs of live
+    // transactions which spend from archived ones.
+    public synchronized Output findOutput(TransactionOutPoint outpoint) {
+        return mOutputs.get(outpointKey(outpoint.getHash(),
+                                        outpoint.getIndex()));
+    }
+
+    private static String outpointKey(Sha256Hash hash, long index) {
+        return hash.toString() + ":" + index;
+    }
+
+    public synchronized void load() throws IOException {
+        mEntries.clear();
+        mHashes.clear();
+        mOutputs.clear();
+
+        if (!mFile.exists())
+            return;
+
+        long goodLength = 8;	// header
+        DataInputStream dis = new DataInputStream
+            (new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+                throw new IOException("bad archive header in " + mFile);
+            while (true) {
+                byte[] record;
+                try {
+                    record = new byte[dis.readInt()];
+                    dis.readFully(record);
+                } catch (EOFException ex) {
+                    // End of the archive, or a record cut short by a
+                    // crash during append; either way we're done.
+                    break;
+                }
+                index(readEntry(new DataInputStream
+                                (new ByteArrayInputStream(record))));
+                goodLength += 4 + record.length;
+            }
+        } finally {
+            dis.close();
+        }
+
+        // Drop any partial record so later appends line up.
+        if (mFile.length() > goodLength) {
+            mLogger.warn("truncating partial archive record");
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(goodLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        mLogger.info(String.format("loaded %d archived transactions",
+                                   mEntries.size()));
+    }
+
+    public synchronized void append(List<Entry> entries) throws IOException {
+        boolean exists = mFile.exists();
+        DataOutputStream dos = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        try {
+            if (!exists) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+            }
+            for (Entry entry : entries) {
+                if (mHashes.contains(entry.mHash))
+                    continue;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                writeEntry(new DataOutputStream(baos), entry);
+                dos.writeInt(baos.size());
+                baos.writeTo(dos);
+                index(entry);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    // Called when rescanning; the rescan will bring everything back
+    // into the live wallet.
+    public synchronized void clear() {
+        mEntries.clear();
+        mHashes.clear();
+        mOutputs.clear();
+        if (mFile.exists() && !mFile.delete())
+            mLogger.warn("failed to delete " + mFile);
+    }
+
+    private void index(Entry entry) {
+        mEntries.add(entry);
+        mHashes.add(entry.mHash);
+        for (Output out : entry.mOutputs)
+            mOutputs.put(outpointKey(entry.mHash, out.mIndex), out);
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] bytes)
+        throws IOException {
+        if (bytes == null) {
+            dos.writeShort(-1);
+        } else {
+            dos.writeShort(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        int len = dis.readShort();
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeEntry(DataOutputStream dos, Entry entry)
+        throws IOException {
+        dos.write(entry.mHash.getBytes());
+        dos.writeLong(entry.mUpdateTime);
+        dos.writeInt(entry.mHeight);
+        dos.writeShort(entry.mOutputs.size());
+        for (Output out : entry.mOutputs) {
+            dos.writeInt(out.mIndex);
+            dos.writeLong(out.mValue);
+            writeBytes(dos, out.mPubKey);
+            writeBytes(dos, out.mPubKeyHash);
+        }
+        dos.writeShort(entry.mInputs.size());
+        for (Input in : entry.mInputs) {
+            dos.writeLong(in.mValue);
+            writeBytes(dos, in.mPubKey);
+        }
+    }
+
+    private static Entry readEntry(DataInputStream dis) throws IOException {
+        byte[] hash = new byte[32];
+        dis.readFully(hash);
+        long updateTime = dis.readLong();
+        int height = dis.readInt();
+        int numOutputs = dis.readShort();
+        ArrayList<Output> outputs = new ArrayList<Output>(numOutputs);
+        for (int ii = 0; ii < numOutputs; ++ii) {
+            int index = dis.readInt();
+            long value = dis.readLong();
+            byte[] pubkey = readBytes(dis);
+            byte[] pubkeyhash = readBytes(dis);
+            outputs.add(new Output(index, value, pubkey, pubkeyhash));
+        }
+        int numInputs = dis.readShort();
+        ArrayList<Input> inputs = new ArrayList<Input>(numInputs);
+        for (int ii = 0; ii < numInputs; ++ii) {
+            long value = dis.readLong();
+            byte[] pubkey = readBytes(dis);
+            inputs.add(new Input(value, pubkey));
+        }
+        return new Entry(new Sha256Hash(hash), updateTime, height,
+                         outputs, inputs);
+    }
+
+    // Reduces a wallet transaction to an archive entry.  Inputs
+    // spending outputs we archived earlier aren't connected in the
+    // wallet, they are valued from the archive instead.
+    public Entry toEntry(Transaction tx) {
+        ArrayList<Output> outputs = new ArrayList<Output>();
+        List<TransactionOutput> lto = tx.getOutputs();
+        for (int ii = 0; ii < lto.size(); ++ii) {
+            TransactionOutput to = lto.get(ii);
+            try {
+                byte[] pubkey = null;
+                byte[] pubkeyhash = null;
+                Script script = to.getScriptPubKey();
+                if (script.isSentToRawPubKey())
+                    pubkey = script.getPubKey();
+                else
+                    pubkeyhash = script.getPubKeyHash();
+                outputs.add(new Output(ii, to.getValue().longValue(),
+                                       pubkey, pubkeyhash));
+            } catch (ScriptException ex) {
+                // Not a script we could ever match.
+                continue;
+            }
+        }
+
+        ArrayList<Input> inputs = new ArrayList<Input>();
+        for (TransactionInput ti : tx.getInputs()) {
+            long value;
+            TransactionOutput cto = ti.getConnectedOutput();
+            if (cto != null) {
+                value = cto.getValue().longValue();
+            } else {
+                Output out = findOutput(ti.getOutpoint());
+                if (out == null)
+                    continue;
+                value = out.mValue;
+            }
+            try {
+                inputs.add(new Input(value, ti.getScriptSig().getPubKey()));
+            } catch (ScriptException ex) {
+                continue;
+            }
+        }
+
+        TransactionConfidence conf = tx.getConfidence();
+        return new Entry(tx.getHash(), tx.getUpdateTime().getTime(),
+                         conf.getAppearedAtChainHeight(), outputs, inputs);
+    }
+
+    // Finds the transactions which can be archived.  A transaction
+    // qualifies if it is more than depth blocks deep, all of our
+    // outputs are spent, and every wallet transaction it spends
+    // from qualifies as well.  The last rule keeps the live wallet
+    // self-consistent: no live output is ever marked as spent by a
+    // transaction that is no longer there.
+    public static Set<Sha256Hash> findArchivable(Wallet wallet, int depth) {
+        HashMap<Sha256Hash, Transaction> candidates =
+            new HashMap<Sha256Hash, Transaction>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+            if (wtx.getPool() != Pool.SPENT)
+                continue;
+            Transaction tx = wtx.getTransaction();
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.getConfidenceType() != ConfidenceType.BUILDING)
+                continue;
+            if (conf.getDepthInBlocks() <= depth)
+                continue;
+            candidates.put(tx.getHash(), tx);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            ArrayList<Sha256Hash> dropped = new ArrayList<Sha256Hash>();
+            for (Transaction tx : candidates.values()) {
+                for (TransactionInput ti : tx.getInputs()) {
+                    Sha256Hash parent = ti.getOutpoint().getHash();
+                    if (wallet.getTransaction(parent) != null &&
+                        !candidates.containsKey(parent)) {
+                        dropped.add(tx.getHash());
+                        break;
+                    }
+                }
+            }
+            for (Sha256Hash hash : dropped) {
+                candidates.remove(hash);
+                changed = true;
+            }
+        }
+
+        return new HashSet<Sha256Hash>(candidates.keySet());
+    }
+
+    // Moves the archivable transactions out of the wallet and into
+    // this archive.  Returns the wallet without them, for the caller
+    // to load (with its wallet extensions) in place of the original,
+    // or null if there was nothing to do.
+    public Protos.Wallet prune(Wallet wallet, int depth) throws IOException {
+        Set<Sha256Hash> archivable = findArchivable(wallet, depth);
+        if (archivable.isEmpty())
+            return null;
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (Sha256Hash hash : archivable)
+            entries.add(toEntry(wallet.getTransaction(hash)));
+
+        // Write the archive first.  If we die before the pruned
+        // wallet is saved the transactions are in both places;
+        // HDReceiver skips archive entries which are still live.
+        append(entries);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet proto = serializer.walletToProto(wallet);
+        Protos.Wallet.Builder builder = proto.toBuilder().clearTransaction();
+        for (Protos.Transaction ptx : proto.getTransactionList()) {
+            Sha256Hash hash = new Sha256Hash(ptx.getHash().toByteArray());
+            if (!archivable.contains(hash))
+                builder.addTransaction(ptx);
+        }
+
+        mLogger.info(String.format("archived %d transactions, %d remain live",
+                                   archivable.size(),
+                                   builder.getTransactionCount()));
+        return builder.build();
+    }
+}
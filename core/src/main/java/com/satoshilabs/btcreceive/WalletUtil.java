@@ -19,32 +19,18 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
-import java.util.Hashtable;
 import java.util.List;
 
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Color;
-
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Base58;
 import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ScriptException;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Transaction.SigHash;
@@ -56,99 +42,15 @@ import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.crypto.TransactionSignature;
-import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.protobuf.ByteString;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 public class WalletUtil {
 
     private static Logger mLogger =
         LoggerFactory.getLogger(WalletUtil.class);
 
-    private static final String filePrefix = "mytrezor-lite";
-
-	private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
-
-    public static void setPasscode(Context context,
-                                   WalletService walletService,
-                                   String passcode,
-                                   boolean isChange) {
-
-        WalletApplication wallapp =
-            (WalletApplication) context.getApplicationContext();
-
-        KeyParameter oldAesKey = wallapp.mAesKey;
-
-        mLogger.info("setPasscode starting");
-
-        byte[] salt;
-        if (isChange) {
-            // Reuse our salt (better chance of recovering if
-            // we are between passcode values).
-            salt = readSalt(context);
-        } else {
-            // Create salt and write to file.
-            SecureRandom secureRandom = new SecureRandom();
-            salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
-            secureRandom.nextBytes(salt);
-            writeSalt(context, salt);
-        }
-
-        KeyCrypter keyCrypter = getKeyCrypter(salt);
-        KeyParameter aesKey = keyCrypter.deriveKey(passcode);
-
-        if (isChange) {
-            walletService.changePasscode(oldAesKey, keyCrypter, aesKey);
-        }
-
-        // Set up the application context with credentials.
-        wallapp.mPasscode = passcode;
-        wallapp.mKeyCrypter = keyCrypter;
-        wallapp.mAesKey = aesKey;
-
-        mLogger.info("setPasscode finished");
-    }
-
-    public static void writeSalt(Context context, byte[] salt) {
-        mLogger.info("writing salt " + new String(Hex.encode(salt)));
-        File saltFile = new File(context.getFilesDir(), "salt");
-        FileOutputStream saltStream;
-		try {
-			saltStream = new FileOutputStream(saltFile);
-			saltStream.write(salt);
-			saltStream.close();
-		} catch (FileNotFoundException ex) {
-			ex.printStackTrace();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		}
-    }
-
-    public static byte[] readSalt(Context context) {
-        File saltFile = new File(context.getFilesDir(), "salt");
-        byte[] salt = new byte[(int) saltFile.length()];
-        DataInputStream dis;
-		try {
-			dis = new DataInputStream(new FileInputStream(saltFile));
-			dis.readFully(salt);
-			dis.close();
-            // mLogger.info("read salt " + new String(Hex.encode(salt)));
-            return salt;
-		} catch (FileNotFoundException ex) {
-			ex.printStackTrace();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		}
-        return null;
-    }
-
     public static KeyCrypter getKeyCrypter(byte[] salt) {
         Protos.ScryptParameters.Builder scryptParametersBuilder =
             Protos.ScryptParameters.newBuilder()
@@ -162,44 +64,6 @@ public class WalletUtil {
         return Utils.reverseBytes(msgbytes);
     }
 
-    public static Bitmap createBitmap(String content, final int size) {
-        final Hashtable<EncodeHintType, Object> hints =
-            new Hashtable<EncodeHintType, Object>();
-        hints.put(EncodeHintType.MARGIN, 0);
-        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
-        BitMatrix result;
-		try {
-			result = sQRCodeWriter.encode(content,
-                                          BarcodeFormat.QR_CODE,
-                                          size,
-                                          size,
-                                          hints);
-		} catch (WriterException ex) {
-            mLogger.warn("qr encoder failed: " + ex.toString());
-            return null;
-		}
-
-        final int width = result.getWidth();
-        final int height = result.getHeight();
-        final int[] pixels = new int[width * height];
-
-        for (int y = 0; y < height; y++)
-        {
-            final int offset = y * width;
-            for (int x = 0; x < width; x++)
-            {
-                pixels[offset + x] =
-                    result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
-            }
-        }
-
-        final Bitmap bitmap =
-            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-        return bitmap;
-    }
-
     // Thanks to devrandom!
     public static void signTransactionInputs(Transaction tx,
                                              SigHash hashType,
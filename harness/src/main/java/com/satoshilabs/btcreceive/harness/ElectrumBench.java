@@ -0,0 +1,147 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.RegTestParams;
+import com.satoshilabs.btcreceive.ElectrumClient;
+import com.satoshilabs.btcreceive.MyWalletAppKit;
+
+// Offline restore benchmark for the indexer backend: generates a
+// FakeChain paying an account, serves it from a FakeElectrumServer
+// and restores a MyWalletAppKit holding many of the account's
+// receive keys from it, then checks the wallet found every payment.
+// The kit is then started again on the same files, which must keep
+// the wallet's transactions rather than starting over.
+//
+//     gradle :harness:electrumBench -Pargs="addresses blocks paymentInterval"
+//
+// Results go to stdout as "name value" lines.
+//
+public class ElectrumBench {
+
+    public static void main(String[] args) throws Exception {
+        int numAddrs = 10000;
+        FakeChain.Config config = new FakeChain.Config();
+        config.mNumBlocks = 1000;
+        config.mTxsPerBlock = 2;
+        config.mPaymentInterval = 5;
+        if (args.length > 0)
+            numAddrs = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.mNumBlocks = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            config.mPaymentInterval = Integer.parseInt(args[2]);
+
+        NetworkParameters params = RegTestParams.get();
+        DeterministicKey accountKey =
+            HDKeyDerivation.createMasterPrivateKey("harness-seed".getBytes("UTF-8"));
+
+        FakeChain chain = new FakeChain(params, accountKey, config);
+        chain.generate();
+        FakeElectrumServer server = new FakeElectrumServer(params, chain);
+        server.start(0);
+
+        DeterministicKey receiveChain =
+            HDKeyDerivation.deriveChildKey(accountKey, 0);
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        for (int ii = 0; ii < Math.max(numAddrs, chain.getNumPayments()); ++ii) {
+            ECKey key = new ECKey(null, HDKeyDerivation.deriveChildKey
+                                  (receiveChain, ii).getPubKeyBytes());
+            key.setCreationTimeSeconds(chain.getStartTime());
+            keys.add(key);
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "electrumbench-" + System.currentTimeMillis());
+
+        long start = System.currentTimeMillis();
+        MyWalletAppKit kit = newKit(params, dir, chain, keys, null);
+        kit.setIndexer(new ElectrumClient("127.0.0.1", server.getPort(), false));
+        kit.startAndWait();
+        long restoreMsecs = System.currentTimeMillis() - start;
+        long requests = server.getNumRequests();
+        BigInteger balance = kit.wallet().getBalance(BalanceType.ESTIMATED);
+        kit.stopAndWait();
+
+        // Again on the same files; what the wallet holds before the
+        // indexer syncs is what survived the restart.
+        final int[] kept = new int[1];
+        start = System.currentTimeMillis();
+        kit = newKit(params, dir, chain, keys, kept);
+        kit.setIndexer(new ElectrumClient("127.0.0.1", server.getPort(), false));
+        kit.startAndWait();
+        long restartMsecs = System.currentTimeMillis() - start;
+        BigInteger restartBalance =
+            kit.wallet().getBalance(BalanceType.ESTIMATED);
+        kit.stopAndWait();
+        server.close();
+
+        System.out.println("addresses " + keys.size());
+        System.out.println("blocks " + chain.getHeight());
+        System.out.println("payments " + chain.getNumPayments());
+        System.out.println("restore_msecs " + restoreMsecs);
+        System.out.println("restore_requests " + requests);
+        System.out.println("restart_msecs " + restartMsecs);
+        System.out.println("restart_kept_txs " + kept[0]);
+        System.out.println("balance " + balance);
+        System.out.println("restart_balance " + restartBalance);
+        System.out.println("expected " + chain.getTotalPaid());
+
+        boolean ok = true;
+        if (balance.longValue() != chain.getTotalPaid() ||
+            restartBalance.longValue() != chain.getTotalPaid()) {
+            System.err.println("FAILED: wallet missed payments");
+            ok = false;
+        }
+        if (kept[0] != chain.getNumPayments()) {
+            System.err.println("FAILED: restart dropped the wallet's transactions");
+            ok = false;
+        }
+        if (!ok)
+            System.exit(1);
+    }
+
+    // Adds the keys to a new wallet; if kept isn't null records how
+    // many transactions the loaded wallet has.
+    private static MyWalletAppKit newKit(NetworkParameters params,
+                                         File dir,
+                                         FakeChain chain,
+                                         final List<ECKey> keys,
+                                         final int[] kept) {
+        MyWalletAppKit kit =
+            new MyWalletAppKit(params, dir, "bench", null, chain.getStartTime()) {
+                @Override
+                protected void onSetupCompleted() {
+                    if (wallet().getKeychainSize() == 0)
+                        wallet().addKeys(keys);
+                    if (kept != null)
+                        kept[0] = wallet().getTransactions(false).size();
+                }
+            };
+        kit.setAutoStop(false);
+        return kit;
+    }
+}
@@ -0,0 +1,267 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+
+// A synthetic block chain on top of the RegTest genesis block for
+// FakePeer to serve.  Every block has a coinbase and some filler
+// transactions paying random addresses; every so often one pays the
+// next receive address of the given account instead, in order, so
+// a wallet which keeps a normal margin finds all of them.  The tip
+// never pays the account.
+//
+// Blocks are assembled from bytes so only the stable parts of the
+// bitcoinj API are needed, and kept serialized to save memory.
+// RegTest's proof of work limit is the easiest target and its
+// retarget interval is long, so the difficulty never changes as
+// long as blocks are spaced a few minutes apart.
+//
+public class FakeChain {
+
+    public static final long SPACING_SECS = 600;
+    public static final long PAYMENT_VALUE = 100000;	// satoshi
+
+    private static final long BITS = 0x207fffffL;
+    private static final BigInteger TARGET = Utils.decodeCompactBits(BITS);
+
+    public static class Config {
+        public int		mNumBlocks = 2000;
+        public int		mTxsPerBlock = 10;
+        // One payment to the account every this many blocks.
+        public int		mPaymentInterval = 20;
+        public long		mSeed = 1;
+    }
+
+    private final NetworkParameters	mParams;
+    private final DeterministicKey	mReceiveChain;
+    private final Config			mConfig;
+    private final Random			mRandom;
+
+    private final List<byte[]>		mBlocks = new ArrayList<byte[]>();
+    private final List<Block>		mHeaders = new ArrayList<Block>();
+    private final HashMap<Sha256Hash, Integer>	mHeights =
+        new HashMap<Sha256Hash, Integer>();
+    private long					mStartTime;
+    private int						mNumPayments = 0;
+    private long					mNumBytes = 0;
+
+    public FakeChain(NetworkParameters params,
+                     DeterministicKey accountKey,
+                     Config config) {
+        mParams = params;
+        mReceiveChain = HDKeyDerivation.deriveChildKey(accountKey, 0);
+        mConfig = config;
+        mRandom = new Random(config.mSeed);
+    }
+
+    // The address of receive chain index ii of the account.
+    public Address receiveAddress(int ii) {
+        DeterministicKey key = HDKeyDerivation.deriveChildKey(mReceiveChain, ii);
+        return new ECKey(null, key.getPubKeyBytes()).toAddress(mParams);
+    }
+
+    public void generate() {
+        Block genesis = mParams.getGenesisBlock();
+        mHeaders.add(genesis.cloneAsHeader());
+        mBlocks.add(genesis.bitcoinSerialize());
+        mHeights.put(genesis.getHash(), 0);
+
+        // End the chain about now.
+        long now = System.currentTimeMillis() / 1000;
+        mStartTime = now - (mConfig.mNumBlocks + 1) * SPACING_SECS;
+
+        Sha256Hash prev = genesis.getHash();
+        for (int height = 1; height <= mConfig.mNumBlocks; ++height) {
+            List<Transaction> txs = new ArrayList<Transaction>();
+            txs.add(coinbase(height));
+            for (int ii = 1; ii < mConfig.mTxsPerBlock; ++ii)
+                txs.add(payment(randomAddress(), randomValue()));
+            // bitcoinj fetches the tip as an orphan when it's first
+            // announced, with the filter it had then, so a payment
+            // to a key added later would never match there.
+            if (mConfig.mPaymentInterval > 0 &&
+                height % mConfig.mPaymentInterval == 0 &&
+                height < mConfig.mNumBlocks)
+                txs.add(payment(receiveAddress(mNumPayments++),
+                                    BigInteger.valueOf(PAYMENT_VALUE)));
+
+            byte[] bytes = buildBlock(prev, mStartTime + height * SPACING_SECS,
+                                      txs);
+            Block header;
+            try {
+                header = new Block(mParams, bytes).cloneAsHeader();
+            } catch (ProtocolException ex) {
+                throw new RuntimeException(ex);
+            }
+            mBlocks.add(bytes);
+            mHeaders.add(header);
+            mHeights.put(header.getHash(), height);
+            mNumBytes += bytes.length;
+            prev = header.getHash();
+        }
+    }
+
+    public int getHeight() {
+        return mHeaders.size() - 1;
+    }
+
+    // Seconds; the time of block 1 less a spacing, a good wallet
+    // creation time.
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public int getNumPayments() {
+        return mNumPayments;
+    }
+
+    public long getTotalPaid() {
+        return mNumPayments * PAYMENT_VALUE;
+    }
+
+    public long getNumBytes() {
+        return mNumBytes;
+    }
+
+    public Block getHeader(int height) {
+        return mHeaders.get(height);
+    }
+
+    public byte[] getBlockBytes(int height) {
+        return mBlocks.get(height);
+    }
+
+    // -1 if the block isn't in the chain.
+    public int heightOf(Sha256Hash hash) {
+        Integer height = mHeights.get(hash);
+        return height == null ? -1 : height;
+    }
+
+    private Address randomAddress() {
+        byte[] hash160 = new byte[20];
+        mRandom.nextBytes(hash160);
+        return new Address(mParams, hash160);
+    }
+
+    private BigInteger randomValue() {
+        return BigInteger.valueOf(10000 + mRandom.nextInt(100000000));
+    }
+
+    private Transaction coinbase(int height) {
+        Transaction tx = new Transaction(mParams);
+        // The height makes each coinbase unique.
+        byte[] script = new byte[] { 4, (byte) height, (byte) (height >> 8),
+                                     (byte) (height >> 16), (byte) (height >> 24) };
+        tx.addInput(new TransactionInput(mParams, tx, script));
+        tx.addOutput(new TransactionOutput(mParams, tx,
+                                           Utils.toNanoCoins(50, 0),
+                                           randomAddress()));
+        return tx;
+    }
+
+    // A transaction spending a made up output; SPV clients don't
+    // check inputs.
+    private Transaction payment(Address to, BigInteger value) {
+        Transaction tx = new Transaction(mParams);
+        byte[] prevHash = new byte[32];
+        mRandom.nextBytes(prevHash);
+        byte[] script = new byte[106];	// about a signature and a pubkey
+        mRandom.nextBytes(script);
+        tx.addInput(new TransactionInput
+                    (mParams, tx, script,
+                     new TransactionOutPoint(mParams, 0, new Sha256Hash(prevHash))));
+        tx.addOutput(new TransactionOutput(mParams, tx, value, to));
+        tx.addOutput(new TransactionOutput(mParams, tx, randomValue(),
+                                           randomAddress()));
+        return tx;
+    }
+
+    private byte[] buildBlock(Sha256Hash prev, long time, List<Transaction> txs) {
+        try {
+            List<byte[]> hashes = new ArrayList<byte[]>();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(new VarInt(txs.size()).encode());
+            for (Transaction tx : txs) {
+                body.write(tx.bitcoinSerialize());
+                hashes.add(Utils.reverseBytes(tx.getHash().getBytes()));
+            }
+
+            byte[] header = new byte[80];
+            Utils.uint32ToByteArrayLE(1, header, 0);
+            System.arraycopy(Utils.reverseBytes(prev.getBytes()), 0, header, 4, 32);
+            System.arraycopy(merkleRoot(hashes), 0, header, 36, 32);
+            Utils.uint32ToByteArrayLE(time, header, 68);
+            Utils.uint32ToByteArrayLE(BITS, header, 72);
+            for (long nonce = 0; ; ++nonce) {
+                Utils.uint32ToByteArrayLE(nonce, header, 76);
+                byte[] hash = Utils.reverseBytes(Utils.doubleDigest(header));
+                if (new BigInteger(1, hash).compareTo(TARGET) <= 0)
+                    break;
+            }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(header);
+            body.writeTo(block);
+            return block.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Hashes are in internal (little endian) byte order.
+    public static byte[] merkleRoot(List<byte[]> hashes) {
+        List<byte[]> level = hashes;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int ii = 0; ii < level.size(); ii += 2) {
+                byte[] left = level.get(ii);
+                byte[] right = ii + 1 < level.size() ? level.get(ii + 1) : left;
+                next.add(hashPair(left, right));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    public static byte[] hashPair(byte[] left, byte[] right) {
+        byte[] both = new byte[64];
+        System.arraycopy(left, 0, both, 0, 32);
+        System.arraycopy(right, 0, both, 32, 32);
+        return Utils.doubleDigest(both);
+    }
+}
@@ -0,0 +1,260 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+
+// A local stand-in for an Electrum protocol server indexing a
+// FakeChain, speaking just enough of it for ElectrumSync:
+// server.version, blockchain.headers.subscribe,
+// blockchain.scripthash.subscribe and get_history,
+// blockchain.transaction.get and blockchain.block.header.  The whole
+// chain is indexed by output script hash up front.  Each connection
+// gets its own thread.  Point a kit at it with setIndexer.
+//
+public class FakeElectrumServer {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(FakeElectrumServer.class);
+
+    private static class HistoryEntry {
+        public final String	mTxHash;
+        public final int	mHeight;
+
+        public HistoryEntry(String txHash, int height) {
+            mTxHash = txHash;
+            mHeight = height;
+        }
+    }
+
+    private final FakeChain			mChain;
+    private final HashMap<String, List<HistoryEntry>>	mHistories =
+        new HashMap<String, List<HistoryEntry>>();
+    private final HashMap<String, String>	mRawTxs =
+        new HashMap<String, String>();
+    private ServerSocket			mServer;
+    private volatile boolean		mRunning = false;
+
+    private final AtomicLong		mNumRequests = new AtomicLong();
+
+    public FakeElectrumServer(NetworkParameters params, FakeChain chain) {
+        mChain = chain;
+        for (int height = 1; height <= chain.getHeight(); ++height) {
+            Block block;
+            try {
+                block = new Block(params, chain.getBlockBytes(height));
+            } catch (ProtocolException ex) {
+                throw new RuntimeException(ex);
+            }
+            for (Transaction tx : block.getTransactions()) {
+                String txHash = tx.getHashAsString();
+                mRawTxs.put(txHash, Utils.bytesToHexString(tx.bitcoinSerialize()));
+                for (TransactionOutput out : tx.getOutputs()) {
+                    String hash = scriptHash(out.getScriptBytes());
+                    List<HistoryEntry> history = mHistories.get(hash);
+                    if (history == null) {
+                        history = new ArrayList<HistoryEntry>();
+                        mHistories.put(hash, history);
+                    }
+                    history.add(new HistoryEntry(txHash, height));
+                }
+            }
+        }
+    }
+
+    // Listens on the loopback address; port 0 picks a free one.
+    public void start(int port) throws IOException {
+        mServer = new ServerSocket(port, 8, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        Thread thread = new Thread("FakeElectrumServer accept") {
+                @Override
+                public void run() {
+                    acceptLoop();
+                }
+            };
+        thread.setDaemon(true);
+        thread.start();
+        mLogger.info("indexing " + mChain.getHeight() + " blocks, " +
+                     mHistories.size() + " scripts on port " + getPort());
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        mRunning = false;
+        mServer.close();
+    }
+
+    public long getNumRequests() {
+        return mNumRequests.get();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServer.accept();
+                Thread thread = new Thread("FakeElectrumServer " + socket.getPort()) {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                if (mRunning)
+                    mLogger.warn("accept failed: " + ex.toString());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader
+                (new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer writer = new BufferedWriter
+                (new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject request = new JSONObject(line);
+                mNumRequests.incrementAndGet();
+                JSONObject reply = new JSONObject();
+                reply.put("jsonrpc", "2.0");
+                reply.put("id", request.get("id"));
+                try {
+                    reply.put("result", handle(request.getString("method"),
+                                               request.getJSONArray("params")));
+                } catch (IllegalArgumentException ex) {
+                    JSONObject error = new JSONObject();
+                    error.put("code", -32601);
+                    error.put("message", ex.getMessage());
+                    reply.put("error", error);
+                }
+                writer.write(reply.toString());
+                writer.write('\n');
+                // Pipelined requests are answered together.
+                if (!reader.ready())
+                    writer.flush();
+            }
+        } catch (IOException ex) {
+            mLogger.info("connection closed: " + ex.toString());
+        } catch (JSONException ex) {
+            mLogger.error("bad request: " + ex.toString());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Done with it anyway.
+            }
+        }
+    }
+
+    private Object handle(String method, JSONArray params)
+        throws JSONException {
+        if (method.equals("server.version")) {
+            JSONArray version = new JSONArray();
+            version.put("FakeElectrumServer");
+            version.put(params.optString(1, "1.4"));
+            return version;
+        } else if (method.equals("blockchain.headers.subscribe")) {
+            int height = mChain.getHeight();
+            JSONObject tip = new JSONObject();
+            tip.put("height", height);
+            tip.put("hex", headerHex(height));
+            return tip;
+        } else if (method.equals("blockchain.block.header")) {
+            int height = params.getInt(0);
+            if (height < 0 || height > mChain.getHeight())
+                throw new IllegalArgumentException("no block at " + height);
+            return headerHex(height);
+        } else if (method.equals("blockchain.scripthash.subscribe")) {
+            return status(mHistories.get(params.getString(0)));
+        } else if (method.equals("blockchain.scripthash.get_history")) {
+            JSONArray entries = new JSONArray();
+            List<HistoryEntry> history = mHistories.get(params.getString(0));
+            if (history != null) {
+                for (HistoryEntry he : history) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("tx_hash", he.mTxHash);
+                    entry.put("height", he.mHeight);
+                    entries.put(entry);
+                }
+            }
+            return entries;
+        } else if (method.equals("blockchain.transaction.get")) {
+            String raw = mRawTxs.get(params.getString(0));
+            if (raw == null)
+                throw new IllegalArgumentException("no transaction " +
+                                                   params.getString(0));
+            return raw;
+        }
+        throw new IllegalArgumentException("unknown method " + method);
+    }
+
+    private String headerHex(int height) {
+        return Utils.bytesToHexString(mChain.getHeader(height).bitcoinSerialize());
+    }
+
+    // The hash of the "tx_hash:height:" concatenation, or null for a
+    // script without history.
+    private static Object status(List<HistoryEntry> history) {
+        if (history == null)
+            return JSONObject.NULL;
+        StringBuilder sb = new StringBuilder();
+        for (HistoryEntry he : history)
+            sb.append(he.mTxHash).append(':').append(he.mHeight).append(':');
+        try {
+            return Utils.bytesToHexString
+                (Sha256Hash.create(sb.toString().getBytes("UTF-8")).getBytes());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Electrum identifies scripts by their reversed SHA-256.
+    private static String scriptHash(byte[] script) {
+        byte[] hash = Sha256Hash.create(script).getBytes();
+        return Utils.bytesToHexString(Utils.reverseBytes(hash));
+    }
+}
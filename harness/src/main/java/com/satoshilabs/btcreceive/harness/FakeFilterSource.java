@@ -0,0 +1,212 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.VarInt;
+import com.satoshilabs.btcreceive.FilterSource;
+import com.satoshilabs.btcreceive.GolombFilter;
+
+// A local stand-in for a filter node serving a FakeChain: builds
+// each block's BIP 158 basic filter from its output scripts (the
+// chain's payments spend made up outputs, so there are no spent
+// scripts to add).  Decoy scripts can be put in a block's filter
+// without being in the block, to make the scanner download a block
+// which turns out to have nothing for it.
+//
+public class FakeFilterSource implements FilterSource {
+
+    private final NetworkParameters			mParams;
+    private final FakeChain					mChain;
+    private final HashMap<Integer, byte[]>	mDecoys =
+        new HashMap<Integer, byte[]>();
+
+    private int								mNumFilters = 0;
+    private int								mNumBlocks = 0;
+
+    public FakeFilterSource(NetworkParameters params, FakeChain chain) {
+        mParams = params;
+        mChain = chain;
+    }
+
+    // The filter of the block at height will also hold script.
+    public synchronized void addDecoy(int height, byte[] script) {
+        mDecoys.put(height, script);
+    }
+
+    public synchronized int getNumFiltersServed() {
+        return mNumFilters;
+    }
+
+    public synchronized int getNumBlocksServed() {
+        return mNumBlocks;
+    }
+
+    @Override
+    public synchronized byte[] getFilter(Sha256Hash blockHash)
+        throws IOException {
+        int height = heightOf(blockHash);
+        Set<ByteArray> items = new LinkedHashSet<ByteArray>();
+        for (Transaction tx : parse(height).getTransactions())
+            for (TransactionOutput out : tx.getOutputs())
+                items.add(new ByteArray(out.getScriptBytes()));
+        byte[] decoy = mDecoys.get(height);
+        if (decoy != null)
+            items.add(new ByteArray(decoy));
+        ++mNumFilters;
+        return build(blockHash, items);
+    }
+
+    @Override
+    public synchronized Block getBlock(Sha256Hash blockHash)
+        throws IOException {
+        Block block = parse(heightOf(blockHash));
+        ++mNumBlocks;
+        return block;
+    }
+
+    private int heightOf(Sha256Hash blockHash) throws IOException {
+        int height = mChain.heightOf(blockHash);
+        if (height < 0)
+            throw new IOException("unknown block " + blockHash);
+        return height;
+    }
+
+    private Block parse(int height) throws IOException {
+        try {
+            return new Block(mParams, mChain.getBlockBytes(height));
+        } catch (ProtocolException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // Hashes the items into [0, N * M), sorts them and Golomb-Rice
+    // codes the differences, as GolombFilter reads them back.
+    private static byte[] build(Sha256Hash blockHash, Set<ByteArray> items)
+        throws IOException {
+        byte[] hash = blockHash.getBytes();
+        byte[] key = new byte[16];
+        for (int ii = 0; ii < 16; ++ii)
+            key[ii] = hash[hash.length - 1 - ii];
+        long k0 = readLE64(key, 0);
+        long k1 = readLE64(key, 8);
+
+        long range = (long) items.size() * GolombFilter.M;
+        long[] values = new long[items.size()];
+        int nn = 0;
+        for (ByteArray item : items)
+            values[nn++] = multiplyHigh
+                (GolombFilter.sipHash24(k0, k1, item.mBytes), range);
+        Arrays.sort(values);
+
+        BitWriter writer = new BitWriter();
+        long last = 0;
+        for (long value : values) {
+            long delta = value - last;
+            for (long qq = delta >>> GolombFilter.P; qq > 0; --qq)
+                writer.writeBit(1);
+            writer.writeBit(0);
+            for (int ii = GolombFilter.P - 1; ii >= 0; --ii)
+                writer.writeBit((int) (delta >>> ii) & 1);
+            last = value;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new VarInt(values.length).encode());
+        out.write(writer.toByteArray());
+        return out.toByteArray();
+    }
+
+    // The high 64 bits of the unsigned 128 bit product.
+    private static long multiplyHigh(long aa, long bb) {
+        long aLo = aa & 0xffffffffL;
+        long aHi = aa >>> 32;
+        long bLo = bb & 0xffffffffL;
+        long bHi = bb >>> 32;
+        long lolo = aLo * bLo;
+        long hilo = aHi * bLo;
+        long lohi = aLo * bHi;
+        long hihi = aHi * bHi;
+        long cross = (lolo >>> 32) + (hilo & 0xffffffffL) + lohi;
+        return hihi + (hilo >>> 32) + (cross >>> 32);
+    }
+
+    private static long readLE64(byte[] bytes, int off) {
+        long val = 0;
+        for (int ii = 7; ii >= 0; --ii)
+            val = (val << 8) | (bytes[off + ii] & 0xffL);
+        return val;
+    }
+
+    private static class BitWriter {
+        private final List<Byte>	mBytes = new ArrayList<Byte>();
+        private int					mCur = 0;
+        private int					mNumBits = 0;
+
+        public void writeBit(int bit) {
+            mCur = (mCur << 1) | bit;
+            if (++mNumBits == 8) {
+                mBytes.add((byte) mCur);
+                mCur = 0;
+                mNumBits = 0;
+            }
+        }
+
+        public byte[] toByteArray() {
+            int extra = mNumBits > 0 ? 1 : 0;
+            byte[] bytes = new byte[mBytes.size() + extra];
+            for (int ii = 0; ii < mBytes.size(); ++ii)
+                bytes[ii] = mBytes.get(ii);
+            if (extra > 0)
+                bytes[bytes.length - 1] = (byte) (mCur << (8 - mNumBits));
+            return bytes;
+        }
+    }
+
+    // Scripts are deduplicated, as in the real filters.
+    private static class ByteArray {
+        private final byte[]	mBytes;
+
+        public ByteArray(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ByteArray &&
+                Arrays.equals(mBytes, ((ByteArray) other).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mBytes);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.BitcoinSerializer;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BloomFilter;
+import com.google.bitcoin.core.GetBlocksMessage;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.GetHeadersMessage;
+import com.google.bitcoin.core.InventoryItem;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Ping;
+import com.google.bitcoin.core.Pong;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+import com.google.bitcoin.core.VersionAck;
+import com.google.bitcoin.core.VersionMessage;
+import com.google.bitcoin.script.ScriptChunk;
+
+// A local stand-in for a full node serving a FakeChain, speaking
+// just enough of the P2P protocol for bitcoinj to sync from it:
+// the version handshake, ping, getheaders, getblocks, filterload
+// and getdata for full and bloom filtered blocks.  Like a full
+// node it announces the tip when the last block of an inv is
+// fetched, which is what makes bitcoinj ask for the next batch.
+// Each connection gets its own thread.  Point a kit at it with
+// setPeerNodes.
+//
+public class FakePeer {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(FakePeer.class);
+
+    private static final int MAX_INVS = 500;
+    private static final int MAX_HEADERS = 2000;
+    private static final int HEADER_SIZE = 24;
+
+    private final NetworkParameters	mParams;
+    private final FakeChain			mChain;
+    private final BitcoinSerializer	mSerializer;
+    private ServerSocket			mServer;
+    private volatile boolean		mRunning = false;
+
+    private final AtomicLong		mNumBlocks = new AtomicLong();
+    private final AtomicLong		mNumBytes = new AtomicLong();
+
+    public FakePeer(NetworkParameters params, FakeChain chain) {
+        mParams = params;
+        mChain = chain;
+        mSerializer = new BitcoinSerializer(params);
+    }
+
+    // Listens on the loopback address; port 0 picks a free one.
+    public void start(int port) throws IOException {
+        mServer = new ServerSocket(port, 8, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        Thread thread = new Thread("FakePeer accept") {
+                @Override
+                public void run() {
+                    acceptLoop();
+                }
+            };
+        thread.setDaemon(true);
+        thread.start();
+        mLogger.info("serving " + mChain.getHeight() + " blocks on port " +
+                     getPort());
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        mRunning = false;
+        mServer.close();
+    }
+
+    public long getNumBlocksServed() {
+        return mNumBlocks.get();
+    }
+
+    public long getNumBytesServed() {
+        return mNumBytes.get();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServer.accept();
+                Thread thread = new Thread("FakePeer " + socket.getPort()) {
+                        @Override
+                        public void run() {
+                            new Connection(socket).run();
+                        }
+                    };
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                if (mRunning)
+                    mLogger.warn("accept failed: " + ex.toString());
+            }
+        }
+    }
+
+    private class Connection {
+        private final Socket	mSocket;
+        private OutputStream	mOut;
+        private BloomFilter		mFilter = null;
+        // The last block of a partial inv; once it's fetched the tip
+        // is announced so the peer asks for the next batch.
+        private Sha256Hash		mContinue = null;
+
+        public Connection(Socket socket) {
+            mSocket = socket;
+        }
+
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream
+                    (new BufferedInputStream(mSocket.getInputStream()));
+                mOut = new BufferedOutputStream(mSocket.getOutputStream());
+                while (mRunning) {
+                    Message msg = read(in);
+                    if (msg != null)
+                        handle(msg);
+                    mOut.flush();
+                }
+            } catch (IOException ex) {
+                mLogger.info("connection closed: " + ex.toString());
+            } catch (ProtocolException ex) {
+                mLogger.error("bad message: " + ex.toString());
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException ex) {
+                    // Done with it.
+                }
+            }
+        }
+
+        // Returns null for messages bitcoinj can't parse, which we
+        // don't care about.
+        private Message read(DataInputStream in)
+            throws IOException, ProtocolException {
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            int size = (int) Utils.readUint32(header, 16);
+            byte[] msg = new byte[HEADER_SIZE + size];
+            System.arraycopy(header, 0, msg, 0, HEADER_SIZE);
+            in.readFully(msg, HEADER_SIZE, size);
+            try {
+                return mSerializer.deserialize(ByteBuffer.wrap(msg));
+            } catch (ProtocolException ex) {
+                return null;
+            }
+        }
+
+        private void handle(Message msg) throws IOException, ProtocolException {
+            if (msg instanceof VersionMessage) {
+                VersionMessage ver = new VersionMessage(mParams, mChain.getHeight());
+                ver.subVer = "/FakePeer/";
+                // bitcoinj won't sync from a peer without the chain.
+                ver.localServices = VersionMessage.NODE_NETWORK;
+                mSerializer.serialize(ver, mOut);
+                mSerializer.serialize(new VersionAck(), mOut);
+            } else if (msg instanceof Ping) {
+                // Ping's nonce accessors aren't public, the payload
+                // is just the nonce (empty from old peers).
+                byte[] payload = msg.bitcoinSerialize();
+                if (payload.length >= 8)
+                    mSerializer.serialize(new Pong(Utils.readInt64(payload, 0)),
+                                          mOut);
+            } else if (msg instanceof BloomFilter) {
+                mFilter = (BloomFilter) msg;
+            } else if (msg instanceof GetHeadersMessage) {
+                sendHeaders((GetHeadersMessage) msg);
+            } else if (msg instanceof GetBlocksMessage) {
+                sendInv((GetBlocksMessage) msg);
+            } else if (msg instanceof GetDataMessage) {
+                for (InventoryItem item : ((GetDataMessage) msg).getItems()) {
+                    int height = mChain.heightOf(item.hash);
+                    if (height < 0)
+                        continue;
+                    if (item.type == InventoryItem.Type.Block)
+                        send("block", mChain.getBlockBytes(height));
+                    else if (item.type == InventoryItem.Type.FilteredBlock)
+                        sendFilteredBlock(height);
+                    if (item.hash.equals(mContinue)) {
+                        mContinue = null;
+                        sendInv(mChain.getHeight(), mChain.getHeight());
+                    }
+                }
+            }
+        }
+
+        private void send(String command, byte[] payload) throws IOException {
+            mSerializer.serialize(command, payload, mOut);
+            if (command.equals("block") || command.equals("merkleblock"))
+                mNumBlocks.incrementAndGet();
+            mNumBytes.addAndGet(HEADER_SIZE + payload.length);
+        }
+
+        // The height after the first locator hash we have.
+        private int startHeight(List<Sha256Hash> locator) {
+            for (Sha256Hash hash : locator) {
+                int height = mChain.heightOf(hash);
+                if (height >= 0)
+                    return height + 1;
+            }
+            return 1;
+        }
+
+        private void sendHeaders(GetHeadersMessage msg) throws IOException {
+            int start = startHeight(msg.getLocator());
+            int end = Math.min(mChain.getHeight(), start + MAX_HEADERS - 1);
+            int stop = mChain.heightOf(msg.getStopHash());
+            if (stop >= start)
+                end = Math.min(end, stop);
+            int count = Math.max(0, end - start + 1);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(new VarInt(count).encode());
+            for (int height = start; height <= end; ++height) {
+                bos.write(mChain.getHeader(height).bitcoinSerialize(), 0, 80);
+                bos.write(0);	// no transactions
+            }
+            send("headers", bos.toByteArray());
+        }
+
+        private void sendInv(GetBlocksMessage msg) throws IOException {
+            int start = startHeight(msg.getLocator());
+            int end = Math.min(mChain.getHeight(), start + MAX_INVS - 1);
+            int stop = mChain.heightOf(msg.getStopHash());
+            if (stop >= start)
+                end = Math.min(end, stop);
+            if (end < start)
+                return;
+            if (end < mChain.getHeight())
+                mContinue = mChain.getHeader(end).getHash();
+            sendInv(start, end);
+        }
+
+        private void sendInv(int start, int end) throws IOException {
+            int count = end - start + 1;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(new VarInt(count).encode());
+            byte[] type = new byte[4];
+            Utils.uint32ToByteArrayLE(2, type, 0);	// MSG_BLOCK
+            for (int height = start; height <= end; ++height) {
+                bos.write(type);
+                bos.write(Utils.reverseBytes
+                          (mChain.getHeader(height).getHash().getBytes()));
+            }
+            send("inv", bos.toByteArray());
+        }
+
+        // A merkleblock of the transactions the filter matches,
+        // each followed by its tx message (BIP 37).
+        private void sendFilteredBlock(int height)
+            throws IOException, ProtocolException {
+            byte[] bytes = mChain.getBlockBytes(height);
+            Block block = new Block(mParams, bytes);
+            List<Transaction> txs = block.getTransactions();
+            List<byte[]> hashes = new ArrayList<byte[]>();
+            boolean[] matches = new boolean[txs.size()];
+            List<Transaction> matched = new ArrayList<Transaction>();
+            for (int ii = 0; ii < txs.size(); ++ii) {
+                Transaction tx = txs.get(ii);
+                hashes.add(Utils.reverseBytes(tx.getHash().getBytes()));
+                matches[ii] = matches(tx);
+                if (matches[ii])
+                    matched.add(tx);
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(bytes, 0, 80);
+            byte[] total = new byte[4];
+            Utils.uint32ToByteArrayLE(txs.size(), total, 0);
+            bos.write(total);
+            new PartialMerkleTreeBuilder(hashes, matches).writeTo(bos);
+            send("merkleblock", bos.toByteArray());
+            for (Transaction tx : matched)
+                send("tx", tx.bitcoinSerialize());
+        }
+
+        // Data pushes of the output scripts, the outpoints spent and
+        // the tx hash, as BIP 37 matches them.  No filter matches all.
+        private boolean matches(Transaction tx) {
+            if (mFilter == null)
+                return true;
+            if (mFilter.contains(Utils.reverseBytes(tx.getHash().getBytes())))
+                return true;
+            try {
+                for (TransactionOutput out : tx.getOutputs())
+                    for (ScriptChunk chunk : out.getScriptPubKey().getChunks())
+                        if (!chunk.isOpCode() && mFilter.contains(chunk.data))
+                            return true;
+                for (TransactionInput input : tx.getInputs()) {
+                    if (mFilter.contains(input.getOutpoint().bitcoinSerialize()))
+                        return true;
+                }
+            } catch (Exception ex) {
+                // Unparseable scripts don't match.
+            }
+            return false;
+        }
+    }
+
+    // Builds the hashes and flag bits of a BIP 37 partial merkle
+    // tree by the reference depth first traversal.
+    private static class PartialMerkleTreeBuilder {
+        private final List<byte[]>	mLeaves;
+        private final boolean[]		mMatches;
+        private final List<byte[]>	mHashes = new ArrayList<byte[]>();
+        private final List<Boolean>	mBits = new ArrayList<Boolean>();
+
+        public PartialMerkleTreeBuilder(List<byte[]> leaves, boolean[] matches) {
+            mLeaves = leaves;
+            mMatches = matches;
+            int height = 0;
+            while (width(height) > 1)
+                ++height;
+            traverse(height, 0);
+        }
+
+        private int width(int height) {
+            return (mLeaves.size() + (1 << height) - 1) >> height;
+        }
+
+        private byte[] hash(int height, int pos) {
+            if (height == 0)
+                return mLeaves.get(pos);
+            byte[] left = hash(height - 1, pos * 2);
+            byte[] right = pos * 2 + 1 < width(height - 1) ?
+                hash(height - 1, pos * 2 + 1) : left;
+            return FakeChain.hashPair(left, right);
+        }
+
+        private void traverse(int height, int pos) {
+            boolean parentOfMatch = false;
+            for (int ii = pos << height;
+                 ii < (pos + 1) << height && ii < mLeaves.size(); ++ii)
+                parentOfMatch |= mMatches[ii];
+            mBits.add(parentOfMatch);
+            if (height == 0 || !parentOfMatch) {
+                mHashes.add(hash(height, pos));
+            } else {
+                traverse(height - 1, pos * 2);
+                if (pos * 2 + 1 < width(height - 1))
+                    traverse(height - 1, pos * 2 + 1);
+            }
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(new VarInt(mHashes.size()).encode());
+            for (byte[] hash : mHashes)
+                out.write(hash);
+            byte[] flags = new byte[(mBits.size() + 7) / 8];
+            for (int ii = 0; ii < mBits.size(); ++ii)
+                if (mBits.get(ii))
+                    flags[ii / 8] |= 1 << (ii % 8);
+            out.write(new VarInt(flags.length).encode());
+            out.write(flags);
+        }
+    }
+}
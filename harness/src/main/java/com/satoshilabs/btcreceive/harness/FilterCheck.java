@@ -0,0 +1,131 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.RegTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.satoshilabs.btcreceive.CompactFilterScanner;
+import com.satoshilabs.btcreceive.MyWalletAppKit;
+
+// Checks the compact filter backend end to end: a kit downloads
+// headers from a FakePeer and matches a FakeFilterSource's filters
+// with CompactFilterScanner.  One block without a payment gets a
+// decoy of one of our scripts in its filter.  Every payment block
+// must match and give its payment to the wallet, the decoy block
+// must match and be counted as a false match, and nothing else may
+// be downloaded.
+//
+//     gradle :harness:filterCheck
+//
+public class FilterCheck {
+
+    private static final int MARGIN = 20;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = RegTestParams.get();
+        DeterministicKey accountKey =
+            HDKeyDerivation.createMasterPrivateKey("harness-seed".getBytes("UTF-8"));
+
+        FakeChain.Config config = new FakeChain.Config();
+        config.mNumBlocks = 200;
+        config.mTxsPerBlock = 5;
+        config.mPaymentInterval = 20;
+        FakeChain chain = new FakeChain(params, accountKey, config);
+        chain.generate();
+
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        for (int ii = 0; ii < chain.getNumPayments() + MARGIN; ++ii) {
+            ECKey key = new ECKey(null, HDKeyDerivation.deriveChildKey
+                                  (HDKeyDerivation.deriveChildKey(accountKey, 0),
+                                   ii).getPubKeyBytes());
+            key.setCreationTimeSeconds(chain.getStartTime());
+            keys.add(key);
+        }
+
+        // An unused key of ours in a block between payments.
+        FakeFilterSource source = new FakeFilterSource(params, chain);
+        int decoyHeight = config.mPaymentInterval + config.mPaymentInterval / 2;
+        source.addDecoy(decoyHeight, ScriptBuilder.createOutputScript
+                        (keys.get(keys.size() - 1).toAddress(params)).getProgram());
+
+        FakePeer peer = new FakePeer(params, chain);
+        peer.start(0);
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "filtercheck-" + System.currentTimeMillis());
+        MyWalletAppKit kit =
+            new MyWalletAppKit(params, dir, "check", null, chain.getStartTime()) {
+                @Override
+                protected void onSetupCompleted() {
+                    wallet().addKeys(keys);
+                }
+            };
+        kit.setAutoStop(false);
+        kit.setFilterSource(source);
+        kit.setPeerNodes(new PeerAddress(InetAddress.getByName("127.0.0.1"),
+                                         peer.getPort()));
+        kit.startAndWait();
+
+        CompactFilterScanner scanner = kit.filterScanner();
+        long numBlocks = scanner.getNumBlocks();
+        long numMatches = scanner.getNumMatches();
+        long numFalse = scanner.getNumFalseMatches();
+        BigInteger balance = kit.wallet().getBalance(BalanceType.ESTIMATED);
+        kit.stopAndWait();
+        peer.close();
+
+        System.out.println("blocks " + chain.getHeight());
+        System.out.println("payments " + chain.getNumPayments());
+        System.out.println("filters_scanned " + numBlocks);
+        System.out.println("matches " + numMatches);
+        System.out.println("false_matches " + numFalse);
+        System.out.println("blocks_downloaded " + source.getNumBlocksServed());
+        System.out.println("balance " + balance);
+        System.out.println("expected " + chain.getTotalPaid());
+
+        boolean ok = true;
+        if (numBlocks != chain.getHeight()) {
+            System.err.println("FAILED: not every block was scanned");
+            ok = false;
+        }
+        if (balance.longValue() != chain.getTotalPaid()) {
+            System.err.println("FAILED: wallet missed payments");
+            ok = false;
+        }
+        // A real false positive is about one in 784931 per script,
+        // the decoy should be the only one.
+        if (numFalse != 1 || numMatches != chain.getNumPayments() + 1 ||
+            source.getNumBlocksServed() != numMatches) {
+            System.err.println("FAILED: expected " + chain.getNumPayments() +
+                               " payment blocks and the decoy to match");
+            ok = false;
+        }
+        if (!ok)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,231 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.satoshilabs.btcreceive.HDAddress;
+import com.satoshilabs.btcreceive.HDChain;
+import com.satoshilabs.btcreceive.HDReceiver;
+
+// Measures how much heap the wallet model costs on a generated
+// wallet: retained bytes per HDAddress, per fresh HDChain and per
+// wallet transaction (as bitcoinj holds it after loading the wallet
+// file), and what persist and restore allocate and how far they
+// push the heap up on the way.  Each figure is checked against a
+// budget and the run fails if any is over, so it can be used as a
+// regression check.
+//
+//     gradle :harness:footprint -Pargs="addrs txs"
+//
+// The budgets are system properties (bytes):
+//
+//     budget.address         retained per address
+//     budget.chain           retained per new chain with its margin
+//     budget.transaction     retained per wallet transaction
+//     budget.persist         allocated by persist, per address
+//     budget.restore         allocated by restore, per address
+//
+// Retained sizes come from the used heap after repeated collections,
+// so they are averages over many objects and only roughly exact.
+//
+public class Footprint {
+
+    private static final String PREFIX = "footprint";
+
+    // Fresh chains to average over.
+    private static final int NUM_CHAINS = 100;
+
+    private final List<String>	mFailures = new ArrayList<String>();
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Take the lowest of a few collections, finalizers and
+        // reference processing can hold things over one.
+        for (int ii = 0; ii < 5; ++ii) {
+            System.gc();
+            System.runFinalization();
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    // The sum of the heap pools' peaks; the pools don't peak at the
+    // same moment, so this is an upper bound.
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private void check(String name, long value, String budgetKey,
+                       long defaultBudget) {
+        long budget = Long.getLong(budgetKey, defaultBudget);
+        boolean over = value > budget;
+        System.out.println(String.format("%-24s %12d bytes  budget %12d%s",
+                                         name, value, budget,
+                                         over ? "  OVER" : ""));
+        if (over)
+            mFailures.add(name);
+    }
+
+    private static void report(String name, long value) {
+        System.out.println(String.format("%-24s %12d bytes", name, value));
+    }
+
+    public boolean run(int numAddrs, int numTxs) throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        DeterministicKey accountKey = WalletGenerator.seedAccountKey();
+
+        WalletGenerator.Config config = new WalletGenerator.Config();
+        config.mNumReceive = numAddrs;
+        config.mNumChange = Math.max(1, numAddrs / 4);
+        config.mNumTxs = numTxs;
+        WalletGenerator gen = new WalletGenerator(params, accountKey, config);
+        gen.generate();
+        JSONObject node = gen.dumps();
+
+        // The wallet file, without keys (they're the model's cost).
+        Wallet genWallet = new Wallet(params);
+        for (WalletTransaction wtx : gen.getTransactions())
+            genWallet.addWalletTransaction(wtx);
+        ByteArrayOutputStream walletBytes = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(genWallet, walletBytes);
+        genWallet = null;
+        gen = null;
+
+        System.out.println(String.format("%d addresses, %d transactions",
+                                         numAddrs + config.mNumChange +
+                                         2 * WalletGenerator.MARGIN,
+                                         numTxs));
+
+        // Addresses, restored from their nodes as a restore does.
+        JSONArray addrNodes = node.getJSONObject("account")
+            .getJSONObject("receive").getJSONArray("addrs");
+        DeterministicKey chainKey =
+            HDKeyDerivation.deriveChildKey(accountKey, 0);
+        long base = usedHeap();
+        List<HDAddress> addrs = new ArrayList<HDAddress>();
+        for (int ii = 0; ii < addrNodes.length(); ++ii)
+            addrs.add(new HDAddress(params, chainKey,
+                                    addrNodes.getJSONObject(ii)));
+        long perAddress = (usedHeap() - base) / addrs.size();
+        addrs = null;
+        check("per address", perAddress, "budget.address", 2048);
+
+        // New chains, each with a full margin of derived addresses.
+        base = usedHeap();
+        List<HDChain> chains = new ArrayList<HDChain>();
+        for (int ii = 0; ii < NUM_CHAINS; ++ii)
+            chains.add(new HDChain(params, accountKey, true, "Receive"));
+        long perChain = (usedHeap() - base) / NUM_CHAINS;
+        chains = null;
+        check("per chain", perChain, "budget.chain", 64 * 1024);
+
+        // Wallet transactions, loaded the way the kit loads them.
+        base = usedHeap();
+        Wallet wallet = new Wallet(params);
+        new WalletProtobufSerializer().readWallet
+            (WalletProtobufSerializer.parseToProto
+             (new ByteArrayInputStream(walletBytes.toByteArray())), wallet);
+        walletBytes = null;
+        int numLoaded = wallet.getTransactions(true).size();
+        long perTransaction = (usedHeap() - base) / numLoaded;
+        check("per transaction", perTransaction, "budget.transaction", 8192);
+
+        // The receiver, and what persist and restore cost on top.
+        File dir = File.createTempFile("footprint", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            base = usedHeap();
+            HDReceiver receiver = new HDReceiver(params, dir, PREFIX, node);
+            node = null;
+            receiver.applyAllTransactions(wallet.getWalletTransactions());
+            long retained = usedHeap() - base;
+            report("receiver", retained);
+
+            int totalAddrs = receiver.getAccount().getReceiveChain().numAddrs() +
+                receiver.getAccount().getChangeChain().numAddrs();
+
+            long start = usedHeap();
+            resetPeaks();
+            long allocated = Replay.allocatedBytes();
+            receiver.persist();
+            allocated = Replay.allocatedBytes() - allocated;
+            report("persist peak heap", peakHeap() - start);
+            if (allocated >= 0)
+                check("persist per address", allocated / totalAddrs,
+                      "budget.persist", 8192);
+
+            start = usedHeap();
+            resetPeaks();
+            allocated = Replay.allocatedBytes();
+            HDReceiver restored =
+                HDReceiver.restore(params, dir, PREFIX, null, null);
+            allocated = Replay.allocatedBytes() - allocated;
+            report("restore peak heap", peakHeap() - start);
+            if (allocated >= 0)
+                check("restore per address", allocated / totalAddrs,
+                      "budget.restore", 32768);
+
+            // Keep everything measured alive until here.
+            if (restored.balanceForAccount() != receiver.balanceForAccount())
+                mFailures.add("restored balance differs");
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+
+        for (String failure : mFailures)
+            System.out.println("FAILED: " + failure);
+        return mFailures.isEmpty();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numAddrs = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numTxs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        if (!new Footprint().run(numAddrs, numTxs))
+            System.exit(1);
+    }
+}
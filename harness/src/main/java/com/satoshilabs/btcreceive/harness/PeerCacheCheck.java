@@ -0,0 +1,130 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.RegTestParams;
+import com.satoshilabs.btcreceive.MyWalletAppKit;
+import com.satoshilabs.btcreceive.PeerCache;
+
+// Checks PeerCache's scoring against stand-in peers: a kit syncs
+// from a FakePeer while also being pointed at a port nobody listens
+// on.  The FakePeer must come out with a connect, a measured
+// connect latency and, once persisted, the rate it served the chain
+// at; the dead address with failures, no connects and no last seen
+// time.  The table must survive a persist and load.
+//
+//     gradle :harness:peerCacheCheck
+//
+public class PeerCacheCheck {
+
+    private static final long SETTLE_MSECS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = RegTestParams.get();
+        DeterministicKey accountKey =
+            HDKeyDerivation.createMasterPrivateKey("harness-seed".getBytes("UTF-8"));
+
+        FakeChain.Config config = new FakeChain.Config();
+        config.mNumBlocks = 50;
+        FakeChain chain = new FakeChain(params, accountKey, config);
+        chain.generate();
+
+        FakePeer peer = new FakePeer(params, chain);
+        peer.start(0);
+
+        // Grab a free port and let it go again, nothing answers there.
+        ServerSocket dead = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int deadPort = dead.getLocalPort();
+        dead.close();
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "peercache-" + System.currentTimeMillis());
+        dir.mkdirs();
+        PeerCache cache = new PeerCache(dir, "check");
+
+        InetAddress local = InetAddress.getByName("127.0.0.1");
+        MyWalletAppKit kit =
+            new MyWalletAppKit(params, dir, "check", null, chain.getStartTime());
+        kit.setAutoStop(false);
+        kit.setPeerCache(cache);
+        kit.setPeerNodes(new PeerAddress(local, peer.getPort()),
+                         new PeerAddress(local, deadPort));
+        kit.startAndWait();
+
+        // Listeners run on the user thread; let them catch up.
+        Thread.sleep(SETTLE_MSECS);
+        kit.stopAndWait();
+        peer.close();
+        Thread.sleep(SETTLE_MSECS);
+
+        PeerCache.Entry good = null;
+        PeerCache.Entry bad = null;
+        for (PeerCache.Entry entry : cache.bestEntries(cache.size())) {
+            System.out.println(entry.toString());
+            if (entry.mPort == peer.getPort())
+                good = entry;
+            else if (entry.mPort == deadPort)
+                bad = entry;
+        }
+
+        boolean ok = true;
+        if (good == null || good.mConnects < 1 || good.mConnectMsecs <= 0 ||
+            good.mLastSeen == 0) {
+            System.err.println("FAILED: fake peer not scored as connected");
+            ok = false;
+        }
+        if (bad == null || bad.mFailures < 1 || bad.mConnects != 0 ||
+            bad.mLastSeen != 0) {
+            System.err.println("FAILED: dead peer not scored as failed");
+            ok = false;
+        }
+        if (good != null && bad != null && good.score() <= bad.score()) {
+            System.err.println("FAILED: dead peer outscores fake peer");
+            ok = false;
+        }
+
+        // The dead peer was never seen, so it isn't kept.  Persisting
+        // folds in the download of a peer still counted as connected.
+        cache.persist();
+        PeerCache loaded = new PeerCache(dir, "check");
+        loaded.load();
+        if (loaded.size() != 1 ||
+            loaded.bestEntries(1).get(0).mPort != peer.getPort()) {
+            System.err.println("FAILED: persisted table has " +
+                               loaded.size() + " peers");
+            ok = false;
+        } else {
+            PeerCache.Entry entry = loaded.bestEntries(1).get(0);
+            System.out.println("persisted " + entry.toString());
+            if (entry.mBlocksPerSec <= 0) {
+                System.err.println("FAILED: no block rate for fake peer");
+                ok = false;
+            }
+        }
+
+        if (!ok)
+            System.exit(1);
+        System.out.println("peer cache ok");
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.satoshilabs.btcreceive.HDReceiver;
+import com.satoshilabs.btcreceive.TransactionArchive;
+import com.satoshilabs.btcreceive.TransactionIndex;
+
+// Replays what WalletService does with a wallet when it starts and
+// on every wallet change, from a copy of a user's files, so a slow
+// wallet can be profiled without a device.  Each stage reports its
+// wall time, the bytes this thread allocated and the collections
+// which ran during it.
+//
+//     gradle :harness:replay -Pargs="dir [rounds] [prefix]"
+//
+// dir holds <prefix>.wallet and <prefix>.hdreceive (and the
+// archive, if there is one).  They are copied to a temporary
+// directory first, so the originals are never written.
+//
+public class Replay {
+
+    private static final String DEFAULT_PREFIX = "mytrezor-lite";
+
+    private static final ThreadMXBean sThreads =
+        ManagementFactory.getThreadMXBean();
+
+    private long	mStartNanos;
+    private long	mStartBytes;
+    private long	mStartGCs;
+    private long	mStartGCMsecs;
+
+    // Bytes allocated by this thread, -1 if the JVM can't say.
+    static long allocatedBytes() {
+        if (sThreads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) sThreads;
+            if (threads.isThreadAllocatedMemorySupported())
+                return threads.getThreadAllocatedBytes
+                    (Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private void begin() {
+        mStartGCs = 0;
+        mStartGCMsecs = 0;
+        for (GarbageCollectorMXBean gc :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            mStartGCs += gc.getCollectionCount();
+            mStartGCMsecs += gc.getCollectionTime();
+        }
+        mStartBytes = allocatedBytes();
+        mStartNanos = System.nanoTime();
+    }
+
+    private void end(String stage) {
+        long nanos = System.nanoTime() - mStartNanos;
+        long bytes = allocatedBytes();
+        long gcs = -mStartGCs;
+        long gcMsecs = -mStartGCMsecs;
+        for (GarbageCollectorMXBean gc :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs += gc.getCollectionCount();
+            gcMsecs += gc.getCollectionTime();
+        }
+        System.out.println(String.format("%-12s %10.1f ms %12s KB %4d gc %6d ms",
+                                         stage, nanos / 1e6,
+                                         bytes < 0 ? "?" :
+                                         Long.toString((bytes - mStartBytes) / 1024),
+                                         gcs, gcMsecs));
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        InputStream istrm = new FileInputStream(src);
+        try {
+            OutputStream ostrm = new FileOutputStream(dst);
+            try {
+                byte[] buffer = new byte[65536];
+                int nn;
+                while ((nn = istrm.read(buffer)) > 0)
+                    ostrm.write(buffer, 0, nn);
+            } finally {
+                ostrm.close();
+            }
+        } finally {
+            istrm.close();
+        }
+    }
+
+    public void run(File srcDir, String prefix, int rounds)
+        throws Exception {
+        NetworkParameters params = MainNetParams.get();
+
+        File dir = File.createTempFile("replay", "");
+        dir.delete();
+        dir.mkdirs();
+        String[] names = { prefix + ".wallet",
+                           HDReceiver.persistPath(prefix),
+                           TransactionArchive.persistPath(prefix) };
+        for (String name : names) {
+            File src = new File(srcDir, name);
+            if (src.exists())
+                copy(src, new File(dir, name));
+        }
+
+        try {
+            begin();
+            Wallet wallet = new Wallet(params);
+            FileInputStream walletStream =
+                new FileInputStream(new File(dir, prefix + ".wallet"));
+            try {
+                new WalletProtobufSerializer().readWallet
+                    (WalletProtobufSerializer.parseToProto(walletStream), wallet);
+            } finally {
+                walletStream.close();
+            }
+            end("wallet");
+
+            begin();
+            HDReceiver receiver =
+                HDReceiver.restore(params, dir, prefix, null, null);
+            end("restore");
+
+            begin();
+            TransactionArchive archive = new TransactionArchive(dir, prefix);
+            archive.load();
+            receiver.setArchive(archive);
+            end("archive");
+
+            System.out.println(String.format("%d transactions, %d archived, " +
+                                             "%d addresses",
+                                             wallet.getTransactions(true).size(),
+                                             archive.size(),
+                                             receiver.getAccount()
+                                             .getReceiveChain().numAddrs() +
+                                             receiver.getAccount()
+                                             .getChangeChain().numAddrs()));
+
+            // The same sequence as WalletService.onWalletChanged.
+            TransactionIndex index = new TransactionIndex();
+            for (int round = 0; round < rounds; ++round) {
+                System.out.println("round " + round);
+
+                Iterable<WalletTransaction> iwt =
+                    wallet.getWalletTransactions();
+
+                begin();
+                receiver.applyAllTransactions(iwt);
+                end("apply");
+
+                begin();
+                List<ECKey> keys = new ArrayList<ECKey>();
+                receiver.ensureMargins(keys);
+                end("margins");
+
+                begin();
+                for (WalletTransaction wtx : iwt)
+                    receiver.amountForAccount(wtx);
+                end("amounts");
+
+                begin();
+                index.clear();
+                index.update(iwt, archive.getEntries(), receiver);
+                end("index");
+
+                begin();
+                receiver.persist();
+                end("persist");
+            }
+
+            System.out.println(String.format("balance %d, available %d",
+                                             receiver.balanceForAccount(),
+                                             receiver.availableForAccount()));
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: Replay dir [rounds] [prefix]");
+            System.exit(2);
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String prefix = args.length > 2 ? args[2] : DEFAULT_PREFIX;
+        new Replay().run(new File(args[0]), prefix, rounds);
+    }
+}
@@ -0,0 +1,292 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.RegTestParams;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.satoshilabs.btcreceive.HDReceiver;
+import com.satoshilabs.btcreceive.KeyBatcher;
+import com.satoshilabs.btcreceive.MyDownloadListener;
+import com.satoshilabs.btcreceive.MyWalletAppKit;
+import com.satoshilabs.btcreceive.WalletUtil;
+
+// Offline end to end sync benchmark: generates a FakeChain paying
+// an account, serves it from a FakePeer and syncs a MyWalletAppKit
+// holding the account's HDReceiver keys from it.  As in
+// WalletService every wallet change applies all the transactions
+// to the receiver and adds the keys its margins need.  The wallet
+// is then cleared and rescanned from the start, the way
+// WalletService.rescanBlockchain does, and both passes are checked
+// for every payment.
+//
+//     gradle :harness:run -Pargs="blocks txsPerBlock paymentInterval [xpub]"
+//
+// Without an xpub the account is derived from a fixed seed.  Results
+// go to stdout as "name value" lines; the rescan's are prefixed with
+// "rescan_".  Rates are from the block arrival times, the smoothed
+// and peak rates are "n/a" when the download was shorter than the
+// listener's sample window.
+//
+public class SyncBench {
+
+    private static final String PREFIX = "bench";
+
+    private final NetworkParameters	mParams;
+    private final FakeChain			mChain;
+    private final FakePeer			mPeer;
+    private final File				mDir;
+
+    private HDReceiver				mReceiver;
+    private MyWalletAppKit			mKit;
+    private KeyBatcher				mKeyBatcher = new KeyBatcher();
+
+    // Time spent applying wallet changes to the receiver, updated on
+    // the wallet's user thread.
+    private long					mApplyNanos = 0;
+    private int						mNumApplies = 0;
+
+    private AbstractWalletEventListener mWalletListener =
+        new AbstractWalletEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                long start = System.nanoTime();
+                mReceiver.applyAllTransactions(wallet.getWalletTransactions());
+                ArrayList<ECKey> keys = new ArrayList<ECKey>();
+                mReceiver.ensureMargins(keys);
+                mKeyBatcher.add(keys);
+                mKeyBatcher.flush(wallet, mKit.peerGroup());
+                synchronized (SyncBench.this) {
+                    mApplyNanos += System.nanoTime() - start;
+                    ++mNumApplies;
+                }
+            }
+        };
+
+    public SyncBench(NetworkParameters params, FakeChain chain,
+                     FakePeer peer, File dir) {
+        mParams = params;
+        mChain = chain;
+        mPeer = peer;
+        mDir = dir;
+    }
+
+    // Syncs a new kit from the FakePeer and prints the results; the
+    // kit is left running.
+    private void sync(String prefix) throws Exception {
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        mReceiver.gatherAllKeys(mChain.getStartTime(), keys);
+
+        mKit = new MyWalletAppKit(mParams, mDir, PREFIX, null,
+                                  mChain.getStartTime()) {
+                @Override
+                protected void onSetupCompleted() {
+                    wallet().addKeys(keys);
+                    wallet().addEventListener(mWalletListener);
+                }
+            };
+        MyDownloadListener listener = new MyDownloadListener();
+        mKit.setDownloadListener(listener);
+        mKit.setAutoStop(false);
+        mKit.setPeerNodes(new PeerAddress(InetAddress.getByName("127.0.0.1"),
+                                          mPeer.getPort()));
+
+        synchronized (this) {
+            mApplyNanos = 0;
+            mNumApplies = 0;
+        }
+        long blocksServed = mPeer.getNumBlocksServed();
+        long bytesServed = mPeer.getNumBytesServed();
+        int rebuilds = mKeyBatcher.getNumRebuilds();
+
+        long start = System.currentTimeMillis();
+        mKit.startAndWait();
+        long syncMsecs = System.currentTimeMillis() - start;
+        Threading.waitForUserCode();
+
+        Iterable<WalletTransaction> iwt = mKit.wallet().getWalletTransactions();
+        long applyStart = System.nanoTime();
+        mReceiver.applyAllTransactions(iwt);
+        long applyAllNanos = System.nanoTime() - applyStart;
+
+        print(prefix, "sync_msecs", syncMsecs);
+        printRates(prefix, listener);
+        print(prefix, "blocks_served", mPeer.getNumBlocksServed() - blocksServed);
+        print(prefix, "bytes_served", mPeer.getNumBytesServed() - bytesServed);
+        synchronized (this) {
+            print(prefix, "wallet_changes", mNumApplies);
+            print(prefix, "apply_msecs", mApplyNanos / 1000000);
+        }
+        print(prefix, "apply_all_usecs", applyAllNanos / 1000);
+        print(prefix, "addresses",
+              mReceiver.getAccount().getReceiveChain().numAddrs());
+        print(prefix, "filter_rebuilds", mKeyBatcher.getNumRebuilds() - rebuilds);
+
+        check(prefix);
+    }
+
+    private void check(String prefix) {
+        BigInteger balance = mKit.wallet().getBalance(BalanceType.ESTIMATED);
+        print(prefix, "balance", balance.longValue());
+        print(prefix, "account_balance", mReceiver.balanceForAccount());
+        print(prefix, "expected", mChain.getTotalPaid());
+
+        if (balance.longValue() != mChain.getTotalPaid() ||
+            mReceiver.balanceForAccount() != mChain.getTotalPaid()) {
+            System.err.println("FAILED: " + prefix + "sync missed payments");
+            System.exit(1);
+        }
+    }
+
+    // Clears the wallet and scans the chain again, following
+    // WalletService.rescanBlockchain: the receiver is persisted and
+    // restored, the transactions and last block seen are cleared,
+    // and the kit is restarted without its header chain.
+    private void rescan() throws Exception {
+        mKit.wallet().removeEventListener(mWalletListener);
+        mReceiver.persist();
+        mReceiver = null;
+
+        mKit.wallet().clearTransactions(0);
+        mKit.wallet().setLastBlockSeenHeight(-1);
+        mKit.wallet().setLastBlockSeenHash(null);
+        mKit.stopAndWait();
+        new File(mDir, PREFIX + ".spvchain").delete();
+
+        mReceiver = HDReceiver.restore(mParams, mDir, PREFIX, null, null);
+        sync("rescan_");
+    }
+
+    public void run(DeterministicKey accountKey) throws Exception {
+        mReceiver = new HDReceiver(mParams, mDir, PREFIX, accountKey);
+        try {
+            sync("");
+            rescan();
+            mKit.stopAndWait();
+        } finally {
+            for (File file : mDir.listFiles())
+                file.delete();
+            mDir.delete();
+        }
+    }
+
+    private static void print(String prefix, String name, long value) {
+        System.out.println(prefix + name + " " + value);
+    }
+
+    private static void printRate(String prefix, String name, double value) {
+        System.out.println(prefix + name + " " + String.format("%.1f", value));
+    }
+
+    // The listener samples its totals once a second, a shorter
+    // download never gets a smoothed rate.  The block arrival times
+    // give one regardless.
+    private static void printRates(String prefix, MyDownloadListener listener) {
+        long blocks = 0;
+        long bytes = 0;
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        for (MyDownloadListener.PeerStats stats :
+                 listener.getPeerStats().values()) {
+            blocks += stats.blocks;
+            bytes += stats.bytes;
+            first = Math.min(first, stats.firstTime);
+            last = Math.max(last, stats.lastTime);
+        }
+        print(prefix, "blocks_downloaded", blocks);
+        print(prefix, "download_msecs", last > first ? last - first : 0);
+        if (last > first) {
+            printRate(prefix, "blocks_per_sec", blocks * 1000.0 / (last - first));
+            printRate(prefix, "bytes_per_sec", bytes * 1000.0 / (last - first));
+        }
+        else {
+            System.out.println(prefix + "blocks_per_sec n/a");
+            System.out.println(prefix + "bytes_per_sec n/a");
+        }
+
+        if (listener.getSmoothedBlocksPerSec() > 0) {
+            printRate(prefix, "smoothed_blocks_per_sec",
+                      listener.getSmoothedBlocksPerSec());
+            printRate(prefix, "peak_blocks_per_sec",
+                      listener.getPeakBlocksPerSec());
+        }
+        else {
+            System.out.println(prefix + "smoothed_blocks_per_sec n/a");
+            System.out.println(prefix + "peak_blocks_per_sec n/a");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeChain.Config config = new FakeChain.Config();
+        if (args.length > 0)
+            config.mNumBlocks = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.mTxsPerBlock = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            config.mPaymentInterval = Integer.parseInt(args[2]);
+
+        // Only the public key is needed, the chain pays its
+        // receive addresses.
+        DeterministicKey accountKey;
+        if (args.length > 3)
+            accountKey = WalletUtil.createMasterPubKeyFromPubB58(args[3]);
+        else
+            accountKey = WalletUtil.createMasterPubKeyFromPubB58
+                (HDKeyDerivation.createMasterPrivateKey
+                 ("harness-seed".getBytes("UTF-8")).serializePubB58());
+
+        NetworkParameters params = RegTestParams.get();
+
+        long start = System.currentTimeMillis();
+        FakeChain chain = new FakeChain(params, accountKey, config);
+        chain.generate();
+        long genMsecs = System.currentTimeMillis() - start;
+
+        System.out.println("account " + accountKey.serializePubB58());
+        System.out.println("blocks " + chain.getHeight());
+        System.out.println("txs_per_block " + config.mTxsPerBlock);
+        System.out.println("payments " + chain.getNumPayments());
+        System.out.println("chain_bytes " + chain.getNumBytes());
+        System.out.println("generate_msecs " + genMsecs);
+
+        FakePeer peer = new FakePeer(params, chain);
+        peer.start(0);
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "syncbench-" + System.currentTimeMillis());
+        dir.mkdirs();
+        try {
+            new SyncBench(params, chain, peer, dir).run(accountKey);
+        } finally {
+            peer.close();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.satoshilabs.btcreceive.harness;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.Base58;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+
+// Generates a synthetic wallet of a given size for an account: the
+// transactions (as the bitcoinj wallet would hold them) and the
+// matching .hdreceive file, with the address counters and balances
+// HDReceiver.applyAllTransactions would compute from them.
+//
+// Transactions alternate randomly between receiving (foreign inputs,
+// one output to the next receive address, the rest foreign) and
+// spending (our unspent outputs, one foreign output, the rest to
+// change addresses).  A fraction are dead (double spent, so nothing
+// they spend is consumed) and a fraction were reorged out and are
+// pending again.  Everything is derived from the seed, so the same
+// config always produces the same wallet.
+//
+// A million transactions needs a few GB of heap.
+//
+//     gradle :harness:generateWallet -Pargs="dir prefix receive change txs"
+//
+public class WalletGenerator {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(WalletGenerator.class);
+
+    // Unused addresses at the end of each chain, as HDChain keeps.
+    public static final int MARGIN = 32;
+
+    // Jan 1 2014, and about the height of the chain then.
+    public static final long START_TIME = 1388534400;
+    public static final int START_HEIGHT = 277000;
+
+    private static final long SPACING_SECS = 600;
+    private static final long FEE = 10000;	// satoshi
+
+    public static class Config {
+        public int		mNumReceive = 1000;		// receive addresses used
+        public int		mNumChange = 500;		// change addresses used
+        public int		mNumTxs = 10000;
+        public int		mInputsPerTx = 2;
+        public int		mOutputsPerTx = 2;
+        public double	mSpendRate = 0.4;		// fraction spending our coins
+        public double	mReorgRate = 0.001;		// fraction pending again
+        public double	mDeadRate = 0.001;		// fraction double spent
+        public int		mTxsPerBlock = 4;
+        public long		mSeed = 1;
+    }
+
+    private static class Addr {
+        public final int		mAddrNum;
+        public final String		mPath;
+        public final byte[]		mPubBytes;
+        public final Address	mAddress;
+        public int				mNumTrans = 0;
+        public long				mBalance = 0;
+        public long				mAvailable = 0;
+
+        public Addr(NetworkParameters params,
+                    DeterministicKey chainKey,
+                    int addrNum) {
+            DeterministicKey addrKey =
+                HDKeyDerivation.deriveChildKey(chainKey, addrNum);
+            mAddrNum = addrNum;
+            mPath = addrKey.getPath();
+            mPubBytes = addrKey.getPubKeyBytes();
+            mAddress = new Address(params, Utils.sha256hash160(mPubBytes));
+        }
+    }
+
+    // An output of ours which hasn't been spent yet.
+    private static class Coin {
+        public final TransactionOutput	mOutput;
+        public final int				mIndex;
+        public final Addr				mAddr;
+
+        // Adds the output to tx.  TransactionOutput.getIndex isn't
+        // public, so we remember where it went.
+        public Coin(Transaction tx, BigInteger value, Addr addr) {
+            mOutput = tx.addOutput(value, addr.mAddress);
+            mIndex = tx.getOutputs().size() - 1;
+            mAddr = addr;
+        }
+    }
+
+    private final NetworkParameters		mParams;
+    private final DeterministicKey		mAccountKey;
+    private final Config				mConfig;
+    private final Random				mRandom;
+
+    private final List<Addr>			mReceive = new ArrayList<Addr>();
+    private final List<Addr>			mChange = new ArrayList<Addr>();
+    private final List<Coin>			mUnspent = new ArrayList<Coin>();
+    private final List<WalletTransaction>	mTransactions =
+        new ArrayList<WalletTransaction>();
+    private ECKey						mWorkaroundKey;
+
+    public WalletGenerator(NetworkParameters params,
+                           DeterministicKey accountKey,
+                           Config config) {
+        mParams = params;
+        mAccountKey = accountKey;
+        mConfig = config;
+        mRandom = new Random(config.mSeed);
+    }
+
+    public void generate() {
+        long start = System.currentTimeMillis();
+
+        DeterministicKey receiveKey =
+            HDKeyDerivation.deriveChildKey(mAccountKey, 0);
+        DeterministicKey changeKey =
+            HDKeyDerivation.deriveChildKey(mAccountKey, 1);
+        for (int ii = 0; ii < mConfig.mNumReceive + MARGIN; ++ii)
+            mReceive.add(new Addr(mParams, receiveKey, ii));
+        for (int ii = 0; ii < mConfig.mNumChange + MARGIN; ++ii)
+            mChange.add(new Addr(mParams, changeKey, ii));
+
+        byte[] privBytes = new byte[32];
+        mRandom.nextBytes(privBytes);
+        privBytes[0] &= 0x7f;	// keep it below the curve order
+        mWorkaroundKey = new ECKey(privBytes, null);
+
+        mLogger.info(String.format("derived %d addresses in %d msecs",
+                                   mReceive.size() + mChange.size(),
+                                   System.currentTimeMillis() - start));
+
+        List<Transaction> txs = new ArrayList<Transaction>();
+        int nextReceive = 0;
+        int nextChange = 0;
+        for (int ii = 0; ii < mConfig.mNumTxs; ++ii) {
+            Transaction tx = new Transaction(mParams);
+            long time = START_TIME +
+                (ii / mConfig.mTxsPerBlock) * SPACING_SECS;
+            tx.setUpdateTime(new Date(time * 1000));
+
+            boolean dead = mRandom.nextDouble() < mConfig.mDeadRate;
+            boolean pending =
+                !dead && mRandom.nextDouble() < mConfig.mReorgRate;
+
+            List<Coin> spent = new ArrayList<Coin>();
+            List<Coin> created = new ArrayList<Coin>();
+            if (mUnspent.size() >= mConfig.mInputsPerTx &&
+                mRandom.nextDouble() < mConfig.mSpendRate) {
+                // Spend some of our coins, the remainder goes to change.
+                long total = 0;
+                for (int jj = 0; jj < mConfig.mInputsPerTx; ++jj) {
+                    Coin coin = takeCoin(mRandom.nextInt(mUnspent.size()));
+                    tx.addInput(new TransactionInput
+                                (mParams, tx, scriptSig(coin.mAddr.mPubBytes),
+                                 new TransactionOutPoint
+                                 (mParams, coin.mIndex,
+                                  coin.mOutput.getParentTransaction())));
+                    total += coin.mOutput.getValue().longValue();
+                    spent.add(coin);
+                }
+                long remain = Math.max(0, total - FEE);
+                long amount = remain / 2;
+                tx.addOutput(BigInteger.valueOf(amount), foreignAddress());
+                remain -= amount;
+                int numChange = mConfig.mOutputsPerTx - 1;
+                for (int jj = 0; jj < numChange; ++jj) {
+                    long value = jj == numChange - 1 ?
+                        remain : remain / (numChange - jj);
+                    remain -= value;
+                    Addr addr = mChange.get(nextChange++ % mConfig.mNumChange);
+                    created.add(new Coin(tx, BigInteger.valueOf(value),
+                                         addr));
+                }
+            }
+            else {
+                // Receive a payment from elsewhere.
+                for (int jj = 0; jj < mConfig.mInputsPerTx; ++jj) {
+                    byte[] hash = new byte[32];
+                    mRandom.nextBytes(hash);
+                    byte[] pubBytes = new byte[33];
+                    mRandom.nextBytes(pubBytes);
+                    pubBytes[0] = 0x02;
+                    tx.addInput(new TransactionInput
+                                (mParams, tx, scriptSig(pubBytes),
+                                 new TransactionOutPoint
+                                 (mParams, 0, new Sha256Hash(hash))));
+                }
+                long value = 10000 + mRandom.nextInt(10000000);
+                Addr addr = mReceive.get(nextReceive++ % mConfig.mNumReceive);
+                created.add(new Coin(tx, BigInteger.valueOf(value), addr));
+                for (int jj = 1; jj < mConfig.mOutputsPerTx; ++jj)
+                    tx.addOutput(BigInteger.valueOf
+                                 (10000 + mRandom.nextInt(10000000)),
+                                 foreignAddress());
+            }
+
+            if (dead) {
+                // Whatever it spent is still ours to spend.
+                tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
+                mUnspent.addAll(spent);
+            }
+            else {
+                if (pending)
+                    tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+                else
+                    tx.getConfidence().setAppearedAtChainHeight
+                        (START_HEIGHT + ii / mConfig.mTxsPerBlock);
+
+                // The same accounting as HDReceiver.applyAllTransactions.
+                for (int jj = 0; jj < spent.size(); ++jj) {
+                    Coin coin = spent.get(jj);
+                    long value = coin.mOutput.getValue().longValue();
+                    coin.mOutput.markAsSpent(tx.getInput(jj));
+                    ++coin.mAddr.mNumTrans;
+                    coin.mAddr.mBalance -= value;
+                    coin.mAddr.mAvailable -= value;
+                }
+                for (Coin coin : created) {
+                    long value = coin.mOutput.getValue().longValue();
+                    ++coin.mAddr.mNumTrans;
+                    coin.mAddr.mBalance += value;
+                    if (!pending)
+                        coin.mAddr.mAvailable += value;
+                    // Don't build on transactions which may go away.
+                    if (!pending)
+                        mUnspent.add(coin);
+                }
+            }
+            txs.add(tx);
+        }
+
+        // Set depths against the tip and sort into pools.
+        int tip = START_HEIGHT + (mConfig.mNumTxs - 1) / mConfig.mTxsPerBlock;
+        HashSet<Sha256Hash> unspent = new HashSet<Sha256Hash>();
+        for (Coin coin : mUnspent)
+            unspent.add(coin.mOutput.getParentTransaction().getHash());
+        for (Transaction tx : txs) {
+            ConfidenceType ct = tx.getConfidence().getConfidenceType();
+            WalletTransaction.Pool pool;
+            if (ct == ConfidenceType.DEAD) {
+                pool = WalletTransaction.Pool.DEAD;
+            }
+            else if (ct == ConfidenceType.PENDING) {
+                pool = WalletTransaction.Pool.PENDING;
+            }
+            else {
+                tx.getConfidence().setDepthInBlocks
+                    (tip - tx.getConfidence().getAppearedAtChainHeight() + 1);
+                pool = unspent.contains(tx.getHash()) ?
+                    WalletTransaction.Pool.UNSPENT :
+                    WalletTransaction.Pool.SPENT;
+            }
+            mTransactions.add(new WalletTransaction(pool, tx));
+        }
+
+        mLogger.info(String.format("generated %d transactions in %d msecs",
+                                   mTransactions.size(),
+                                   System.currentTimeMillis() - start));
+    }
+
+    private Coin takeCoin(int ndx) {
+        // Swap with the last so removal is cheap.
+        Coin coin = mUnspent.get(ndx);
+        mUnspent.set(ndx, mUnspent.get(mUnspent.size() - 1));
+        mUnspent.remove(mUnspent.size() - 1);
+        return coin;
+    }
+
+    private Address foreignAddress() {
+        byte[] hash160 = new byte[20];
+        mRandom.nextBytes(hash160);
+        return new Address(mParams, hash160);
+    }
+
+    // A P2PKH scriptSig: a signature-sized placeholder and the key.
+    private byte[] scriptSig(byte[] pubBytes) {
+        byte[] sig = new byte[72];
+        mRandom.nextBytes(sig);
+        sig[0] = 0x30;
+        return new ScriptBuilder().data(sig).data(pubBytes).build().getProgram();
+    }
+
+    public List<WalletTransaction> getTransactions() {
+        return mTransactions;
+    }
+
+    public int numAddrs() {
+        return mReceive.size() + mChange.size();
+    }
+
+    public long getBalance() {
+        long balance = 0;
+        for (Addr addr : mReceive)
+            balance += addr.mBalance;
+        for (Addr addr : mChange)
+            balance += addr.mBalance;
+        return balance;
+    }
+
+    public long getAvailable() {
+        long available = 0;
+        for (Addr addr : mReceive)
+            available += addr.mAvailable;
+        for (Addr addr : mChange)
+            available += addr.mAvailable;
+        return available;
+    }
+
+    // The watch keys the app adds to the bitcoinj wallet.
+    public List<ECKey> getKeys() {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        keys.add(mWorkaroundKey);
+        for (Addr addr : mReceive)
+            keys.add(new ECKey(null, addr.mPubBytes));
+        for (Addr addr : mChange)
+            keys.add(new ECKey(null, addr.mPubBytes));
+        return keys;
+    }
+
+    // The contents of the .hdreceive file, as HDReceiver.dumps().
+    public JSONObject dumps() {
+        try {
+            JSONObject acct = new JSONObject();
+            acct.put("name", "Account 0");
+            acct.put("receive", dumpChain("Receive", true, mReceive));
+            acct.put("change", dumpChain("Change", false, mChange));
+
+            JSONObject obj = new JSONObject();
+            obj.put("xpub", mAccountKey.serializePubB58());
+            obj.put("account", acct);
+            obj.put("workaroundPrivKey",
+                    Base58.encode(mWorkaroundKey.getPrivKeyBytes()));
+            obj.put("birthday", START_TIME);
+            return obj;
+        }
+        catch (JSONException ex) {
+            throw new RuntimeException(ex);	// Shouldn't happen.
+        }
+    }
+
+    private static JSONObject dumpChain(String name,
+                                        boolean isReceive,
+                                        List<Addr> addrs)
+        throws JSONException {
+        JSONArray nodes = new JSONArray();
+        for (Addr addr : addrs) {
+            JSONObject node = new JSONObject();
+            node.put("addrNum", addr.mAddrNum);
+            node.put("path", addr.mPath);
+            node.put("pubBytes", Base58.encode(addr.mPubBytes));
+            node.put("numTrans", addr.mNumTrans);
+            node.put("balance", addr.mBalance);
+            node.put("available", addr.mAvailable);
+            nodes.put(node);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("name", name);
+        obj.put("isReceive", isReceive);
+        obj.put("addrs", nodes);
+        return obj;
+    }
+
+    // Writes <prefix>.hdreceive and <prefix>.wallet into dir, the
+    // way the app keeps them.
+    public void persist(File dir, String prefix) throws IOException {
+        try {
+            byte[] bytes = dumps().toString(4)
+                .getBytes(Charset.forName("UTF-8"));
+            FileOutputStream ostrm =
+                new FileOutputStream(new File(dir, prefix + ".hdreceive"));
+            try {
+                ostrm.write(bytes);
+            } finally {
+                ostrm.close();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+
+        Wallet wallet = new Wallet(mParams);
+        wallet.addKeys(getKeys());
+        for (WalletTransaction wtx : mTransactions)
+            wallet.addWalletTransaction(wtx);
+        FileOutputStream ostrm =
+            new FileOutputStream(new File(dir, prefix + ".wallet"));
+        try {
+            new WalletProtobufSerializer().writeWallet(wallet, ostrm);
+        } finally {
+            ostrm.close();
+        }
+    }
+
+    // The same as WalletUtil.createMasterPubKeyFromPubB58.
+    public static DeterministicKey decodeXPub(String xpubstr)
+        throws AddressFormatException {
+        ByteBuffer ser = ByteBuffer.wrap(Base58.decodeChecked(xpubstr));
+        if (ser.getInt() != 0x0488B21E)
+            throw new AddressFormatException("bad xpub version");
+        ser.get();		// depth
+        ser.getInt();	// parent fingerprint
+        ser.getInt();	// child number
+        byte[] chainCode = new byte[32];
+        ser.get(chainCode);
+        byte[] pubBytes = new byte[33];
+        ser.get(pubBytes);
+        return HDKeyDerivation.createMasterPubKeyFromBytes(pubBytes, chainCode);
+    }
+
+    // A watch-only account key from a fixed seed, for when there's
+    // no xpub to use.
+    public static DeterministicKey seedAccountKey() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey
+            ("harness-seed".getBytes(Charset.forName("UTF-8")));
+        return HDKeyDerivation.createMasterPubKeyFromBytes
+            (master.getPubKeyBytes(), master.getChainCode());
+    }
+
+    // dir prefix [receive change txs inputs outputs reorgRate deadRate [xpub]]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: WalletGenerator dir prefix " +
+                               "[receive change txs inputs outputs " +
+                               "reorgRate deadRate [xpub]]");
+            System.exit(2);
+        }
+
+        Config config = new Config();
+        if (args.length > 2)
+            config.mNumReceive = Integer.parseInt(args[2]);
+        if (args.length > 3)
+            config.mNumChange = Integer.parseInt(args[3]);
+        if (args.length > 4)
+            config.mNumTxs = Integer.parseInt(args[4]);
+        if (args.length > 5)
+            config.mInputsPerTx = Integer.parseInt(args[5]);
+        if (args.length > 6)
+            config.mOutputsPerTx = Integer.parseInt(args[6]);
+        if (args.length > 7)
+            config.mReorgRate = Double.parseDouble(args[7]);
+        if (args.length > 8)
+            config.mDeadRate = Double.parseDouble(args[8]);
+
+        DeterministicKey accountKey =
+            args.length > 9 ? decodeXPub(args[9]) : seedAccountKey();
+
+        File dir = new File(args[0]);
+        dir.mkdirs();
+
+        WalletGenerator gen =
+            new WalletGenerator(MainNetParams.get(), accountKey, config);
+        gen.generate();
+        gen.persist(dir, args[1]);
+
+        System.out.println("addresses " + gen.numAddrs());
+        System.out.println("transactions " + gen.getTransactions().size());
+        System.out.println("balance " + gen.getBalance());
+        System.out.println("available " + gen.getAvailable());
+    }
+}